@@ -12,6 +12,8 @@ static jclass Bitmap;
 static jmethodID Bitmap_createBitmap1;
 static jmethodID Bitmap_recycle;
 
+static jmethodID JpegDecoder_onRowsDecoded;
+
 static jfieldID Options_inSampleSize;
 static jfieldID Options_mCancel;
 
@@ -24,6 +26,8 @@ void JNICALL Java_rapid_decoder_builtin_JpegDecoder_init(JNIEnv* env, jclass cla
     Bitmap_createBitmap1 = env->GetStaticMethodID(Bitmap, "createBitmap", "(IILandroid/graphics/Bitmap$Config;)Landroid/graphics/Bitmap;");
     Bitmap_recycle = env->GetMethodID(Bitmap, "recycle", "()V");
 
+    JpegDecoder_onRowsDecoded = env->GetMethodID(clazz, "onRowsDecoded", "(Landroid/graphics/Bitmap;I)V");
+
     jclass Options = env->FindClass("android/graphics/BitmapFactory$Options");
     Options_inSampleSize = env->GetFieldID(Options, "inSampleSize", "I");
     Options_mCancel = env->GetFieldID(Options, "mCancel", "Z");
@@ -73,7 +77,8 @@ jint JNICALL Java_rapid_decoder_builtin_JpegDecoder_nativeGetHeight(JNIEnv* env,
 
 extern "C" JNIEXPORT
 jobject JNICALL Java_rapid_decoder_builtin_JpegDecoder_nativeDecode(JNIEnv* env, jclass clazz,
-	jlong decoderPtr, jint left, jint top, jint right, jint bottom, jboolean filter, jobject config, jobject opts)
+	jlong decoderPtr, jint left, jint top, jint right, jint bottom, jboolean filter, jobject config, jobject opts,
+	jobject progress, jint update_rows)
 {
     jpeg_decoder* decoder = (jpeg_decoder*)decoderPtr;
 
@@ -123,6 +128,14 @@ jobject JNICALL Java_rapid_decoder_builtin_JpegDecoder_nativeDecode(JNIEnv* env,
     uint8* pixels;
     AndroidBitmap_lockPixels(env, bitmap, (void**)&pixels);
 
+    if (update_rows <= 0 || decoder->is_progressive())
+    {
+        progress = NULL;
+    }
+    int rows_done = 0;
+    int next_update = update_rows;
+    bool shown = false;
+
     decoder->set_column_offset(left);
     decoder->set_column_length(w);
 
@@ -152,12 +165,31 @@ jobject JNICALL Java_rapid_decoder_builtin_JpegDecoder_nativeDecode(JNIEnv* env,
             if (sampler->sample((const uint8*)buffer, 0, pixels))
             {
                 pixels += info.stride;
+                ++rows_done;
             }
         }
         else
         {
             memcpy(pixels, buffer, scan_line_length);
             pixels += info.stride;
+            ++rows_done;
+        }
+
+        if (progress != NULL && rows_done >= next_update && rows_done < sampled_height)
+        {
+            next_update = rows_done + update_rows;
+
+            // Unlocking marks the pixels as changed, so the rows are drawn.
+            AndroidBitmap_unlockPixels(env, bitmap);
+            env->CallVoidMethod(progress, JpegDecoder_onRowsDecoded, bitmap, rows_done);
+            shown = true;
+            if (env->ExceptionCheck())
+            {
+                env->ExceptionClear();
+                progress = NULL;
+            }
+            AndroidBitmap_lockPixels(env, bitmap, (void**)&pixels);
+            pixels += rows_done * info.stride;
         }
     }
 
@@ -177,6 +209,10 @@ canceled:
     }
 
     AndroidBitmap_unlockPixels(env, bitmap);
-    env->CallVoidMethod(bitmap, Bitmap_recycle);
+    if (!shown)
+    {
+        // A bitmap which has been shown may still be drawn.
+        env->CallVoidMethod(bitmap, Bitmap_recycle);
+    }
     return NULL;
 }
\ No newline at end of file
@@ -102,6 +102,9 @@ namespace jpgd
 
     inline int get_num_components() const { return m_comps_in_frame; }
 
+    // Progressive images don't produce any row before all of their scans have been read.
+    inline bool is_progressive() const { return m_progressive_flag != 0; }
+
     inline int get_bytes_per_pixel() const { return m_dest_bytes_per_pixel; }
     inline int get_bytes_per_scan_line() const { return m_image_x_size * get_bytes_per_pixel(); }
 
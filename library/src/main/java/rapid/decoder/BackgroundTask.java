@@ -1,14 +1,26 @@
 package rapid.decoder;
 
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
-import android.os.Build;
 
 import java.lang.ref.WeakReference;
 
 import rapid.decoder.cache.CacheSource;
 
-class BackgroundTask extends AsyncTask<Object, Object, BackgroundTask.Result> {
+/**
+ * A request to decode something for a view or a key. Requests for the same image wait for one
+ * shared {@link DecodeFlight} instead of decoding it each on their own.
+ */
+class BackgroundTask {
+    /**
+     * Implemented by listeners which show an image while it's still being decoded.
+     */
+    interface OnPartialBitmapListener {
+        /**
+         * Called on the main thread, each time with the same bitmap, which has more rows decoded.
+         */
+        void onPartialBitmap(Bitmap bitmap);
+    }
+
     public static class Result {
         public Bitmap bitmap;
         public CacheSource cacheSource;
@@ -23,6 +35,8 @@ class BackgroundTask extends AsyncTask<Object, Object, BackgroundTask.Result> {
     private Decodable.OnBitmapDecodedListener mListener;
     private ViewFrameBuilder mFrameBuilder;
     private Object mKey;
+    private DecodeFlight mFlight;
+    private boolean mCancelled;
 
     public BackgroundTask(Object key) {
         mKey = key;
@@ -32,6 +46,10 @@ class BackgroundTask extends AsyncTask<Object, Object, BackgroundTask.Result> {
         mDecodable = decodable;
     }
 
+    Decodable getDecodable() {
+        return mDecodable;
+    }
+
     public void setOnBitmapDecodedListener(Decodable.OnBitmapDecodedListener listener) {
         mListener = listener;
     }
@@ -45,8 +63,11 @@ class BackgroundTask extends AsyncTask<Object, Object, BackgroundTask.Result> {
         }
     }
 
-    @Override
-    protected void onPostExecute(Result result) {
+    /**
+     * Called by the flight on the main thread.
+     */
+    void onFlightFinished(Result result) {
+        mFlight = null;
         if (removeKey()) {
             if (mListener != null) {
                 if (result == null) {
@@ -61,25 +82,13 @@ class BackgroundTask extends AsyncTask<Object, Object, BackgroundTask.Result> {
         }
     }
 
-    @Override
-    protected Result doInBackground(Object... params) {
-        Decodable d = null;
-        if (mFrameBuilder != null) {
-            d = mFrameBuilder.getFramedDecoder(false);
+    /**
+     * Called by the flight on the main thread.
+     */
+    void onPartialBitmap(Bitmap bitmap) {
+        if (mListener instanceof OnPartialBitmapListener) {
+            ((OnPartialBitmapListener) mListener).onPartialBitmap(bitmap);
         }
-        if (d == null) {
-            d = mDecodable;
-        }
-
-        Bitmap bitmap = d.decode();
-        if (bitmap == null || isCancelled()) return null;
-
-        CacheSource cacheSource = d.cacheSource();
-        return new Result(bitmap, cacheSource);
-    }
-
-    protected void onCancelled() {
-        dispatchCancel();
     }
 
     private void dispatchCancel() {
@@ -89,24 +98,39 @@ class BackgroundTask extends AsyncTask<Object, Object, BackgroundTask.Result> {
         }
     }
 
+    /**
+     * Stops waiting for the bitmap. The decoding itself is only cancelled if no other request is
+     * waiting for it.
+     */
     public void cancel() {
-        cancel(false);
-        if (mDecodable != null) {
+        mCancelled = true;
+        if (mFlight != null) {
+            mFlight.leave(this);
+            mFlight = null;
+        } else if (mDecodable != null) {
             mDecodable.cancel();
         }
         removeKey();
         dispatchCancel();
     }
 
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
     public void setFrameBuilder(ViewFrameBuilder builder) {
         mFrameBuilder = builder;
     }
 
+    ViewFrameBuilder getFrameBuilder() {
+        return mFrameBuilder;
+    }
+
     public void start() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-            executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-        } else {
-            execute();
-        }
+        if (mCancelled) return;
+        // Only decoders which can be cached have an identity to share a decoding by.
+        Object key = (!mDecodable.isMemoryCacheEnabled() ? null :
+                mFrameBuilder != null ? mFrameBuilder : mDecodable);
+        mFlight = DecodeFlight.join(key, this);
     }
 }
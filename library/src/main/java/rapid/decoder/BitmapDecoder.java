@@ -1,5 +1,7 @@
 package rapid.decoder;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.pm.PackageManager;
@@ -26,21 +28,27 @@ import android.widget.ImageView;
 import java.io.ByteArrayInputStream;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.io.InputStream;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
 import rapid.decoder.cache.BitmapLruCache;
+import rapid.decoder.cache.BitmapPool;
+import rapid.decoder.cache.CacheEntryHeader;
+import rapid.decoder.cache.CachePolicy;
+import rapid.decoder.cache.CacheSource;
+import rapid.decoder.cache.DiskCacheLayout;
 import rapid.decoder.cache.DiskLruCache;
+import rapid.decoder.cache.EncodedBytesCache;
+import rapid.decoder.cache.HttpCacheInfo;
+import rapid.decoder.cache.MissRatioCurve;
 import rapid.decoder.cache.ResourcePool;
 import rapid.decoder.compat.DisplayCompat;
 import rapid.decoder.frame.AspectRatioCalculator;
 import rapid.decoder.frame.FramedDecoder;
 import rapid.decoder.frame.FramingMethod;
+import rapid.decoder.frame.ScaleTypeFraming;
 
 import static rapid.decoder.cache.ResourcePool.*;
 
@@ -48,6 +56,8 @@ public abstract class BitmapDecoder extends Decodable {
     static final String MESSAGE_INVALID_RATIO = "Ratio should be positive.";
     private static final String MESSAGE_URI_REQUIRES_CONTEXT = "This type of uri requires Context" +
             ". Use BitmapDecoder.from(Context, Uri) instead.";
+    private static final String MESSAGE_URI_NOT_DOWNLOADED = "Only images of http, https and " +
+            "ftp uris are downloaded through a NetworkFetcher.";
 
     private static final String ASSET_PATH_PREFIX = "/android_asset/";
 
@@ -56,14 +66,35 @@ public abstract class BitmapDecoder extends Decodable {
     //
 
     private static final long DEFAULT_CACHE_SIZE = 8 * 1024 * 1024;
+    private static final int DEFAULT_RAW_RENDITION_MAX_PIXELS = 128 * 128;
 
+    /**
+     * Only guards replacing {@link #sMemCache}. Lookups read the volatile field once and go
+     * straight to the cache, which handles its own concurrency.
+     */
     protected static final Object sMemCacheLock = new Object();
-    protected static BitmapLruCache sMemCache;
+    protected static volatile BitmapLruCache sMemCache;
 
+    /**
+     * Only guards replacing {@link #sDiskCache} and {@link #sRenditionCache}, like
+     * {@link #sMemCacheLock}.
+     */
     static final Object sDiskCacheLock = new Object();
-    static DiskLruCache sDiskCache;
+    static volatile DiskLruCache sDiskCache;
+    static volatile DiskLruCache sRenditionCache;
+    static volatile int sRawRenditionMaxPixels;
 
-    public static void initMemoryCache(Context context) {
+    static volatile EncodedBytesCache sEncodedCache;
+
+    static volatile BitmapPool sBitmapPool;
+    private static boolean sPoolEvictedBitmaps;
+
+    static volatile NetworkFetcher sNetworkFetcher = new UrlConnectionFetcher();
+    private static volatile int sDownloadSegmentCount = 1;
+    private static volatile long sMinSegmentedDownloadLength;
+    static volatile UrlResolver sUrlResolver;
+
+    private static int getScreenByteCount(Context context) {
         final WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
         final Display display = wm.getDefaultDisplay();
 
@@ -71,12 +102,71 @@ public abstract class BitmapDecoder extends Decodable {
         DisplayCompat.getSize(display, size);
 
         final Config defaultConfig = Build.VERSION.SDK_INT < 9 ? Config.RGB_565 : Config.ARGB_8888;
-        initMemoryCache(2 * BitmapUtils.getByteCount(size.x, size.y, defaultConfig));
+        final int byteCount = BitmapUtils.getByteCount(size.x, size.y, defaultConfig);
 
         POINT.recycle(size);
+        return byteCount;
+    }
+
+    public static void initMemoryCache(Context context) {
+        initMemoryCache(context, CachePolicy.LRU);
+    }
+
+    public static void initMemoryCache(Context context, CachePolicy policy) {
+        initMemoryCache(2 * getScreenByteCount(context), policy);
+        MemoryTrimmer.register(context);
+    }
+
+    public static void initAdaptiveMemoryCache(Context context) {
+        initAdaptiveMemoryCache(context, CachePolicy.LRU);
+    }
+
+    /**
+     * Initializes the memory cache at two screens worth of bitmaps like
+     * {@link #initMemoryCache(Context, CachePolicy)}, and lets it grow or shrink with how well
+     * bitmaps are reused. It never gets smaller than one screen nor larger than a quarter of the
+     * memory class of the device.
+     *
+     * @see #getMemoryCacheMissRatioCurve()
+     */
+    public static void initAdaptiveMemoryCache(Context context, CachePolicy policy) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long memoryClassBytes = (long) am.getMemoryClass() * 1024 * 1024;
+        int screenByteCount = getScreenByteCount(context);
+
+        int maxSize = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(screenByteCount, memoryClassBytes / 4));
+        int size = Math.min(2 * screenByteCount, maxSize);
+        initMemoryCache(size, policy);
+        synchronized (sMemCacheLock) {
+            if (sMemCache != null) {
+                sMemCache.setAdaptiveSize(screenByteCount, maxSize);
+            }
+        }
+        MemoryTrimmer.register(context);
+    }
+
+    /**
+     * @return The estimated miss ratios of the memory cache at different sizes if it has been
+     * initialized with {@link #initAdaptiveMemoryCache(Context)}, or null.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public static MissRatioCurve getMemoryCacheMissRatioCurve() {
+        BitmapLruCache cache = sMemCache;
+        return cache != null ? cache.missRatioCurve() : null;
     }
 
     public static void initMemoryCache(int size) {
+        initMemoryCache(size, CachePolicy.LRU);
+    }
+
+    /**
+     * @param size   Maximum number of bytes the memory cache keeps.
+     * @param policy Decides which bitmaps are evicted when the cache is full. Use
+     *               {@link CachePolicy#W_TINY_LFU} to keep frequently shown images, like avatars,
+     *               while scrolling through long lists.
+     */
+    public static void initMemoryCache(int size, CachePolicy policy) {
         synchronized (sMemCacheLock) {
             if (sMemCache != null) {
                 try {
@@ -84,7 +174,9 @@ public abstract class BitmapDecoder extends Decodable {
                 } catch (IllegalStateException ignored) {
                 }
             }
-            sMemCache = new BitmapLruCache(size);
+            BitmapLruCache cache = new BitmapLruCache(size, policy);
+            cache.setEvictionPool(sPoolEvictedBitmaps ? sBitmapPool : null);
+            sMemCache = cache;
         }
     }
 
@@ -113,14 +205,191 @@ public abstract class BitmapDecoder extends Decodable {
         }
     }
 
+    @SuppressWarnings("UnusedDeclaration")
+    public static void initBitmapPool(Context context) {
+        initBitmapPool(getScreenByteCount(context));
+        MemoryTrimmer.register(context);
+    }
+
+    public static void initBitmapPool(int size) {
+        initBitmapPool(size, false);
+    }
+
+    /**
+     * Sets up a pool of bitmaps which decoding and scaling reuse instead of allocating new ones.
+     *
+     * @param size                Maximum number of bytes the pool keeps.
+     * @param poolEvictedBitmaps  Whether bitmaps evicted from the memory cache go into the pool.
+     *                            Enable it only if the application stops drawing a bitmap once it
+     *                            has been evicted, since its pixels will be overwritten.
+     */
+    public static void initBitmapPool(int size, boolean poolEvictedBitmaps) {
+        synchronized (sMemCacheLock) {
+            if (sBitmapPool != null) {
+                sBitmapPool.evictAll();
+            }
+            sBitmapPool = new BitmapPool(size);
+            sPoolEvictedBitmaps = poolEvictedBitmaps;
+            if (sMemCache != null) {
+                sMemCache.setEvictionPool(poolEvictedBitmaps ? sBitmapPool : null);
+            }
+        }
+    }
+
+    @SuppressWarnings("UnusedDeclaration")
+    public static void destroyBitmapPool() {
+        synchronized (sMemCacheLock) {
+            if (sBitmapPool != null) {
+                if (sMemCache != null) {
+                    sMemCache.setEvictionPool(null);
+                }
+                sBitmapPool.evictAll();
+                sBitmapPool = null;
+            }
+        }
+    }
+
+    /**
+     * Gives memory back in proportion to the given trim level. Caches and pools are trimmed to a
+     * fraction of their maximum sizes and refill as they are used again.
+     * <p>
+     * This is called automatically on API level 14 or higher once caches have been initialized
+     * with a {@link Context}. Otherwise it can be called from
+     * {@link android.app.Activity#onTrimMemory(int)} or {@link android.app.Activity#onLowMemory()}.
+     *
+     * @param level One of the TRIM_MEMORY_* constants of {@link ComponentCallbacks2}.
+     */
+    public static void trimMemory(int level) {
+        final float keep;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            keep = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            keep = 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            keep = 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            keep = 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            keep = 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            keep = 0.75f;
+        } else {
+            return;
+        }
+
+        BitmapLruCache cache = sMemCache;
+        if (cache != null) {
+            try {
+                cache.trimToSize((int) (cache.maxSize() * keep));
+            } catch (IllegalStateException ignored) {
+            }
+            if (keep <= 0.5f) {
+                cache.clearEvictedBitmaps();
+            }
+            if (keep == 0) {
+                cache.clearMetaCache();
+            }
+        }
+
+        EncodedBytesCache encodedCache = sEncodedCache;
+        if (encodedCache != null) {
+            encodedCache.trimToSize((int) (encodedCache.maxSize() * keep));
+        }
+
+        // Pooled bitmaps are only there to save allocations, so they go first.
+        BitmapPool pool = sBitmapPool;
+        if (pool != null) {
+            pool.trimToSize((int) (pool.maxSize() * keep * keep));
+        }
+
+        if (keep <= 0.5f) {
+            ResourcePool.clearPools();
+        }
+    }
+
+    /**
+     * Returns a cleared bitmap from the pool if possible, or creates a new one.
+     */
+    static Bitmap obtainBitmap(int width, int height, Config config) {
+        BitmapPool pool = sBitmapPool;
+        if (pool != null) {
+            Bitmap bitmap = pool.get(width, height, config);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Gives a bitmap nobody else refers to back to the pool, or recycles it.
+     */
+    static void recycleBitmap(Bitmap bitmap) {
+        BitmapPool pool = sBitmapPool;
+        if (pool == null || !pool.put(bitmap)) {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Keeps up to one screen worth of compressed image bytes in memory, which is usually many
+     * more images than the memory cache holds decoded.
+     */
+    public static void initEncodedCache(Context context) {
+        initEncodedCache(getScreenByteCount(context));
+        MemoryTrimmer.register(context);
+    }
+
+    /**
+     * Keeps compressed bytes of images loaded from streams, like the ones from
+     * {@link #from(Uri)}, so they can be decoded again without reading the disk cache or the
+     * network. Only images with ids which use the memory cache are kept.
+     *
+     * @param size Maximum number of bytes to keep.
+     */
+    public static void initEncodedCache(int size) {
+        synchronized (sMemCacheLock) {
+            if (sEncodedCache != null) {
+                sEncodedCache.evictAll();
+            }
+            sEncodedCache = new EncodedBytesCache(size);
+        }
+    }
+
+    @SuppressWarnings("UnusedDeclaration")
+    public static void destroyEncodedCache() {
+        synchronized (sMemCacheLock) {
+            if (sEncodedCache != null) {
+                sEncodedCache.evictAll();
+                sEncodedCache = null;
+            }
+        }
+    }
+
+    @SuppressWarnings("UnusedDeclaration")
+    public static void clearEncodedCache() {
+        EncodedBytesCache cache = sEncodedCache;
+        if (cache != null) {
+            cache.evictAll();
+        }
+    }
+
     @SuppressWarnings("UnusedDeclaration")
     public static void initDiskCache(Context context) {
         initDiskCache(context, DEFAULT_CACHE_SIZE);
     }
 
     public static void initDiskCache(Context context, long size) {
+        initDiskCache(context, size, DiskCacheLayout.FILE_PER_ENTRY);
+    }
+
+    /**
+     * @param layout {@link DiskCacheLayout#SEGMENTS} saves file system overhead when most cached
+     *               images are small, like thumbnails.
+     */
+    public static void initDiskCache(Context context, long size, DiskCacheLayout layout) {
         synchronized (sDiskCacheLock) {
-            sDiskCache = new DiskLruCache(context, "agu", size);
+            sDiskCache = new DiskLruCache(context, "agu", size, layout);
         }
     }
 
@@ -143,6 +412,100 @@ public abstract class BitmapDecoder extends Decodable {
         }
     }
 
+    /**
+     * Sets how loaders created afterwards download images. A loader can still be given its own
+     * with {@link #from(Uri, boolean, NetworkFetcher)}.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public static void setNetworkFetcher(@NonNull NetworkFetcher fetcher) {
+        sNetworkFetcher = fetcher;
+    }
+
+    @SuppressWarnings("UnusedDeclaration")
+    @NonNull
+    public static NetworkFetcher getNetworkFetcher() {
+        return sNetworkFetcher;
+    }
+
+    /**
+     * Downloads images of at least the given length over several connections at once, each
+     * asking for its own range of the image. This makes better use of links with a high latency.
+     * It only works if the server accepts ranges and sends a validator, and the disk cache or a
+     * temporary file has room for the whole image.
+     *
+     * @param segmentCount 1 to download every image over one connection, which is the default.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public static void setSegmentedDownload(int segmentCount, long minLength) {
+        sMinSegmentedDownloadLength = minLength;
+        sDownloadSegmentCount = segmentCount;
+    }
+
+    /**
+     * Lets network images which are framed be downloaded in a size close to their frame. It's used
+     * for images framed into a view of a fixed size, or with {@link #frame}, unless they have been
+     * scaled or cropped.
+     *
+     * @param resolver null not to rewrite urls.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public static void setUrlResolver(@Nullable UrlResolver resolver) {
+        sUrlResolver = resolver;
+    }
+
+    /**
+     * Keeps resized, cropped and framed bitmaps on disk, so decoding them again, even after the
+     * application restarts, skips decoding and resampling the full-size image. It works for any
+     * source which can be told apart across runs: uris and file paths. Bitmaps which are
+     * post-processed or framed over a background aren't kept, and neither are whole images at
+     * their original size.
+     * <p>
+     * Bitmaps up to {@value #DEFAULT_RAW_RENDITION_MAX_PIXELS} pixels, like thumbnails, are kept
+     * as raw pixels, which are copied into a bitmap from the pool without decoding. Larger
+     * opaque bitmaps are kept as JPEG and the others as PNG, which are compressed on a background
+     * thread and only kept while it keeps up.
+     *
+     * @param size Maximum number of bytes to keep.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public static void initRenditionCache(Context context, long size) {
+        initRenditionCache(context, size, DEFAULT_RAW_RENDITION_MAX_PIXELS);
+    }
+
+    /**
+     * @param maxRawPixels Bitmaps with up to this many pixels are kept as raw pixels. They take
+     *                     a lot more space than compressed ones, so this should stay small.
+     * @see #initRenditionCache(Context, long)
+     */
+    public static void initRenditionCache(Context context, long size, int maxRawPixels) {
+        synchronized (sDiskCacheLock) {
+            if (sRenditionCache != null) {
+                sRenditionCache.close();
+            }
+            sRenditionCache = new DiskLruCache(context, "agu-renditions", size);
+            sRawRenditionMaxPixels = maxRawPixels;
+        }
+    }
+
+    @SuppressWarnings("UnusedDeclaration")
+    public static void destroyRenditionCache() {
+        synchronized (sDiskCacheLock) {
+            if (sRenditionCache != null) {
+                sRenditionCache.close();
+                sRenditionCache = null;
+            }
+        }
+    }
+
+    @SuppressWarnings("UnusedDeclaration")
+    public static void clearRenditionCache() {
+        synchronized (sDiskCacheLock) {
+            if (sRenditionCache != null) {
+                sRenditionCache.clear();
+            }
+        }
+    }
+
     //
     // Transformations
     //
@@ -668,6 +1031,14 @@ public abstract class BitmapDecoder extends Decodable {
         return this;
     }
 
+    boolean hasPostProcessor() {
+        return mPostProcessor != null;
+    }
+
+    BitmapPostProcessor getPostProcessor() {
+        return mPostProcessor;
+    }
+
     protected Bitmap postProcess(Bitmap bitmap) {
         if (mPostProcessor != null) {
             Bitmap bitmap2 = mPostProcessor.process(bitmap);
@@ -722,11 +1093,24 @@ public abstract class BitmapDecoder extends Decodable {
     //
 
     public FramedDecoder frame(int frameWidth, int frameHeight, ImageView.ScaleType scaleType) {
-        return FramedDecoder.newInstance(this, frameWidth, frameHeight, scaleType);
+        return FramedDecoder.newInstance(resolveVariant(frameWidth, frameHeight, scaleType),
+                frameWidth, frameHeight, scaleType);
     }
 
     public FramedDecoder frame(int frameWidth, int frameHeight, FramingMethod framing) {
-        return framing.createFramedDecoder(this, frameWidth, frameHeight);
+        ImageView.ScaleType scaleType = (framing instanceof ScaleTypeFraming ?
+                ((ScaleTypeFraming) framing).scaleType() : null);
+        return framing.createFramedDecoder(resolveVariant(frameWidth, frameHeight, scaleType),
+                frameWidth, frameHeight);
+    }
+
+    /**
+     * @return The decoder of the variant of the image which the {@link UrlResolver} chooses for
+     * the frame, or this decoder.
+     */
+    BitmapDecoder resolveVariant(int frameWidth, int frameHeight,
+                                 @Nullable ImageView.ScaleType scaleType) {
+        return this;
     }
 
     //
@@ -789,6 +1173,23 @@ public abstract class BitmapDecoder extends Decodable {
         return from(context, uri, true);
     }
 
+    /**
+     * Downloads the image through the given fetcher instead of the one set with
+     * {@link #setNetworkFetcher(NetworkFetcher)}. Variants chosen by a {@link UrlResolver} are
+     * downloaded through it too.
+     *
+     * @throws IllegalArgumentException if the uri isn't an http, https or ftp one.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public static BitmapLoader from(@NonNull Uri uri, boolean useCache,
+                                    @NonNull NetworkFetcher fetcher) {
+        String scheme = uri.getScheme();
+        if (!"http".equals(scheme) && !"https".equals(scheme) && !"ftp".equals(scheme)) {
+            throw new IllegalArgumentException(MESSAGE_URI_NOT_DOWNLOADED);
+        }
+        return fromNetwork(uri, useCache, fetcher);
+    }
+
     public static BitmapLoader from(final Context context, @NonNull final Uri uri,
                                     boolean useCache) {
         String scheme = uri.getScheme();
@@ -842,40 +1243,8 @@ public abstract class BitmapDecoder extends Decodable {
                 }
             case "http":
             case "https":
-            case "ftp": {
-                String uriString = uri.toString();
-                BitmapLoader d = null;
-
-                synchronized (sDiskCacheLock) {
-                    if (useCache && sDiskCache != null) {
-                        InputStream in = sDiskCache.get(uriString);
-                        if (in != null) {
-                            d = new StreamBitmapLoader(in);
-                            d.mIsFromDiskCache = true;
-                        }
-                    }
-
-                    if (d == null) {
-                        StreamBitmapLoader sd = new StreamBitmapLoader(new LazyInputStream(new StreamOpener() {
-                            @Override
-                            public InputStream openInputStream() {
-                                try {
-                                    return new URL(uri.toString()).openStream();
-                                } catch (MalformedURLException e) {
-                                    throw new IllegalArgumentException(e);
-                                } catch (IOException e) {
-                                    throw new RuntimeException(e);
-                                }
-                            }
-                        }));
-                        if (useCache && sDiskCache != null) {
-                            sd.setCacheOutputStream(sDiskCache.getOutputStream(uriString));
-                        }
-                        d = sd;
-                    }
-                }
-                return d.id(uri).useMemoryCache(useCache);
-            }
+            case "ftp":
+                return fromNetwork(uri, useCache, null);
             default: {
                 if (context == null) {
                     throw new IllegalArgumentException(MESSAGE_URI_REQUIRES_CONTEXT);
@@ -897,6 +1266,51 @@ public abstract class BitmapDecoder extends Decodable {
         }
     }
 
+    /**
+     * @param fetcher The fetcher given for this loader, or null to use the global one.
+     */
+    static BitmapLoader fromNetwork(@NonNull Uri uri, boolean useCache,
+                                    @Nullable NetworkFetcher fetcher) {
+        String uriString = uri.toString();
+        BitmapLoader d = null;
+
+        EncodedBytesCache encodedCache = sEncodedCache;
+        if (useCache && encodedCache != null) {
+            byte[] bytes = encodedCache.get(uri);
+            if (bytes != null) {
+                d = new ByteArrayBitmapLoader(bytes, 0, bytes.length);
+                d.mEncodedDataSource = CacheSource.MEMORY_ENCODED;
+                d.mNetworkFetcher = fetcher;
+                return d.id(uri).useMemoryCache(true);
+            }
+        }
+
+        DiskLruCache diskCache = (useCache ? sDiskCache : null);
+        HttpCacheInfo staleInfo = null;
+        if (diskCache != null) {
+            CacheEntryHeader header = diskCache.getHeader(uriString);
+            if (header != null) {
+                HttpCacheInfo info = header.cacheInfo();
+                if (info == null || info.isFresh(System.currentTimeMillis())) {
+                    d = new CachedFileBitmapLoader(diskCache, uriString);
+                    d.mEncodedDataSource = CacheSource.DISK;
+                    d.mSourceVersion = (info != null ? info.versionTag() : null);
+                } else {
+                    staleInfo = info;
+                }
+            }
+        }
+
+        if (d == null) {
+            HttpStreamOpener opener = new HttpStreamOpener(uriString, diskCache, staleInfo,
+                    (fetcher != null ? fetcher : sNetworkFetcher));
+            opener.setSegmentedDownload(sDownloadSegmentCount, sMinSegmentedDownloadLength);
+            d = new StreamBitmapLoader(new LazyInputStream(opener));
+        }
+        d.mNetworkFetcher = fetcher;
+        return d.id(uri).useMemoryCache(useCache);
+    }
+
     @SuppressWarnings("UnusedDeclaration")
     public static BitmapDecoder from(@NonNull Bitmap bitmap) {
         return new BitmapTransformer(bitmap);
@@ -2,8 +2,11 @@ package rapid.decoder;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
+import android.content.ContentResolver;
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
 import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
@@ -14,12 +17,25 @@ import android.net.Uri;
 import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.widget.ImageView;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import rapid.decoder.binder.ViewBinder;
 import rapid.decoder.builtin.BuiltInDecoder;
+import rapid.decoder.cache.BitmapCacheKey;
+import rapid.decoder.cache.BitmapLruCache;
+import rapid.decoder.cache.BitmapPool;
 import rapid.decoder.cache.CacheSource;
+import rapid.decoder.cache.CachedFile;
+import rapid.decoder.cache.DiskLruCache;
+import rapid.decoder.cache.TransactionOutputStream;
 import rapid.decoder.frame.FramingMethod;
 
 import static rapid.decoder.cache.ResourcePool.*;
@@ -28,13 +44,94 @@ public abstract class BitmapLoader extends BitmapDecoder {
     @SuppressWarnings("UnusedDeclaration")
     public static final int SIZE_AUTO = 0;
 
+    /**
+     * Fetching an image over the network again costs data and battery on top of the time it
+     * took, and its latency varies a lot, so its measured cost is weighted up.
+     */
+    private static final int NETWORK_COST_FACTOR = 2;
+
+    private static final int RENDITION_JPEG_QUALITY = 95;
+    /**
+     * Renditions waiting to be compressed, each holding a copy of its bitmap. Renditions beyond
+     * these are dropped rather than letting the copies pile up.
+     */
+    private static final int MAX_PENDING_RENDITIONS = 4;
+
+    /**
+     * Compresses renditions which are too large to be stored raw, which takes much longer than
+     * decoding them did, so that decoding returns without waiting for it.
+     */
+    private static final ExecutorService sRenditionExecutor = new ThreadPoolExecutor(0, 1,
+            30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_PENDING_RENDITIONS));
+
+    /**
+     * A progressively decoded image is shown about this many times before it's complete, but not
+     * more often than every {@link #MIN_PROGRESS_UPDATE_ROWS} rows.
+     */
+    private static final int PROGRESS_UPDATE_COUNT = 8;
+    private static final int MIN_PROGRESS_UPDATE_ROWS = 16;
+
+    private static class CacheKeyProbe extends BitmapCacheKey {
+        void set(BitmapLoader loader) {
+            Rect region = loader.mRegion;
+            if (region != null && region.left == 0 && region.top == 0 &&
+                    region.right == loader.sourceWidth() && region.bottom == loader.sourceHeight()) {
+                region = null;
+            }
+
+            int flags = 0;
+            if (loader.mIsMutable) {
+                flags |= FLAG_MUTABLE;
+            }
+            if (loader.mScaleFilter) {
+                flags |= FLAG_FILTER;
+            }
+            if (loader.mShouldConvertToOpaqueOnScale) {
+                flags |= FLAG_OPAQUE;
+            }
+            if (loader.hasPostProcessor()) {
+                flags |= FLAG_POST_PROCESSED;
+            }
+
+            set(loader.mId, region, loader.width(), loader.height(),
+                    loader.mOptions.inPreferredConfig, flags);
+        }
+    }
+
+    private static final ThreadLocal<CacheKeyProbe> sCacheKeyProbe =
+            new ThreadLocal<CacheKeyProbe>() {
+                @Override
+                protected CacheKeyProbe initialValue() {
+                    return new CacheKeyProbe();
+                }
+            };
+
     protected Options mOptions;
     protected boolean mIsMutable;
     private boolean mScaleFilter = true;
     private boolean mUseBuiltInDecoder = false;
     private boolean mShouldConvertToOpaqueOnScale = false;
+    private boolean mProgressive;
+    private BuiltInDecoder.OnProgressListener mProgressListener;
+    /**
+     * The fetcher given for this loader with
+     * {@link BitmapDecoder#from(Uri, boolean, NetworkFetcher)}, or null.
+     */
+    NetworkFetcher mNetworkFetcher;
+    /**
+     * The version of a downloaded image, known if its entry in the disk cache is fresh, or null.
+     */
+    String mSourceVersion;
+    /**
+     * The loader of the original image if this one loads a variant chosen by a
+     * {@link UrlResolver}.
+     */
+    private BitmapLoader mOriginal;
     Object mId;
-    boolean mIsFromDiskCache;
+    /**
+     * Where the encoded image comes from, unless it is read from its original source.
+     */
+    CacheSource mEncodedDataSource = CacheSource.NOT_CACHED;
     protected CacheSource mCacheSource;
 
     private int mSourceWidth;
@@ -43,8 +140,13 @@ public abstract class BitmapLoader extends BitmapDecoder {
 
     // Transient variables
     private float mAdjustedDensityRatio;
+    private boolean mFraming;
     private float mAdjustedWidthRatio;
     private float mAdjustedHeightRatio;
+    /**
+     * The bitmap being decoded has been shown, so it must not be recycled or pooled.
+     */
+    private boolean mProgressShown;
 
     protected BitmapLoader() {
         mOptions = OPTIONS.obtain();
@@ -62,6 +164,11 @@ public abstract class BitmapLoader extends BitmapDecoder {
         mScaleFilter = other.mScaleFilter;
         mUseBuiltInDecoder = other.mUseBuiltInDecoder;
         mShouldConvertToOpaqueOnScale = other.mShouldConvertToOpaqueOnScale;
+        mProgressive = other.mProgressive;
+        mProgressListener = other.mProgressListener;
+        mNetworkFetcher = other.mNetworkFetcher;
+        mSourceVersion = other.mSourceVersion;
+        mOriginal = other.mOriginal;
 
         mSourceWidth = other.mSourceWidth;
         mSourceHeight = other.mSourceHeight;
@@ -78,10 +185,9 @@ public abstract class BitmapLoader extends BitmapDecoder {
 
     @Override
     public BitmapMeta getCachedMeta() {
-        if (isMemoryCacheEnabled() && mId != null && sMemCache != null) {
-            synchronized (sMemCacheLock) {
-                return sMemCache.getMeta(mId);
-            }
+        BitmapLruCache cache = sMemCache;
+        if (isMemoryCacheEnabled() && mId != null && cache != null) {
+            return cache.getMeta(mId);
         } else {
             return null;
         }
@@ -129,10 +235,23 @@ public abstract class BitmapLoader extends BitmapDecoder {
 
     @Override
     public Bitmap getCachedBitmap() {
-        synchronized (sMemCacheLock) {
-            if (sMemCache == null) return null;
-            return sMemCache.get(this);
-        }
+        BitmapLruCache cache = sMemCache;
+        if (cache == null || mId == null) return null;
+
+        // Without known bounds nothing of this image can be in the cache, since putting a bitmap
+        // also caches its meta. Don't decode bounds just to find that out.
+        if (mSourceWidth == 0 && getCachedMeta() == null) return null;
+
+        resolveTransformations();
+        CacheKeyProbe probe = sCacheKeyProbe.get();
+        probe.set(this);
+        return cache.get(probe);
+    }
+
+    private BitmapCacheKey createCacheKey() {
+        CacheKeyProbe probe = sCacheKeyProbe.get();
+        probe.set(this);
+        return new BitmapCacheKey(probe);
     }
 
     @Override
@@ -146,10 +265,33 @@ public abstract class BitmapLoader extends BitmapDecoder {
             }
         }
 
+        final long startTime = System.nanoTime();
+
+        if (memCacheEnabled) {
+            Bitmap bitmap = deriveFromCachedRendition(startTime);
+            if (bitmap != null) {
+                mCacheSource = CacheSource.MEMORY_DERIVED;
+                return bitmap;
+            }
+        }
+
+        final String renditionKey = (mFraming ? null : renditionKey());
+        if (renditionKey != null) {
+            Bitmap bitmap = decodeRendition(renditionKey);
+            if (bitmap != null) {
+                if (memCacheEnabled) {
+                    putRenditionInMemoryCache(bitmap, startTime);
+                }
+                mCacheSource = CacheSource.DISK_RENDITION;
+                return bitmap;
+            }
+        }
+
         // reset
 
         mOptions.mCancel = false;
         mAdjustedDensityRatio = 0;
+        mProgressShown = false;
 
         //
 
@@ -185,7 +327,7 @@ public abstract class BitmapLoader extends BitmapDecoder {
             if (newConfig == null) {
                 newConfig = Config.ARGB_8888;
             }
-            bitmap2 = Bitmap.createBitmap(newWidth, newHeight, newConfig);
+            bitmap2 = obtainBitmap(newWidth, newHeight, newConfig);
             Canvas canvas = CANVAS.obtain(bitmap2);
             Paint paint = (mScaleFilter ? PAINT.obtain(Paint.FILTER_BITMAP_FLAG) : null);
             if (Config.RGB_565.equals(newConfig) && !Config.RGB_565.equals(bitmap.getConfig())) {
@@ -200,13 +342,13 @@ public abstract class BitmapLoader extends BitmapDecoder {
             PAINT.recycle(paint);
             CANVAS.recycle(canvas);
 
-            bitmap.recycle();
+            recycleIntermediateBitmap(bitmap);
             bitmap2.setDensity(mOptions.inTargetDensity);
             bitmap = bitmap2;
         } else if (mShouldConvertToOpaqueOnScale) {
             Bitmap bitmap2 = new BitmapTransformer(bitmap).config(Config.RGB_565).decode();
             if (bitmap != bitmap2) {
-                bitmap.recycle();
+                recycleIntermediateBitmap(bitmap);
             }
             bitmap = bitmap2;
         }
@@ -215,23 +357,261 @@ public abstract class BitmapLoader extends BitmapDecoder {
         bitmap = postProcess(bitmap);
         if (bitmap == null) return null;
 
+        if (renditionKey != null) {
+            putRendition(renditionKey, bitmap);
+        }
         if (memCacheEnabled) {
-            synchronized (sMemCacheLock) {
-                if (sMemCache != null) {
-                    sMemCache.put(this, bitmap);
-                }
+            BitmapLruCache cache = sMemCache;
+            if (cache != null) {
+                cache.put(createCacheKey(), bitmap, sourceWidth(), sourceHeight(),
+                        decodingCost(System.nanoTime() - startTime));
             }
         }
 
-        mCacheSource = mIsFromDiskCache ? CacheSource.DISK : CacheSource.NOT_CACHED;
+        mCacheSource = mEncodedDataSource;
+        return bitmap;
+    }
+
+    /**
+     * Scales down or crops a larger bitmap of the same image in the memory cache, if there is one.
+     */
+    private Bitmap deriveFromCachedRendition(long startTime) {
+        BitmapLruCache cache = sMemCache;
+        if (cache == null || (mSourceWidth == 0 && getCachedMeta() == null)) return null;
+
+        resolveTransformations();
+        CacheKeyProbe probe = sCacheKeyProbe.get();
+        probe.set(this);
+
+        Rect rectSrc = RECT.obtain();
+        Bitmap rendition = cache.findRendition(probe, rectSrc);
+        if (rendition == null) {
+            RECT.recycle(rectSrc);
+            return null;
+        }
+
+        int width = probe.width();
+        int height = probe.height();
+        Config config = rendition.getConfig();
+        if (config == null) {
+            config = Config.ARGB_8888;
+        }
+        Bitmap bitmap = obtainBitmap(width, height, config);
+        Canvas canvas = CANVAS.obtain(bitmap);
+        Paint paint = (mScaleFilter ? PAINT.obtain(Paint.FILTER_BITMAP_FLAG) : null);
+        Rect rectDest = RECT.obtain(0, 0, width, height);
+        canvas.drawBitmap(rendition, rectSrc, rectDest, paint);
+        RECT.recycle(rectDest);
+        RECT.recycle(rectSrc);
+        PAINT.recycle(paint);
+        CANVAS.recycle(canvas);
+        bitmap.setDensity(rendition.getDensity());
+
+        bitmap = postProcess(bitmap);
+        if (bitmap == null) return null;
+
+        // Only as expensive as deriving it again while the rendition is alive.
+        putRenditionInMemoryCache(bitmap, startTime);
         return bitmap;
     }
 
+    private void putRenditionInMemoryCache(Bitmap bitmap, long startTime) {
+        BitmapLruCache cache = sMemCache;
+        if (cache == null) return;
+
+        long cost = Math.max(1, (System.nanoTime() - startTime) / 1000);
+        cache.put(createCacheKey(), bitmap, sourceWidth(), sourceHeight(),
+                (int) Math.min(Integer.MAX_VALUE, cost));
+    }
+
+    /**
+     * @return An id of the source which stays the same across runs as long as the image does, or
+     * null if renditions of the source can't be kept in the rendition cache.
+     */
+    @Nullable
+    protected String persistentId() {
+        if (!(mId instanceof Uri)) return null;
+
+        String scheme = ((Uri) mId).getScheme();
+        if ("http".equals(scheme) || "https".equals(scheme) || "ftp".equals(scheme)) {
+            // A stale image may have changed on the server, so it has to be revalidated first.
+            return (mSourceVersion != null ? mId + "#" + mSourceVersion : null);
+        } else if (ContentResolver.SCHEME_CONTENT.equals(scheme)) {
+            // Providers don't tell when their images change.
+            return null;
+        }
+        return mId.toString();
+    }
+
+    /**
+     * @return The key of the resolved output in the rendition cache, or null if it shouldn't be
+     * kept there. The whole image at its original size is left to the source.
+     */
+    private String renditionKey() {
+        String key = frameRenditionKey();
+        if (key == null) return null;
+
+        CacheKeyProbe probe = sCacheKeyProbe.get();
+        probe.set(this);
+        if (!probe.hasRegion() && probe.width() == sourceWidth() &&
+                probe.height() == sourceHeight()) {
+            return null;
+        }
+        return key;
+    }
+
+    /**
+     * Like {@link #renditionKey()}, but also when the output has the original size, since it is
+     * framed afterwards.
+     */
+    private String frameRenditionKey() {
+        if (sRenditionCache == null || !isMemoryCacheEnabled() || hasPostProcessor()) return null;
+
+        String id = persistentId();
+        if (id == null) return null;
+
+        resolveTransformations();
+        CacheKeyProbe probe = sCacheKeyProbe.get();
+        probe.set(this);
+
+        StringBuilder sb = new StringBuilder(id);
+        sb.append('\n').append(probe.width()).append('x').append(probe.height());
+        if (probe.hasRegion()) {
+            sb.append(" region=").append(probe.regionLeft()).append(',').append(probe.regionTop())
+                    .append(',').append(probe.regionRight()).append(',')
+                    .append(probe.regionBottom());
+        }
+        sb.append(" config=").append(probe.config()).append(" flags=").append(probe.flags());
+        return sb.toString();
+    }
+
+    private Bitmap decodeRendition(String key) {
+        DiskLruCache cache = sRenditionCache;
+        CachedFile file = (cache != null ? cache.getFile(key) : null);
+        if (file == null) return null;
+
+        Options opts = OPTIONS.obtain();
+        try {
+            // Raw pixels aren't recognized as an image format.
+            if (file.getHeader().mimeType() == null) {
+                Bitmap bitmap = RawBitmapCodec.decode(file.map());
+                if (bitmap != null) {
+                    return bitmap;
+                }
+            }
+
+            opts.inScaled = false;
+            opts.inPreferredConfig = mOptions.inPreferredConfig;
+            if (Build.VERSION.SDK_INT >= 11) {
+                opts.inMutable = mIsMutable;
+            }
+            // Not from the descriptor, which some versions of BitmapFactory rewind to the start
+            // of the file, before the header of the entry.
+            return BitmapFactory.decodeStream(new MappedInputStream(file.map()), null, opts);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            OPTIONS.recycle(opts);
+            file.close();
+        }
+    }
+
+    /**
+     * Stores raw renditions right away, and compresses the others on a background thread.
+     */
+    private static void putRendition(final String key, Bitmap bitmap) {
+        final DiskLruCache cache = sRenditionCache;
+        if (cache == null) return;
+
+        if ((long) bitmap.getWidth() * bitmap.getHeight() <= sRawRenditionMaxPixels &&
+                putRawRendition(cache, key, bitmap)) {
+            return;
+        }
+
+        // The caller may draw into or recycle the bitmap while it's being compressed.
+        Config config = bitmap.getConfig();
+        final Bitmap copy = (config != null ? bitmap.copy(config, false) : null);
+        if (copy == null) return;
+        try {
+            sRenditionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // Not into a cache which has been closed meanwhile.
+                        if (sRenditionCache == cache) {
+                            putCompressedRendition(cache, key, copy);
+                        }
+                    } finally {
+                        copy.recycle();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            copy.recycle();
+        }
+    }
+
+    /**
+     * @return false if the config of the bitmap can't be stored raw.
+     */
+    private static boolean putRawRendition(DiskLruCache cache, String key, Bitmap bitmap) {
+        TransactionOutputStream out = cache.getOutputStream(key);
+        // It's being written already.
+        if (out == null) return true;
+
+        try {
+            if (RawBitmapCodec.encode(bitmap, out)) {
+                out.close();
+                return true;
+            }
+            out.rollback();
+        } catch (IOException e) {
+            try {
+                out.rollback();
+            } catch (IOException ignored) {
+            }
+        }
+        return false;
+    }
+
+    private static void putCompressedRendition(DiskLruCache cache, String key, Bitmap bitmap) {
+        TransactionOutputStream out = cache.getOutputStream(key);
+        if (out == null) return;
+
+        try {
+            if (bitmap.hasAlpha()) {
+                bitmap.compress(CompressFormat.PNG, 100, out);
+            } else {
+                bitmap.compress(CompressFormat.JPEG, RENDITION_JPEG_QUALITY, out);
+            }
+            out.close();
+        } catch (IOException e) {
+            try {
+                out.rollback();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
     @Override
     public boolean isMemoryCacheEnabled() {
         return mId != null && super.isMemoryCacheEnabled();
     }
 
+    /**
+     * @return How expensive it would be to produce the bitmap again, in microseconds.
+     */
+    private int decodingCost(long elapsedNanos) {
+        long cost = Math.max(1, elapsedNanos / 1000);
+        if (mEncodedDataSource == CacheSource.NOT_CACHED && mId instanceof Uri) {
+            String scheme = ((Uri) mId).getScheme();
+            if ("http".equals(scheme) || "https".equals(scheme)) {
+                cost *= NETWORK_COST_FACTOR;
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, cost);
+    }
+
     private int calculateInSampleSizeByRatio() {
         int sampleSize = 1;
         while (mAdjustedWidthRatio <= 0.5f && mAdjustedHeightRatio <= 0.5f) {
@@ -244,10 +624,7 @@ public abstract class BitmapLoader extends BitmapDecoder {
     }
 
     private Bitmap decodeDontResizeButSample(int targetWidth, int targetHeight) {
-        boolean memCacheEnabled = isMemoryCacheEnabled();
-        synchronized (sMemCacheLock) {
-            memCacheEnabled &= (sMemCache != null);
-        }
+        boolean memCacheEnabled = isMemoryCacheEnabled() && sMemCache != null;
         if (memCacheEnabled) {
             return decode();
         }
@@ -257,10 +634,25 @@ public abstract class BitmapLoader extends BitmapDecoder {
                 targetWidth, targetHeight);
 
         Bitmap bitmap = executeDecoding();
-        mCacheSource = mIsFromDiskCache ? CacheSource.DISK : CacheSource.NOT_CACHED;
+        mCacheSource = mEncodedDataSource;
         return bitmap;
     }
 
+    private void recycleIntermediateBitmap(Bitmap bitmap) {
+        if (!mProgressShown) {
+            recycleBitmap(bitmap);
+        }
+    }
+
+    /**
+     * Only baseline JPEGs can be shown while they are decoded, by the built-in decoder.
+     */
+    private boolean shouldDecodeProgressively() {
+        if (!mProgressive || getOnProgressListener() == null || hasPostProcessor()) return false;
+        decodeBounds();
+        return "image/jpeg".equals(mOptions.outMimeType);
+    }
+
     @SuppressLint("NewApi")
     protected Bitmap executeDecoding() {
         final boolean regional = mRegion != null &&
@@ -268,6 +660,7 @@ public abstract class BitmapLoader extends BitmapDecoder {
                         mRegion.width() == sourceWidth() && mRegion.height() == sourceHeight());
         final boolean useBuiltInDecoder =
                 this.mUseBuiltInDecoder ||
+                        shouldDecodeProgressively() ||
                         (regional && Build.VERSION.SDK_INT < 10) ||
                         (mIsMutable && (Build.VERSION.SDK_INT < 11 || regional)) ||
                         (mOptions.inSampleSize > 1 && !mScaleFilter);
@@ -275,6 +668,9 @@ public abstract class BitmapLoader extends BitmapDecoder {
         if (useBuiltInDecoder || regional) {
             decodeBounds();
         }
+        // Bounds have to be known before the stream is rewound for the actual decoding.
+        final Bitmap reusableBitmap = (useBuiltInDecoder || regional ? null :
+                obtainReusableBitmap());
         onDecodingStarted(useBuiltInDecoder);
 
         if (useBuiltInDecoder) {
@@ -291,12 +687,81 @@ public abstract class BitmapLoader extends BitmapDecoder {
         } else {
             if (regional) {
                 return decodeRegional(mOptions, mRegion);
+            } else if (reusableBitmap != null) {
+                return decodeInto(reusableBitmap);
             } else {
                 return decode(mOptions);
             }
         }
     }
 
+    /**
+     * Picks a bitmap from the pool which the image can be decoded into by
+     * {@link Options#inBitmap}, or returns null if there is none.
+     */
+    private Bitmap obtainReusableBitmap() {
+        final BitmapPool pool = sBitmapPool;
+        if (pool == null || pool.size() == 0 || Build.VERSION.SDK_INT < 11) return null;
+
+        // A bitmap which doesn't fit makes the decoding fail, and it has to be retried without.
+        if (!canRetryDecoding()) return null;
+
+        final int sampleSize = Math.max(1, mOptions.inSampleSize);
+        final float densityScale = (mOptions.inScaled && mOptions.inDensity != 0 &&
+                mOptions.inTargetDensity != 0 ?
+                (float) mOptions.inTargetDensity / mOptions.inDensity : 1);
+        if (Build.VERSION.SDK_INT < 19) {
+            // Before KitKat only JPEG and PNG can be decoded into an existing bitmap, and only
+            // without sampling or scaling.
+            if (sampleSize != 1 || densityScale != 1) return null;
+            decodeBounds();
+            if (!"image/jpeg".equals(mOptions.outMimeType) &&
+                    !"image/png".equals(mOptions.outMimeType)) {
+                return null;
+            }
+        }
+
+        // BitmapFactory scales the sampled size by the densities the same way.
+        final int width = (int) ((sourceWidth() + sampleSize - 1) / sampleSize * densityScale +
+                0.5f);
+        final int height = (int) ((sourceHeight() + sampleSize - 1) / sampleSize * densityScale +
+                0.5f);
+        return pool.getDirty(width, height, mOptions.inPreferredConfig);
+    }
+
+    @SuppressLint("NewApi")
+    private Bitmap decodeInto(Bitmap reusableBitmap) {
+        mOptions.inBitmap = reusableBitmap;
+        Bitmap bitmap;
+        try {
+            bitmap = decode(mOptions);
+        } catch (IllegalArgumentException e) {
+            bitmap = null;
+        } finally {
+            mOptions.inBitmap = null;
+        }
+
+        if (bitmap != reusableBitmap) {
+            // It has never been handed out, so it can be reused by the next decoding.
+            final BitmapPool pool = sBitmapPool;
+            if (pool == null || !pool.put(reusableBitmap)) {
+                reusableBitmap.recycle();
+            }
+            if (bitmap == null && !mOptions.mCancel && canRetryDecoding()) {
+                bitmap = decode(mOptions);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns whether {@link #decode(Options)} can be called once more after a failed attempt.
+     * Loaders reading from a stream which can't be rewound should return false.
+     */
+    protected boolean canRetryDecoding() {
+        return true;
+    }
+
     private Bitmap decodeInMemory(TwiceReadableInputStream in) {
         Bitmap bitmap = BitmapLoader.from(in).scaleBy(mRatioWidth, mRatioHeight).decode();
         if (bitmap == null) return null;
@@ -373,6 +838,18 @@ public abstract class BitmapLoader extends BitmapDecoder {
         final BuiltInDecoder d = new BuiltInDecoder(in);
         d.setRegion(mRegion);
         d.setUseFilter(mScaleFilter);
+        final BuiltInDecoder.OnProgressListener progressListener = getOnProgressListener();
+        if (mProgressive && progressListener != null) {
+            final int sampleSize = Math.max(1, mOptions.inSampleSize);
+            final int height = (regionHeight() + sampleSize - 1) / sampleSize;
+            d.setOnProgressListener(new BuiltInDecoder.OnProgressListener() {
+                @Override
+                public void onProgress(Bitmap bitmap, int decodedRows) {
+                    mProgressShown = true;
+                    progressListener.onProgress(bitmap, decodedRows);
+                }
+            }, Math.max(MIN_PROGRESS_UPDATE_ROWS, height / PROGRESS_UPDATE_COUNT));
+        }
 
         final Bitmap bitmap = d.decode(mOptions);
         d.close();
@@ -403,7 +880,25 @@ public abstract class BitmapLoader extends BitmapDecoder {
     public Bitmap createAndDraw(int width, int height, @NonNull Rect rectDest,
                                 @Nullable Drawable background) {
 
-        Bitmap bitmap = decodeDontResizeButSample(rectDest.width(), rectDest.height());
+        String renditionKey = (background == null ? frameRenditionKey() : null);
+        if (renditionKey != null) {
+            renditionKey += " frame=" + width + "x" + height + " dest=" + rectDest.left + "," +
+                    rectDest.top + "," + rectDest.right + "," + rectDest.bottom;
+            Bitmap bitmap = decodeRendition(renditionKey);
+            if (bitmap != null) {
+                mCacheSource = CacheSource.DISK_RENDITION;
+                return bitmap;
+            }
+        }
+
+        // Only the framed bitmap is worth keeping in the rendition cache.
+        mFraming = (renditionKey != null);
+        Bitmap bitmap;
+        try {
+            bitmap = decodeDontResizeButSample(rectDest.width(), rectDest.height());
+        } finally {
+            mFraming = false;
+        }
         if (bitmap == null) return null;
 
         Bitmap bitmap2;
@@ -414,7 +909,7 @@ public abstract class BitmapLoader extends BitmapDecoder {
             bitmap2 = Bitmap.createScaledBitmap(bitmap, width, height, mScaleFilter);
         } else {
             Config config = (mShouldConvertToOpaqueOnScale ? Config.RGB_565 : bitmap.getConfig());
-            bitmap2 = Bitmap.createBitmap(width, height, config);
+            bitmap2 = obtainBitmap(width, height, config);
             Canvas cv = CANVAS.obtain(bitmap2);
             if (background != null) {
                 background.setBounds(0, 0, width, height);
@@ -428,17 +923,85 @@ public abstract class BitmapLoader extends BitmapDecoder {
 
         // Don't recycle it if memory cache is enabled because it could be from the cache.
         if (bitmap != bitmap2 && !isMemoryCacheEnabled()) {
-            bitmap.recycle();
+            recycleIntermediateBitmap(bitmap);
+        }
+        if (renditionKey != null) {
+            putRendition(renditionKey, bitmap2);
         }
         return bitmap2;
     }
 
+    @Override
+    BitmapDecoder resolveVariant(int frameWidth, int frameHeight,
+                                 @Nullable ImageView.ScaleType scaleType) {
+        UrlResolver resolver = sUrlResolver;
+        if (resolver == null || !(mId instanceof Uri) ||
+                (mTransformations != null && !mTransformations.isEmpty())) {
+            return this;
+        }
+        String scheme = ((Uri) mId).getScheme();
+        if (!"http".equals(scheme) && !"https".equals(scheme)) return this;
+
+        String url = mId.toString();
+        String variantUrl = resolver.resolve(url, frameWidth, frameHeight, scaleType);
+        if (variantUrl == null || variantUrl.equals(url)) return this;
+
+        BitmapLoader variant = fromNetwork(Uri.parse(variantUrl), super.isMemoryCacheEnabled(),
+                mNetworkFetcher);
+        OPTIONS.recycle(variant.mOptions);
+        variant.mOptions = CloneUtils.clone(mOptions);
+        // Bounds of the original don't apply to the variant.
+        variant.mOptions.outWidth = variant.mOptions.outHeight = 0;
+        variant.mOptions.outMimeType = null;
+        variant.mIsMutable = mIsMutable;
+        variant.mScaleFilter = mScaleFilter;
+        variant.mUseBuiltInDecoder = mUseBuiltInDecoder;
+        variant.mShouldConvertToOpaqueOnScale = mShouldConvertToOpaqueOnScale;
+        variant.mProgressive = mProgressive;
+        variant.mProgressListener = mProgressListener;
+        variant.mOriginal = this;
+        variant.postProcessor(getPostProcessor());
+        return variant;
+    }
+
     @Override
     public BitmapLoader useBuiltInDecoder(boolean force) {
         this.mUseBuiltInDecoder = force;
         return this;
     }
 
+    /**
+     * Shows a baseline JPEG in {@link #into(ViewBinder)} while it is still being downloaded and
+     * decoded, more of it each time. The bitmap being decoded is shown as it is, so this doesn't
+     * take any extra memory. It makes the built-in decoder decode the image.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public BitmapLoader progressive(boolean progressive) {
+        mProgressive = progressive;
+        return this;
+    }
+
+    boolean isProgressive() {
+        return mProgressive;
+    }
+
+    /**
+     * @param listener Is called on the decoding thread.
+     */
+    void setOnProgressListener(BuiltInDecoder.OnProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /**
+     * A variant may have been chosen before the listener was set on the original loader.
+     */
+    private BuiltInDecoder.OnProgressListener getOnProgressListener() {
+        if (mProgressListener == null && mOriginal != null) {
+            return mOriginal.getOnProgressListener();
+        }
+        return mProgressListener;
+    }
+
     @Override
     public BitmapLoader config(Config config) {
         mOptions.inPreferredConfig = config;
@@ -564,6 +1127,7 @@ public abstract class BitmapLoader extends BitmapDecoder {
         mIsMutable = false;
         mScaleFilter = true;
         mUseBuiltInDecoder = false;
+        mProgressive = false;
         return this;
     }
 }
@@ -0,0 +1,110 @@
+package rapid.decoder;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapFactory.Options;
+import android.graphics.BitmapRegionDecoder;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import rapid.decoder.cache.CachedFile;
+import rapid.decoder.cache.DiskLruCache;
+
+/**
+ * Decodes an entry of the disk cache straight from its file, mapped into memory, so the image is
+ * never copied onto the Java heap. The file is opened only for as long as it takes to map it:
+ * entries are never overwritten in place, so the mapping stays valid after the file is closed,
+ * and nothing is held open while the loader waits in a queue or is served from the memory cache.
+ */
+class CachedFileBitmapLoader extends BitmapLoader {
+    private final DiskLruCache mCache;
+    private final String mKey;
+
+    /**
+     * @param key The key the file is cached under. Loaders for the same key are equal, so that
+     *            identical requests can share one decoding.
+     */
+    public CachedFileBitmapLoader(DiskLruCache cache, String key) {
+        mCache = cache;
+        mKey = key;
+    }
+
+    protected CachedFileBitmapLoader(CachedFileBitmapLoader other) {
+        super(other);
+        mCache = other.mCache;
+        mKey = other.mKey;
+    }
+
+    /**
+     * @return The payload of the entry, or null if it has been evicted since the loader was
+     * created.
+     */
+    private ByteBuffer map() {
+        CachedFile file = mCache.getFile(mKey);
+        if (file == null) return null;
+
+        try {
+            return file.map();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            file.close();
+        }
+    }
+
+    @Override
+    protected Bitmap decode(Options opts) {
+        // Decoding from the descriptor would rely on its position, which some versions of
+        // BitmapFactory reset to the start of the file, before the header of the entry.
+        ByteBuffer buffer = map();
+        return (buffer == null ? null :
+                BitmapFactory.decodeStream(new MappedInputStream(buffer), null, opts));
+    }
+
+    @Override
+    protected InputStream openInputStream() {
+        ByteBuffer buffer = map();
+        return (buffer == null ? null : new MappedInputStream(buffer));
+    }
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+    @Override
+    protected BitmapRegionDecoder createBitmapRegionDecoder() {
+        ByteBuffer buffer = map();
+        if (buffer == null) return null;
+
+        try {
+            return BitmapRegionDecoder.newInstance(new MappedInputStream(buffer), false);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @NonNull
+    @Override
+    public BitmapLoader fork() {
+        return new CachedFileBitmapLoader(this);
+    }
+
+    @Override
+    public int hashCode() {
+        if (mHashCode == 0) {
+            mHashCode = super.hashCode() + 31 * mKey.hashCode();
+        }
+        return mHashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof CachedFileBitmapLoader) || !super.equals(o)) return false;
+
+        final CachedFileBitmapLoader cfd = (CachedFileBitmapLoader) o;
+        return mKey.equals(cfd.mKey);
+    }
+}
@@ -23,6 +23,60 @@ public abstract class Decodable implements BitmapMeta {
         void onCancel();
     }
 
+    /**
+     * Binds the decoded bitmap, and also the bitmap being decoded if the image is decoded
+     * progressively.
+     */
+    private static class BinderListener implements OnBitmapDecodedListener,
+            BackgroundTask.OnPartialBitmapListener {
+
+        private final ViewBinder mBinder;
+        private final OnBitmapDecodedListener mListener;
+        private Bitmap mPartialBitmap;
+
+        BinderListener(ViewBinder binder, OnBitmapDecodedListener listener) {
+            mBinder = binder;
+            mListener = listener;
+        }
+
+        @Override
+        public void onPartialBitmap(Bitmap bitmap) {
+            if (bitmap != mPartialBitmap) {
+                mPartialBitmap = bitmap;
+                mBinder.bind(bitmap, true);
+            } else {
+                View v = mBinder.getView();
+                if (v != null) {
+                    v.invalidate();
+                }
+            }
+        }
+
+        @Override
+        public void onBitmapDecoded(@Nullable Bitmap bitmap, @Nullable CacheSource cacheSource) {
+            if (bitmap == null) {
+                mBinder.showErrorImage();
+                if (mListener != null) {
+                    mListener.onBitmapDecoded(null, null);
+                }
+            } else {
+                // Don't fade in again over the partially decoded image.
+                mBinder.bind(bitmap, mPartialBitmap == null);
+                if (mListener != null) {
+                    mListener.onBitmapDecoded(bitmap, cacheSource);
+                }
+            }
+        }
+
+        @Override
+        public void onCancel() {
+            mBinder.recycle();
+            if (mListener != null) {
+                mListener.onCancel();
+            }
+        }
+    }
+
     private boolean mIsMemoryCacheEnabled = true;
 
     public void into(final ViewBinder binder) {
@@ -73,31 +127,7 @@ public abstract class Decodable implements BitmapMeta {
         }
 
         task.setDecodable(this);
-        task.setOnBitmapDecodedListener(new OnBitmapDecodedListener() {
-            @Override
-            public void onBitmapDecoded(@Nullable Bitmap bitmap,
-                                        @Nullable CacheSource cacheSource) {
-                if (bitmap == null) {
-                    binder.showErrorImage();
-                    if (listener != null) {
-                        listener.onBitmapDecoded(null, null);
-                    }
-                } else {
-                    binder.bind(bitmap, true);
-                    if (listener != null) {
-                        listener.onBitmapDecoded(bitmap, cacheSource);
-                    }
-                }
-            }
-
-            @Override
-            public void onCancel() {
-                binder.recycle();
-                if (listener != null) {
-                    listener.onCancel();
-                }
-            }
-        });
+        task.setOnBitmapDecodedListener(new BinderListener(binder, listener));
         task.setFrameBuilder(frameBuilder);
         task.start();
     }
@@ -0,0 +1,130 @@
+package rapid.decoder;
+
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import rapid.decoder.builtin.BuiltInDecoder;
+import rapid.decoder.cache.CacheSource;
+
+/**
+ * Decodes an image once for all {@link BackgroundTask}s which are waiting for it at the same
+ * time, like list rows which show the same avatar. Flights are keyed by what they decode, which
+ * is compared the same way as keys of the memory cache. Only used on the main thread.
+ * <p>
+ * Decoders without a stable identity, like ones reading a stream or an array, may compare equal
+ * while they decode different images, so each of their requests gets a flight of its own.
+ */
+class DecodeFlight extends AsyncTask<Object, Object, BackgroundTask.Result> {
+    private static HashMap<Object, DecodeFlight> sFlights;
+
+    private final Object mKey;
+    private final Decodable mDecodable;
+    private final ViewFrameBuilder mFrameBuilder;
+    private final ArrayList<BackgroundTask> mWaiters = new ArrayList<BackgroundTask>(1);
+
+    private DecodeFlight(Object key, BackgroundTask task) {
+        mKey = key;
+        mDecodable = task.getDecodable();
+        mFrameBuilder = task.getFrameBuilder();
+        if (mDecodable instanceof BitmapLoader && ((BitmapLoader) mDecodable).isProgressive()) {
+            ((BitmapLoader) mDecodable).setOnProgressListener(
+                    new BuiltInDecoder.OnProgressListener() {
+                        @Override
+                        public void onProgress(Bitmap bitmap, int decodedRows) {
+                            publishProgress(bitmap);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Lets the task wait for the flight of the key, which is started if there is none.
+     *
+     * @param key null to start a flight which no other task can join.
+     */
+    static DecodeFlight join(Object key, BackgroundTask task) {
+        if (key == null) {
+            DecodeFlight flight = new DecodeFlight(null, task);
+            flight.mWaiters.add(task);
+            flight.start();
+            return flight;
+        }
+        if (sFlights == null) {
+            sFlights = new HashMap<Object, DecodeFlight>();
+        }
+        DecodeFlight flight = sFlights.get(key);
+        if (flight == null) {
+            flight = new DecodeFlight(key, task);
+            sFlights.put(key, flight);
+            flight.mWaiters.add(task);
+            flight.start();
+        } else {
+            flight.mWaiters.add(task);
+        }
+        return flight;
+    }
+
+    /**
+     * Cancels the flight once no task is waiting for it anymore.
+     */
+    void leave(BackgroundTask task) {
+        mWaiters.remove(task);
+        if (mWaiters.isEmpty()) {
+            remove();
+            cancel(false);
+            mDecodable.cancel();
+        }
+    }
+
+    private void remove() {
+        if (mKey != null && sFlights.get(mKey) == this) {
+            sFlights.remove(mKey);
+        }
+    }
+
+    @Override
+    protected BackgroundTask.Result doInBackground(Object... params) {
+        Decodable d = null;
+        if (mFrameBuilder != null) {
+            d = mFrameBuilder.getFramedDecoder(false);
+        }
+        if (d == null) {
+            d = mDecodable;
+        }
+
+        Bitmap bitmap = d.decode();
+        if (bitmap == null || isCancelled()) return null;
+
+        CacheSource cacheSource = d.cacheSource();
+        return new BackgroundTask.Result(bitmap, cacheSource);
+    }
+
+    @Override
+    protected void onProgressUpdate(Object... values) {
+        for (BackgroundTask task : mWaiters.toArray(new BackgroundTask[mWaiters.size()])) {
+            task.onPartialBitmap((Bitmap) values[0]);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(BackgroundTask.Result result) {
+        remove();
+        BackgroundTask[] waiters = mWaiters.toArray(new BackgroundTask[mWaiters.size()]);
+        mWaiters.clear();
+        for (BackgroundTask task : waiters) {
+            task.onFlightFinished(result);
+        }
+    }
+
+    private void start() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            execute();
+        }
+    }
+}
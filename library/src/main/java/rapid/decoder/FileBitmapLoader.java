@@ -8,6 +8,7 @@ import android.graphics.BitmapRegionDecoder;
 import android.os.Build;
 import android.support.annotation.NonNull;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -49,6 +50,18 @@ class FileBitmapLoader extends BitmapLoader {
 		}
 	}
 
+	/**
+	 * Changes along with the file, so renditions of an older version are never used.
+	 */
+	@Override
+	protected String persistentId() {
+		File file = new File((String) mId);
+		long lastModified = file.lastModified();
+		if (lastModified == 0) return null;
+
+		return "file://" + file.getAbsolutePath() + "#" + lastModified + "," + file.length();
+	}
+
 	@NonNull
     @Override
 	public BitmapLoader fork() {
@@ -30,6 +30,11 @@ class FileDescriptorBitmapLoader extends BitmapLoader {
 		return BitmapFactory.decodeFileDescriptor(fd, null, opts);
 	}
 
+	@Override
+	protected boolean canRetryDecoding() {
+		return false;
+	}
+
 	@Override
 	protected InputStream openInputStream() {
 		return new FileInputStream(fd);
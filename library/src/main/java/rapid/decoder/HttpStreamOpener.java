@@ -0,0 +1,684 @@
+package rapid.decoder;
+
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import rapid.decoder.cache.CachedFile;
+import rapid.decoder.cache.DiskLruCache;
+import rapid.decoder.cache.HttpCacheInfo;
+import rapid.decoder.cache.TransactionOutputStream;
+
+/**
+ * Downloads an image and writes it to the disk cache along with its validators and freshness.
+ * <p>
+ * If the validators of a stale entry are given, the request is made conditional. A 304 Not
+ * Modified answer reuses the entry and stores its new freshness, so the image isn't transferred
+ * again. The stale entry is also used if the server can't be reached. It is only opened then, and
+ * closed as soon as it has been mapped.
+ * <p>
+ * A download which is cancelled or fails halfway is kept in the cache as a partial entry if the
+ * server sent a validator and the length of the image. The next attempt asks only for the rest
+ * with a Range request, guarded by If-Range so a changed image is sent whole again.
+ * <p>
+ * Large images can be downloaded over several connections at once, each asking for its own range
+ * of the image. The ranges are put together in a spill file, which is copied into the cache and
+ * handed to the decoder as a whole.
+ * <p>
+ * Connections are opened by a {@link NetworkFetcher}.
+ */
+class HttpStreamOpener implements StreamOpener, StreamOpener.Cancelable {
+    /**
+     * When the stream is closed before its end, up to this many remaining bytes are still read
+     * to complete the cache entry. Decoders often stop short of the end of an image.
+     */
+    private static final int MAX_DRAIN_LENGTH = 16 * 1024;
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    /**
+     * Downloads all segments of segmented downloads but the first, which is read from the
+     * response to the original request, and does the network and disk work of cancelling, which
+     * mustn't happen on the main thread. Each of them blocks on its connection.
+     */
+    private static final ExecutorService sExecutor = new ThreadPoolExecutor(0,
+            Integer.MAX_VALUE, 30L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+
+    private final String mUrl;
+    private final DiskLruCache mCache;
+    private HttpCacheInfo mStaleInfo;
+    private final NetworkFetcher mFetcher;
+    private int mSegmentCount = 1;
+    private long mMinSegmentedLength;
+    /**
+     * Connections made while the stream is being opened, which {@link #cancel()} disconnects.
+     * Guarded by this, like {@link #mPendingSegments} and {@link #mCancelled}.
+     */
+    private final ArrayList<HttpURLConnection> mPendingConnections =
+            new ArrayList<HttpURLConnection>();
+    /**
+     * Segments being downloaded, which {@link #cancel()} cancels so that waiting for them ends
+     * even while their connections are still being torn down.
+     */
+    private final ArrayList<Future<Void>> mPendingSegments = new ArrayList<Future<Void>>();
+    private boolean mCancelled;
+
+    /**
+     * @param cache     The disk cache to write the response to, or null.
+     * @param staleInfo The validators of the url's entry in the cache if it has to be
+     *                  revalidated, or null.
+     */
+    public HttpStreamOpener(String url, @Nullable DiskLruCache cache,
+                            @Nullable HttpCacheInfo staleInfo, @NonNull NetworkFetcher fetcher) {
+        mUrl = url;
+        mCache = cache;
+        mStaleInfo = (cache != null ? staleInfo : null);
+        mFetcher = fetcher;
+    }
+
+    /**
+     * Downloads images of at least the given length over the given number of connections at
+     * once, if the server accepts ranges and the image has a validator.
+     *
+     * @param segmentCount 1 to download everything over one connection.
+     */
+    public void setSegmentedDownload(int segmentCount, long minLength) {
+        mSegmentCount = Math.max(1, segmentCount);
+        mMinSegmentedLength = Math.max(1, minLength);
+    }
+
+    @Nullable
+    @Override
+    public InputStream openInputStream() {
+        synchronized (this) {
+            mCancelled = false;
+        }
+        try {
+            return open();
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        } catch (IOException e) {
+            if (isCancelled()) return null;
+            try {
+                ByteBuffer payload = mapStaleEntry();
+                if (payload != null) {
+                    return new MappedInputStream(payload);
+                }
+            } catch (IOException ignored) {
+            }
+            throw new RuntimeException(e);
+        } finally {
+            synchronized (this) {
+                mPendingConnections.clear();
+                mPendingSegments.clear();
+            }
+        }
+    }
+
+    /**
+     * Stops opening the stream by disconnecting every connection of the download, so that even a
+     * download over several connections stops as soon as possible.
+     */
+    @Override
+    public void cancel() {
+        HttpURLConnection[] connections;
+        synchronized (this) {
+            mCancelled = true;
+            connections = mPendingConnections.toArray(
+                    new HttpURLConnection[mPendingConnections.size()]);
+            mPendingConnections.clear();
+            for (Future<Void> segment : mPendingSegments) {
+                segment.cancel(true);
+            }
+            mPendingSegments.clear();
+        }
+
+        // Disconnecting may block until a read of the connection returns, and this is usually
+        // called on the main thread.
+        for (final HttpURLConnection connection : connections) {
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    connection.disconnect();
+                }
+            });
+        }
+    }
+
+    private synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    private URLConnection openConnection(NetworkFetcher fetcher) throws IOException {
+        URLConnection connection = fetcher.openConnection(mUrl);
+        // Ranges of a transparently compressed body wouldn't line up with the cached bytes.
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        if (connection instanceof HttpURLConnection) {
+            synchronized (this) {
+                if (mCancelled) {
+                    throw new InterruptedIOException();
+                }
+                mPendingConnections.add((HttpURLConnection) connection);
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * @return The payload of the stale entry, or null if there is none or it has been evicted
+     * meanwhile.
+     */
+    private ByteBuffer mapStaleEntry() throws IOException {
+        CachedFile file = (mStaleInfo != null ? mCache.getFile(mUrl) : null);
+        if (file == null) return null;
+
+        try {
+            return file.map();
+        } finally {
+            // The mapping stays valid.
+            file.close();
+        }
+    }
+
+    private InputStream open() throws IOException {
+        long requestTime = System.currentTimeMillis();
+        NetworkFetcher fetcher = mFetcher;
+        URLConnection connection = openConnection(fetcher);
+        HttpCacheInfo staleInfo = mStaleInfo;
+        if (staleInfo != null) {
+            staleInfo.addConditions(connection);
+        }
+
+        CachedFile partialFile = (staleInfo == null && mCache != null ?
+                mCache.getPartialFile(mUrl) : null);
+        if (partialFile != null) {
+            try {
+                HttpCacheInfo partialInfo = partialFile.getHeader().cacheInfo();
+                if (connection instanceof HttpURLConnection &&
+                        partialInfo.addRange(connection, partialFile.getLength()) &&
+                        ((HttpURLConnection) connection).getResponseCode() ==
+                                HttpURLConnection.HTTP_PARTIAL &&
+                        rangeStart(connection) == partialFile.getLength()) {
+
+                    return resume(fetcher, connection, requestTime, partialFile.map());
+                }
+            } finally {
+                // The mapping stays valid.
+                partialFile.close();
+            }
+        }
+
+        if (staleInfo != null && connection instanceof HttpURLConnection &&
+                ((HttpURLConnection) connection).getResponseCode() ==
+                        HttpURLConnection.HTTP_NOT_MODIFIED) {
+
+            ByteBuffer payload = mapStaleEntry();
+            closeBody(fetcher, connection);
+            if (payload == null) {
+                // Ask again without conditions.
+                mStaleInfo = null;
+                return open();
+            }
+            HttpCacheInfo info = staleInfo.refresh(connection, requestTime);
+            if (info != null && mCache != null) {
+                storeEntry(payload.duplicate(), info);
+            }
+            return new MappedInputStream(payload);
+        }
+
+        if (connection instanceof HttpURLConnection &&
+                ((HttpURLConnection) connection).getResponseCode() ==
+                        HttpURLConnection.HTTP_PARTIAL) {
+            throw new IOException("unexpected range: " +
+                    connection.getHeaderField("Content-Range"));
+        }
+        InputStream in = fetcher.openInputStream(connection);
+        HttpCacheInfo info = HttpCacheInfo.fromResponse(connection, requestTime);
+        if (mSegmentCount > 1 && info != null && info.canRevalidate() &&
+                info.contentLength() >= mMinSegmentedLength &&
+                "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"))) {
+            try {
+                return downloadInSegments(fetcher, connection, in, info);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                if (isCancelled()) {
+                    throw new InterruptedIOException();
+                }
+                // A range wasn't served, or the image has changed meanwhile.
+                mSegmentCount = 1;
+                return open();
+            }
+        }
+        TransactionOutputStream out = (info != null && mCache != null &&
+                isImageType(connection.getContentType()) ? mCache.getOutputStream(mUrl, info) :
+                null);
+        return (out != null ? new CacheWritingInputStream(in, out, info) : in);
+    }
+
+    private InputStream downloadInSegments(NetworkFetcher fetcher, URLConnection connection,
+                                           InputStream in, HttpCacheInfo info)
+            throws IOException {
+
+        long length = info.contentLength();
+        long segmentLength = (length + mSegmentCount - 1) / mSegmentCount;
+        File spillFile = File.createTempFile("download", ".part");
+        RandomAccessFile file = new RandomAccessFile(spillFile, "rw");
+        ArrayList<Future<Void>> segments = new ArrayList<Future<Void>>(mSegmentCount - 1);
+        try {
+            file.setLength(length);
+            FileChannel channel = file.getChannel();
+            for (long start = segmentLength; start < length; start += segmentLength) {
+                Future<Void> segment = sExecutor.submit(new SegmentDownload(fetcher, info,
+                        channel, start, Math.min(length, start + segmentLength)));
+                segments.add(segment);
+                synchronized (this) {
+                    if (mCancelled) {
+                        throw new InterruptedIOException();
+                    }
+                    mPendingSegments.add(segment);
+                }
+            }
+
+            try {
+                writeSegment(in, channel, 0, segmentLength);
+            } finally {
+                // The rest of the body isn't needed, so the connection can't be reused anyway.
+                ((HttpURLConnection) connection).disconnect();
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+            for (Future<Void> segment : segments) {
+                awaitSegment(segment);
+            }
+
+            ByteBuffer payload = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (mCache != null && isImageType(connection.getContentType())) {
+                storeEntry(payload.duplicate(), info);
+            }
+            return new MappedInputStream(payload);
+        } finally {
+            for (Future<Void> segment : segments) {
+                segment.cancel(true);
+            }
+            file.close();
+            // The mapping stays valid.
+            //noinspection ResultOfMethodCallIgnored
+            spillFile.delete();
+        }
+    }
+
+    private static void awaitSegment(Future<Void> segment) throws IOException {
+        try {
+            segment.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (CancellationException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(String.valueOf(e.getCause()));
+        }
+    }
+
+    private static void writeSegment(InputStream in, FileChannel channel, long start, long length)
+            throws IOException {
+
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long position = start;
+        long end = start + length;
+        while (position < end) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException();
+            }
+            int count = in.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+            if (count == -1) {
+                throw new EOFException();
+            }
+            ByteBuffer src = ByteBuffer.wrap(buffer, 0, count);
+            while (src.hasRemaining()) {
+                position += channel.write(src, position);
+            }
+        }
+    }
+
+    /**
+     * Error pages are sometimes sent with 200 OK. They are still handed to the decoder, which
+     * fails on them, but aren't worth caching.
+     */
+    private static boolean isImageType(String contentType) {
+        if (contentType == null) return true;
+        contentType = contentType.toLowerCase(Locale.US);
+        return contentType.startsWith("image/") ||
+                contentType.startsWith("application/octet-stream");
+    }
+
+    /**
+     * Reads the empty body of a response, so the connection can be reused.
+     */
+    private static void closeBody(NetworkFetcher fetcher, URLConnection connection) {
+        try {
+            fetcher.openInputStream(connection).close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * @return The position of the first byte of a 206 Partial Content response, or -1.
+     */
+    private static long rangeStart(URLConnection connection) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes ")) return -1;
+
+        int end = contentRange.indexOf('-');
+        if (end < 0) return -1;
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), end).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Continues an interrupted download. The cached beginning is copied into a new entry, which
+     * the rest is appended to while it is read.
+     */
+    private InputStream resume(NetworkFetcher fetcher, URLConnection connection,
+                               long requestTime, ByteBuffer head) throws IOException {
+
+        InputStream rest = fetcher.openInputStream(connection);
+        HttpCacheInfo info = HttpCacheInfo.fromResponse(connection, requestTime);
+        TransactionOutputStream out = (info != null ? mCache.getOutputStream(mUrl, info) : null);
+        if (out != null && !copy(head.duplicate(), out)) {
+            out = null;
+        }
+        return new SequenceInputStream(new MappedInputStream(head),
+                out != null ? new CacheWritingInputStream(rest, out, info) : rest);
+    }
+
+    /**
+     * Writes a payload which is already on disk into an entry, like a refreshed entry, whose
+     * header can't be changed in place. Copying a local file is far cheaper than downloading it.
+     */
+    private void storeEntry(ByteBuffer payload, HttpCacheInfo info) {
+        TransactionOutputStream out = mCache.getOutputStream(mUrl, info);
+        if (out != null && copy(payload, out)) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * @return false if the entry has been rolled back.
+     */
+    private static boolean copy(ByteBuffer payload, TransactionOutputStream out) {
+        try {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            while (payload.hasRemaining()) {
+                int count = Math.min(buffer.length, payload.remaining());
+                payload.get(buffer, 0, count);
+                out.write(buffer, 0, count);
+            }
+            return true;
+        } catch (IOException e) {
+            try {
+                out.rollback();
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Downloads one range of a segmented download into its place in the spill file.
+     */
+    private class SegmentDownload implements Callable<Void> {
+        private final NetworkFetcher mFetcher;
+        private final HttpCacheInfo mInfo;
+        private final FileChannel mChannel;
+        private final long mStart;
+        private final long mEnd;
+
+        /**
+         * @param end The position after the last byte of the range.
+         */
+        SegmentDownload(NetworkFetcher fetcher, HttpCacheInfo info, FileChannel channel,
+                        long start, long end) {
+            mFetcher = fetcher;
+            mInfo = info;
+            mChannel = channel;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            URLConnection connection = openConnection(mFetcher);
+            if (!(connection instanceof HttpURLConnection) ||
+                    !mInfo.addRange(connection, mStart, mEnd - 1)) {
+                throw new IOException("range can't be requested");
+            }
+            if (((HttpURLConnection) connection).getResponseCode() !=
+                    HttpURLConnection.HTTP_PARTIAL || rangeStart(connection) != mStart) {
+                ((HttpURLConnection) connection).disconnect();
+                throw new IOException("range not served: " +
+                        connection.getHeaderField("Content-Range"));
+            }
+
+            InputStream in = mFetcher.openInputStream(connection);
+            try {
+                writeSegment(in, mChannel, mStart, mEnd - mStart);
+            } finally {
+                in.close();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Writes everything read to the cache, and commits the entry once the end is reached. If it
+     * is closed before, what has been read so far is committed as a partial entry when the
+     * download can be resumed, and rolled back otherwise.
+     * <p>
+     * Loaders are cancelled from the main thread, so closing only flags the stream while another
+     * thread is reading it. That thread drains and commits once its read returns. Otherwise the
+     * closing thread does it, unless it's the main thread, which hands it to the executor.
+     */
+    private static class CacheWritingInputStream extends FilterInputStream {
+        private TransactionOutputStream mOut;
+        private final boolean mResumable;
+        // Guarded by this.
+        private boolean mReading;
+        private boolean mCloseRequested;
+        private boolean mClosed;
+
+        CacheWritingInputStream(InputStream in, TransactionOutputStream out, HttpCacheInfo info) {
+            super(in);
+            mOut = out;
+            mResumable = info.contentLength() > 0 && info.canRevalidate();
+        }
+
+        @Override
+        public int read() throws IOException {
+            beginRead();
+            try {
+                int oneByte = in.read();
+                if (mOut != null) {
+                    if (oneByte == -1) {
+                        commit();
+                    } else {
+                        try {
+                            mOut.write(oneByte);
+                        } catch (IOException e) {
+                            rollback();
+                        }
+                    }
+                }
+                return oneByte;
+            } finally {
+                endRead();
+            }
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int byteOffset, int byteCount)
+                throws IOException {
+
+            beginRead();
+            try {
+                return readThrough(buffer, byteOffset, byteCount);
+            } finally {
+                endRead();
+            }
+        }
+
+        private synchronized void beginRead() throws IOException {
+            if (mClosed || mCloseRequested) {
+                throw new IOException("Stream closed");
+            }
+            mReading = true;
+        }
+
+        private void endRead() {
+            boolean closeRequested;
+            synchronized (this) {
+                mReading = false;
+                closeRequested = mCloseRequested;
+                mClosed |= closeRequested;
+            }
+            if (closeRequested) {
+                finish();
+            }
+        }
+
+        private int readThrough(byte[] buffer, int byteOffset, int byteCount) throws IOException {
+            int bytesRead = in.read(buffer, byteOffset, byteCount);
+            if (mOut != null) {
+                if (bytesRead == -1) {
+                    commit();
+                } else {
+                    try {
+                        mOut.write(buffer, byteOffset, bytesRead);
+                    } catch (IOException e) {
+                        rollback();
+                    }
+                }
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            // Skipped bytes have to be written too.
+            byte[] buffer = new byte[(int) Math.min(COPY_BUFFER_SIZE, Math.max(0, byteCount))];
+            long skipped = 0;
+            while (skipped < byteCount) {
+                int count = read(buffer, 0, (int) Math.min(buffer.length, byteCount - skipped));
+                if (count == -1) break;
+                skipped += count;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                if (mClosed || mCloseRequested) return;
+                if (mReading) {
+                    mCloseRequested = true;
+                    return;
+                }
+                mClosed = true;
+            }
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                sExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        finish();
+                    }
+                });
+            } else {
+                finish();
+            }
+        }
+
+        /**
+         * Called by the only thread which uses the stream from then on.
+         */
+        private void finish() {
+            if (mOut != null) {
+                try {
+                    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                    int drained = 0;
+                    while (mOut != null && drained < MAX_DRAIN_LENGTH) {
+                        int count = readThrough(buffer, 0, buffer.length);
+                        if (count == -1) break;
+                        drained += count;
+                    }
+                } catch (IOException ignored) {
+                }
+                if (mResumable && mOut != null) {
+                    commit();
+                } else {
+                    rollback();
+                }
+            }
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void commit() {
+            try {
+                mOut.close();
+            } catch (IOException ignored) {
+            }
+            mOut = null;
+        }
+
+        private void rollback() {
+            if (mOut == null) return;
+            try {
+                mOut.rollback();
+            } catch (IOException ignored) {
+            }
+            mOut = null;
+        }
+    }
+}
@@ -8,7 +8,8 @@ import java.io.InputStream;
 
 class LazyInputStream extends InputStream {
     private StreamOpener mOpener;
-    protected InputStream mIn;
+    protected volatile InputStream mIn;
+    private volatile boolean mClosed;
 
     public LazyInputStream(StreamOpener opener) {
         mOpener = opener;
@@ -30,8 +31,13 @@ class LazyInputStream extends InputStream {
 
     @Override
     public void close() throws IOException {
-        if (mIn != null) {
-            mIn.close();
+        mClosed = true;
+        InputStream in = mIn;
+        if (in != null) {
+            in.close();
+        } else if (mOpener instanceof StreamOpener.Cancelable) {
+            // It may be being opened on another thread.
+            ((StreamOpener.Cancelable) mOpener).cancel();
         }
     }
 
@@ -68,12 +74,21 @@ class LazyInputStream extends InputStream {
     }
 
     protected InputStream getStream() {
-        if (mIn == null) {
-            mIn = mOpener.openInputStream();
-            if (mIn == null) {
-                mIn = new ByteArrayInputStream(new byte[0]);
+        InputStream in = mIn;
+        if (in == null) {
+            in = (mClosed ? null : mOpener.openInputStream());
+            if (in == null) {
+                in = new ByteArrayInputStream(new byte[0]);
+            }
+            mIn = in;
+            if (mClosed) {
+                // Closed while it was being opened.
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
             }
         }
-        return mIn;
+        return in;
     }
 }
@@ -0,0 +1,78 @@
+package rapid.decoder;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a buffer mapped from a file. It can be rewound at any time without keeping a copy of what
+ * has been read, unlike the {@link TwiceReadableInputStream} it stands in for.
+ */
+class MappedInputStream extends TwiceReadableInputStream {
+    private final ByteBuffer mBuffer;
+
+    public MappedInputStream(ByteBuffer buffer) {
+        super(null);
+        mBuffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int byteOffset, int byteCount) {
+        if (byteCount == 0) return 0;
+        if (!mBuffer.hasRemaining()) return -1;
+
+        int count = Math.min(byteCount, mBuffer.remaining());
+        mBuffer.get(buffer, byteOffset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long byteCount) {
+        int count = (int) Math.max(0, Math.min(byteCount, mBuffer.remaining()));
+        mBuffer.position(mBuffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return mBuffer.remaining();
+    }
+
+    @Override
+    public void mark(int readlimit) {
+        mBuffer.mark();
+    }
+
+    @Override
+    public void reset() {
+        mBuffer.reset();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void seekToBeginning() {
+        mBuffer.rewind();
+    }
+
+    @Override
+    public void startSecondRead() {
+    }
+
+    @Override
+    public boolean isSecondReading() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,40 @@
+package rapid.decoder;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+
+/**
+ * Forwards memory pressure notifications of the application to {@link BitmapDecoder#trimMemory}.
+ */
+@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+class MemoryTrimmer implements ComponentCallbacks2 {
+    private static MemoryTrimmer sInstance;
+
+    static synchronized void register(Context context) {
+        if (sInstance != null || Build.VERSION.SDK_INT < 14) return;
+
+        Context appContext = context.getApplicationContext();
+        if (appContext == null) {
+            appContext = context;
+        }
+        sInstance = new MemoryTrimmer();
+        appContext.registerComponentCallbacks(sInstance);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        BitmapDecoder.trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        BitmapDecoder.trimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
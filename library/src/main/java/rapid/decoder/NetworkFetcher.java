@@ -0,0 +1,29 @@
+package rapid.decoder;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+
+/**
+ * Opens the connections which images are downloaded through. Another HTTP stack or other
+ * settings can be plugged in for all loaders with
+ * {@link BitmapDecoder#setNetworkFetcher(NetworkFetcher)}, or for one with
+ * {@link BitmapDecoder#from(android.net.Uri, boolean, NetworkFetcher)}. The default is
+ * {@link UrlConnectionFetcher}.
+ * <p>
+ * The headers for revalidating and resuming downloads are added to the returned connection, so
+ * it must not be connected yet. Its response headers tell the length and the type of the image.
+ */
+public interface NetworkFetcher {
+    @NonNull
+    URLConnection openConnection(@NonNull String url) throws IOException;
+
+    /**
+     * Opens the body of the response. Reading it to its end and closing it lets the connection be
+     * reused.
+     */
+    @NonNull
+    InputStream openInputStream(@NonNull URLConnection connection) throws IOException;
+}
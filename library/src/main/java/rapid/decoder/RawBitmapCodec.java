@@ -0,0 +1,127 @@
+package rapid.decoder;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Stores the pixels of a bitmap as they are, which small bitmaps are loaded back from faster than
+ * from any compressed format.
+ * <p>
+ * Layout, in big-endian order:
+ * <pre>
+ *   int   magic "RDPX"
+ *   int   width
+ *   int   height
+ *   byte  config
+ *   byte  flags
+ *   int   bytes per row
+ *   byte[] pixels as {@link Bitmap#copyPixelsToBuffer} writes them
+ * </pre>
+ */
+final class RawBitmapCodec {
+    private static final int MAGIC = 0x52445058;
+    private static final int HEADER_SIZE = 18;
+
+    private static final byte CONFIG_ALPHA_8 = 1;
+    private static final byte CONFIG_RGB_565 = 2;
+    private static final byte CONFIG_ARGB_4444 = 3;
+    private static final byte CONFIG_ARGB_8888 = 4;
+
+    private static final byte FLAG_HAS_ALPHA = 1;
+
+    private RawBitmapCodec() {
+    }
+
+    /**
+     * @return false if the config of the bitmap can't be stored, in which case nothing is
+     * written.
+     */
+    static boolean encode(Bitmap bitmap, OutputStream out) throws IOException {
+        byte config = toCode(bitmap.getConfig());
+        if (config == 0) return false;
+
+        int rowBytes = bitmap.getRowBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + rowBytes * bitmap.getHeight());
+        buffer.putInt(MAGIC);
+        buffer.putInt(bitmap.getWidth());
+        buffer.putInt(bitmap.getHeight());
+        buffer.put(config);
+        buffer.put(bitmap.hasAlpha() ? FLAG_HAS_ALPHA : 0);
+        buffer.putInt(rowBytes);
+        bitmap.copyPixelsToBuffer(buffer);
+        out.write(buffer.array(), 0, buffer.position());
+        return true;
+    }
+
+    /**
+     * Copies the pixels into a bitmap from the pool.
+     *
+     * @return The bitmap, or null if the buffer doesn't hold pixels stored by
+     * {@link #encode(Bitmap, OutputStream)} or they can't be copied as they are.
+     */
+    @SuppressLint("NewApi")
+    static Bitmap decode(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt(buffer.position()) != MAGIC) {
+            return null;
+        }
+
+        buffer.getInt();
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        Config config = toConfig(buffer.get());
+        byte flags = buffer.get();
+        int rowBytes = buffer.getInt();
+        if (config == null || width <= 0 || height <= 0 ||
+                (long) rowBytes * height != buffer.remaining()) {
+            return null;
+        }
+
+        Bitmap bitmap = BitmapDecoder.obtainBitmap(width, height, config);
+        if (bitmap.getRowBytes() != rowBytes) {
+            BitmapDecoder.recycleBitmap(bitmap);
+            return null;
+        }
+        bitmap.copyPixelsFromBuffer(buffer);
+        if (Build.VERSION.SDK_INT >= 12) {
+            bitmap.setHasAlpha((flags & FLAG_HAS_ALPHA) != 0);
+        }
+        return bitmap;
+    }
+
+    private static byte toCode(Config config) {
+        if (config == null) return 0;
+        switch (config) {
+            case ALPHA_8:
+                return CONFIG_ALPHA_8;
+            case RGB_565:
+                return CONFIG_RGB_565;
+            case ARGB_4444:
+                return CONFIG_ARGB_4444;
+            case ARGB_8888:
+                return CONFIG_ARGB_8888;
+            default:
+                return 0;
+        }
+    }
+
+    private static Config toConfig(byte code) {
+        switch (code) {
+            case CONFIG_ALPHA_8:
+                return Config.ALPHA_8;
+            case CONFIG_RGB_565:
+                return Config.RGB_565;
+            case CONFIG_ARGB_4444:
+                return Config.ARGB_4444;
+            case CONFIG_ARGB_8888:
+                return Config.ARGB_8888;
+            default:
+                return null;
+        }
+    }
+}
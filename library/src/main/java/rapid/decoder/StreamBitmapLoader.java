@@ -8,13 +8,18 @@ import android.graphics.BitmapRegionDecoder;
 import android.os.Build;
 import android.support.annotation.NonNull;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
+import rapid.decoder.cache.CacheSource;
+import rapid.decoder.cache.EncodedBytesCache;
 import rapid.decoder.cache.TransactionOutputStream;
 
 class StreamBitmapLoader extends BitmapLoader {
 	private TwiceReadableInputStream mIn;
+	private byte[] mEncodedBytes;
+	private boolean mEncodedBytesResolved;
 	
 	public StreamBitmapLoader(InputStream is) {
 		if (is instanceof TwiceReadableInputStream &&
@@ -48,10 +53,45 @@ class StreamBitmapLoader extends BitmapLoader {
 		mIn.setCacheOutputStream(out);
 	}
 	
+	/**
+	 * Looks up the encoded bytes cache once the id is known. The stream isn't read at all if its
+	 * bytes are there, and otherwise the bytes are kept while it's read.
+	 */
+	private void resolveEncodedBytes() {
+		if (mEncodedBytesResolved) return;
+		mEncodedBytesResolved = true;
+
+		EncodedBytesCache cache = sEncodedCache;
+		if (cache == null || !isMemoryCacheEnabled()) return;
+
+		byte[] bytes = cache.get(mId);
+		if (bytes != null) {
+			mEncodedBytes = bytes;
+			mEncodedDataSource = CacheSource.MEMORY_ENCODED;
+			// Nothing is going to be read, so nothing may be committed to the disk cache.
+			mIn.setTransactionSucceeded(false);
+		} else {
+			mIn.setEncodedBytesCache(cache, mId);
+		}
+	}
+
 	@Override
 	protected Bitmap decode(Options opts) {
+		resolveEncodedBytes();
+		if (mEncodedBytes != null) {
+			return BitmapFactory.decodeByteArray(mEncodedBytes, 0, mEncodedBytes.length, opts);
+		}
+
 		try {
-			return BitmapFactory.decodeStream(mIn, null, opts);
+			Bitmap bitmap = BitmapFactory.decodeStream(mIn, null, opts);
+			if (!opts.inJustDecodeBounds) {
+				if (bitmap != null) {
+					mIn.commitEncodedBytes();
+				} else {
+					mIn.setTransactionSucceeded(false);
+				}
+			}
+			return bitmap;
 		} catch (Throwable ignored) {
 			mIn.setTransactionSucceeded(false);
             return null;
@@ -61,19 +101,33 @@ class StreamBitmapLoader extends BitmapLoader {
     @Override
     public void cancel() {
         super.cancel();
+        mIn.setTransactionSucceeded(false);
         try {
             mIn.close();
         } catch (IOException ignored) {
         }
     }
 
+	@Override
+	protected boolean canRetryDecoding() {
+		resolveEncodedBytes();
+		return mEncodedBytes != null;
+	}
+
     @Override
 	protected InputStream openInputStream() {
+		resolveEncodedBytes();
+		if (mEncodedBytes != null) {
+			return new ByteArrayInputStream(mEncodedBytes);
+		}
 		return mIn;
 	}
 	
 	@Override
 	protected void onDecodingStarted(boolean builtInDecoder) {
+		resolveEncodedBytes();
+		if (mEncodedBytes != null) return;
+
 		if (!builtInDecoder) {
 			mIn.startSecondRead();
 		}
@@ -83,7 +137,12 @@ class StreamBitmapLoader extends BitmapLoader {
 	@TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
 	@Override
 	protected BitmapRegionDecoder createBitmapRegionDecoder() {
+		resolveEncodedBytes();
 		try {
+			if (mEncodedBytes != null) {
+				return BitmapRegionDecoder.newInstance(mEncodedBytes, 0, mEncodedBytes.length,
+						false);
+			}
 			return BitmapRegionDecoder.newInstance(mIn, false);
 		} catch (IOException e) {
 			return null;
@@ -5,6 +5,18 @@ import android.support.annotation.Nullable;
 import java.io.InputStream;
 
 interface StreamOpener {
+    /**
+     * Implemented by openers which may take long to open their stream, like ones which download
+     * it, so that {@link LazyInputStream#close()} can stop them meanwhile.
+     */
+    interface Cancelable {
+        /**
+         * Makes an {@link #openInputStream()} in progress on another thread fail soon. Must not
+         * block.
+         */
+        void cancel();
+    }
+
     @Nullable
 	InputStream openInputStream();
 }
@@ -2,9 +2,11 @@ package rapid.decoder;
 
 import android.support.annotation.NonNull;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
+import rapid.decoder.cache.EncodedBytesCache;
 import rapid.decoder.cache.TransactionOutputStream;
 
 public class TwiceReadableInputStream extends InputStream {
@@ -21,6 +23,10 @@ public class TwiceReadableInputStream extends InputStream {
 	private TransactionOutputStream mCacheOutputStream;
 	private boolean mTransactionSucceeded;
 
+	private EncodedBytesCache mEncodedCache;
+	private Object mEncodedKey;
+	private ByteArrayOutputStream mEncodedBytes;
+
     public static TwiceReadableInputStream getInstanceFrom(InputStream in) {
         if (in instanceof TwiceReadableInputStream &&
                 !((TwiceReadableInputStream) in).isSecondReading()) {
@@ -44,6 +50,18 @@ public class TwiceReadableInputStream extends InputStream {
 		mTransactionSucceeded = true;
 	}
 	
+	/**
+	 * Keeps a copy of all bytes read from the stream and puts them into the cache once the stream
+	 * has been read to its end or {@link #commitEncodedBytes()} is called. This has to be set
+	 * before anything is read.
+	 */
+	public void setEncodedBytesCache(EncodedBytesCache cache, Object key) {
+		mEncodedCache = cache;
+		mEncodedKey = key;
+		mEncodedBytes = new ByteArrayOutputStream(INITIAL_BUFFER_CAPACITY);
+		mTransactionSucceeded = true;
+	}
+
 	@Override
 	public void mark(int readlimit) {
 		mMarkOffset = mBufferOffset;
@@ -77,7 +95,7 @@ public class TwiceReadableInputStream extends InputStream {
 			if (mBufferOffset < mBufferLength) {
 				return mBuffer[mBufferOffset++];
 			} else if (mBufferExpandable) {
-				int oneByte = mIn.read();
+				int oneByte = readFromStream();
 				if (oneByte >= 0) {
 					ensureCapacity(1);
 					mBuffer[mBufferLength++] = (byte) oneByte;
@@ -88,6 +106,10 @@ public class TwiceReadableInputStream extends InputStream {
 			}
 		}
 
+		return readFromStream();
+	}
+
+	private int readFromStream() throws IOException {
 		int oneByte = mIn.read();
 		if (mCacheOutputStream != null) {
 			if (oneByte == -1) {
@@ -97,6 +119,15 @@ public class TwiceReadableInputStream extends InputStream {
 				mCacheOutputStream.write(oneByte);
 			}
 		}
+		if (mEncodedBytes != null) {
+			if (oneByte == -1) {
+				commitEncodedBytes();
+			} else if (mEncodedBytes.size() < mEncodedCache.maxEntrySize()) {
+				mEncodedBytes.write(oneByte);
+			} else {
+				mEncodedBytes = null;
+			}
+		}
 		
 		return oneByte;
 	}
@@ -161,6 +192,15 @@ public class TwiceReadableInputStream extends InputStream {
 				mCacheOutputStream.write(bytes, offset, bytesRead);
 			}
 		}
+		if (mEncodedBytes != null) {
+			if (bytesRead == -1) {
+				commitEncodedBytes();
+			} else if (mEncodedBytes.size() + bytesRead <= mEncodedCache.maxEntrySize()) {
+				mEncodedBytes.write(bytes, offset, bytesRead);
+			} else {
+				mEncodedBytes = null;
+			}
+		}
 		return bytesRead;
 	}
 	
@@ -177,8 +217,23 @@ public class TwiceReadableInputStream extends InputStream {
 			}
 			mCacheOutputStream = null;
 		}
+		// Whatever hasn't been committed yet may be incomplete.
+		mEncodedBytes = null;
 		mIn.close();
 	}
+
+	/**
+	 * Puts the bytes read so far into the encoded bytes cache. Called when the decoder has
+	 * successfully read everything it needs, which isn't necessarily the whole stream.
+	 */
+	public void commitEncodedBytes() {
+		if (mEncodedBytes == null) return;
+
+		if (mEncodedBytes.size() > 0) {
+			mEncodedCache.put(mEncodedKey, mEncodedBytes.toByteArray());
+		}
+		mEncodedBytes = null;
+	}
 	
 	public void startSecondRead() {
 		mBufferExpandable = false;
@@ -0,0 +1,90 @@
+package rapid.decoder;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Downloads with {@link URLConnection}, which keeps idle HTTP connections alive and reuses them
+ * for later requests to the same host.
+ */
+public class UrlConnectionFetcher implements NetworkFetcher {
+    public static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT = 20 * 1000;
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private int mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int mReadTimeout = DEFAULT_READ_TIMEOUT;
+    private int mBufferSize = DEFAULT_BUFFER_SIZE;
+    private boolean mFollowRedirects = true;
+
+    /**
+     * Sets how many idle connections are kept alive per host. The pool of
+     * {@link HttpURLConnection} is shared by the whole process and reads this setting when it's
+     * first used, so call this before anything is downloaded.
+     *
+     * @param count 0 to close every connection after its response.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public static void setMaxIdleConnections(int count) {
+        System.setProperty("http.keepAlive", Boolean.toString(count > 0));
+        if (count > 0) {
+            System.setProperty("http.maxConnections", Integer.toString(count));
+        }
+    }
+
+    /**
+     * @param timeout Milliseconds, or 0 to wait forever.
+     */
+    public UrlConnectionFetcher connectTimeout(int timeout) {
+        mConnectTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * @param timeout Milliseconds to wait for each read, or 0 to wait forever.
+     */
+    public UrlConnectionFetcher readTimeout(int timeout) {
+        mReadTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * @param size Bytes read from the connection at once, or 0 not to buffer it.
+     */
+    public UrlConnectionFetcher bufferSize(int size) {
+        mBufferSize = size;
+        return this;
+    }
+
+    public UrlConnectionFetcher followRedirects(boolean follow) {
+        mFollowRedirects = follow;
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public URLConnection openConnection(@NonNull String url) throws IOException {
+        URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout(mConnectTimeout);
+        connection.setReadTimeout(mReadTimeout);
+        // The disk cache already keeps the responses.
+        connection.setUseCaches(false);
+        if (connection instanceof HttpURLConnection) {
+            ((HttpURLConnection) connection).setInstanceFollowRedirects(mFollowRedirects);
+        }
+        return connection;
+    }
+
+    @NonNull
+    @Override
+    public InputStream openInputStream(@NonNull URLConnection connection) throws IOException {
+        InputStream in = connection.getInputStream();
+        return (mBufferSize > 0 ? new BufferedInputStream(in, mBufferSize) : in);
+    }
+}
@@ -0,0 +1,24 @@
+package rapid.decoder;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.widget.ImageView;
+
+/**
+ * Rewrites the url of a network image once the size it's going to be framed into is known, so a
+ * server which scales images can send one close to that size. Set one with
+ * {@link BitmapDecoder#setUrlResolver(UrlResolver)}.
+ * <p>
+ * The rewritten url is what the disk and memory caches keep the image under, so each size is
+ * cached on its own.
+ */
+public interface UrlResolver {
+    /**
+     * @param scaleType The scale type the image is framed with, or null if it's framed another
+     *                  way.
+     * @return The url to download instead, or null to download the original.
+     */
+    @Nullable
+    String resolve(@NonNull String url, int frameWidth, int frameHeight,
+                   @Nullable ImageView.ScaleType scaleType);
+}
@@ -3,11 +3,13 @@ package rapid.decoder;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.view.ViewGroup;
+import android.widget.ImageView;
 
 import rapid.decoder.binder.ViewBinder;
 import rapid.decoder.frame.AspectRatioCalculator;
 import rapid.decoder.frame.FramedDecoder;
 import rapid.decoder.frame.FramingMethod;
+import rapid.decoder.frame.ScaleTypeFraming;
 
 class ViewFrameBuilder {
     private static final int AUTOSIZE_NONE = 0;
@@ -117,10 +119,44 @@ class ViewFrameBuilder {
         }
 
         if (frameWidth != 0 && frameHeight != 0) {
-            mFramedDecoder = mFraming.createFramedDecoder(mDecoder, frameWidth, frameHeight);
+            BitmapDecoder decoder = mDecoder;
+            if (mAutoSizeMode == AUTOSIZE_NONE) {
+                // The frame of an auto-sized view depends on the original image.
+                ImageView.ScaleType scaleType = (mFraming instanceof ScaleTypeFraming ?
+                        ((ScaleTypeFraming) mFraming).scaleType() : null);
+                decoder = decoder.resolveVariant(frameWidth, frameHeight, scaleType);
+            }
+            mFramedDecoder = mFraming.createFramedDecoder(decoder, frameWidth, frameHeight);
             return mFramedDecoder;
         } else {
             return null;
         }
     }
+
+    /**
+     * Builders are equal if they frame the same image into the same size, so that requests of
+     * different views can share one decoding.
+     */
+    @Override
+    public int hashCode() {
+        int hash = mDecoder.hashCode();
+        hash = hash * 31 + mFraming.hashCode();
+        hash = hash * 31 + mAutoSizeMode;
+        hash = hash * 31 + mMinWidth;
+        hash = hash * 31 + mMinHeight;
+        hash = hash * 31 + mMaxWidth;
+        return hash * 31 + mMaxHeight;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof ViewFrameBuilder)) return false;
+
+        ViewFrameBuilder other = (ViewFrameBuilder) o;
+        return mDecoder.equals(other.mDecoder) && mFraming.equals(other.mFraming) &&
+                mAutoSizeMode == other.mAutoSizeMode && mMinWidth == other.mMinWidth &&
+                mMinHeight == other.mMinHeight && mMaxWidth == other.mMaxWidth &&
+                mMaxHeight == other.mMaxHeight;
+    }
 }
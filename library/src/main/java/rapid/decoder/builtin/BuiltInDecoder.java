@@ -12,11 +12,21 @@ import java.io.InputStream;
 import rapid.decoder.TwiceReadableInputStream;
 
 public class BuiltInDecoder {
+	/**
+	 * Receives the bitmap being decoded while rows are still being added to it. It's called on
+	 * the decoding thread, and the bitmap must not be kept once decoding has failed.
+	 */
+	public interface OnProgressListener {
+		void onProgress(Bitmap bitmap, int decodedRows);
+	}
+	
 	private static final String MESSAGE_INVALID_REGION = "rectangle is outside the image";
 	
 	private TwiceReadableInputStream in;
 	private Rect region;
 	private boolean useFilter = true;
+	private OnProgressListener progressListener;
+	private int updateRows;
 
 	public BuiltInDecoder(InputStream in) {
         this.in = TwiceReadableInputStream.getInstanceFrom(in);
@@ -34,6 +44,14 @@ public class BuiltInDecoder {
 	public void setUseFilter(boolean filter) {
 		useFilter = filter;
 	}
+	
+	/**
+	 * Only baseline JPEGs are reported, since they are decoded row by row as their bytes arrive.
+	 */
+	public void setOnProgressListener(OnProgressListener listener, int updateRows) {
+		progressListener = listener;
+		this.updateRows = updateRows;
+	}
 
 	public Bitmap decode(Options opts) {
 		final String mimeType = opts.outMimeType;
@@ -90,6 +108,9 @@ public class BuiltInDecoder {
 
 			final Config config = (opts.inPreferredConfig != null ? opts.inPreferredConfig : getDefaultConfig(false));
 
+			if (progressListener != null) {
+				d.setOnProgressListener(progressListener, updateRows);
+			}
 			return d.decode(region, useFilter, config, opts);
 		} finally {
 			d.close();
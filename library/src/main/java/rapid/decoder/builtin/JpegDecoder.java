@@ -27,9 +27,11 @@ public class JpegDecoder {
 	private static native int nativeGetWidth(long decoder);
 	private static native int nativeGetHeight(long decoder);
 	private static native Bitmap nativeDecode(long decoder, int left, int top, int right, int bottom, boolean filter,
-			Config config, Options opts);
+			Config config, Options opts, JpegDecoder progress, int updateRows);
 	
 	private long decoder;
+	private BuiltInDecoder.OnProgressListener progressListener;
+	private int updateRows;
 
 	public JpegDecoder(InputStream in) {
 		decoder = createNativeDecoder(in);
@@ -66,20 +68,39 @@ public class JpegDecoder {
 		return nativeGetHeight(decoder);
 	}
 	
+	/**
+	 * Reports the bitmap being decoded each time the given number of rows has been added to it.
+	 * Progressive JPEGs aren't reported, since all of their rows are produced at the end.
+	 */
+	public void setOnProgressListener(BuiltInDecoder.OnProgressListener listener, int updateRows) {
+		progressListener = listener;
+		this.updateRows = updateRows;
+	}
+	
 	public Bitmap decode(Rect bounds, boolean filter, Config config, Options opts) {
 		if (decoder == 0) {
 			throw new IllegalStateException();
 		}
 
+		JpegDecoder progress = (progressListener != null ? this : null);
 		if (bounds == null) {
-			return nativeDecode(decoder, -1, -1, -1, -1, filter, config, opts);
+			return nativeDecode(decoder, -1, -1, -1, -1, filter, config, opts, progress,
+					updateRows);
 		} else {
 			return nativeDecode(decoder,
 					bounds.left, bounds.top, bounds.right, bounds.bottom,
-					filter, config, opts);
+					filter, config, opts, progress, updateRows);
 		}
 	}
 	
+	/**
+	 * Called by the native decoder.
+	 */
+	@SuppressWarnings("UnusedDeclaration")
+	private void onRowsDecoded(Bitmap bitmap, int rows) {
+		progressListener.onProgress(bitmap, rows);
+	}
+	
 	@Override
 	protected void finalize() throws Throwable {
 		close();
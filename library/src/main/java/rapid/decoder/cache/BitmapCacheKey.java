@@ -0,0 +1,156 @@
+package rapid.decoder.cache;
+
+import android.graphics.Bitmap.Config;
+import android.graphics.Rect;
+
+/**
+ * Identifies a decoded bitmap in {@link BitmapLruCache} by what it looks like rather than by how it
+ * has been requested. Two loaders which resolve to the same source region, output size, config
+ * and flags share one entry no matter which transformations they were built from.
+ * <p>
+ * Keys are never modified once they have been put into the cache. A subclass may reuse a single
+ * instance as a lookup probe through {@link #set}, and copy it with
+ * {@link #BitmapCacheKey(BitmapCacheKey)} before inserting.
+ */
+public class BitmapCacheKey {
+    public static final int FLAG_MUTABLE = 1;
+    public static final int FLAG_FILTER = 1 << 1;
+    public static final int FLAG_OPAQUE = 1 << 2;
+    /**
+     * The bitmap has been through a post processor, so its pixels can't be told from its geometry.
+     */
+    public static final int FLAG_POST_PROCESSED = 1 << 3;
+
+    private Object mId;
+    private int mRegionLeft;
+    private int mRegionTop;
+    private int mRegionRight;
+    private int mRegionBottom;
+    private int mWidth;
+    private int mHeight;
+    private Config mConfig;
+    private int mFlags;
+    private int mHashCode;
+
+    protected BitmapCacheKey() {
+    }
+
+    /**
+     * @param region Region of the source image in source coordinates, or null if the whole image
+     *               is decoded.
+     */
+    public BitmapCacheKey(Object id, Rect region, int width, int height, Config config,
+                          int flags) {
+        set(id, region, width, height, config, flags);
+    }
+
+    public BitmapCacheKey(BitmapCacheKey other) {
+        mId = other.mId;
+        mRegionLeft = other.mRegionLeft;
+        mRegionTop = other.mRegionTop;
+        mRegionRight = other.mRegionRight;
+        mRegionBottom = other.mRegionBottom;
+        mWidth = other.mWidth;
+        mHeight = other.mHeight;
+        mConfig = other.mConfig;
+        mFlags = other.mFlags;
+        mHashCode = other.mHashCode;
+    }
+
+    protected final void set(Object id, Rect region, int width, int height, Config config,
+                             int flags) {
+        mId = id;
+        if (region == null) {
+            mRegionLeft = mRegionTop = mRegionRight = mRegionBottom = 0;
+        } else {
+            mRegionLeft = region.left;
+            mRegionTop = region.top;
+            mRegionRight = region.right;
+            mRegionBottom = region.bottom;
+        }
+        mWidth = width;
+        mHeight = height;
+        mConfig = config;
+        mFlags = flags;
+
+        int hash = (id != null ? id.hashCode() : 0);
+        hash = 31 * hash + mRegionLeft;
+        hash = 31 * hash + mRegionTop;
+        hash = 31 * hash + mRegionRight;
+        hash = 31 * hash + mRegionBottom;
+        hash = 31 * hash + width;
+        hash = 31 * hash + height;
+        hash = 31 * hash + (config != null ? config.hashCode() : 0);
+        mHashCode = 31 * hash + flags;
+    }
+
+    public Object id() {
+        return mId;
+    }
+
+    public boolean hasRegion() {
+        return mRegionRight != 0 || mRegionBottom != 0;
+    }
+
+    public int regionLeft() {
+        return mRegionLeft;
+    }
+
+    public int regionTop() {
+        return mRegionTop;
+    }
+
+    public int regionRight() {
+        return mRegionRight;
+    }
+
+    public int regionBottom() {
+        return mRegionBottom;
+    }
+
+    public int width() {
+        return mWidth;
+    }
+
+    public int height() {
+        return mHeight;
+    }
+
+    public Config config() {
+        return mConfig;
+    }
+
+    public int flags() {
+        return mFlags;
+    }
+
+    @Override
+    public int hashCode() {
+        return mHashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof BitmapCacheKey)) return false;
+
+        BitmapCacheKey key = (BitmapCacheKey) o;
+        return mHashCode == key.mHashCode &&
+                mWidth == key.mWidth &&
+                mHeight == key.mHeight &&
+                mFlags == key.mFlags &&
+                mConfig == key.mConfig &&
+                mRegionLeft == key.mRegionLeft &&
+                mRegionTop == key.mRegionTop &&
+                mRegionRight == key.mRegionRight &&
+                mRegionBottom == key.mRegionBottom &&
+                (mId == null ? key.mId == null : mId.equals(key.mId));
+    }
+
+    @Override
+    public String toString() {
+        return "BitmapCacheKey[id=" + mId + ",region=" + mRegionLeft + "," + mRegionTop + "," +
+                mRegionRight + "," + mRegionBottom + ",size=" + mWidth + "x" + mHeight +
+                ",config=" + mConfig + ",flags=" + mFlags + "]";
+    }
+}
@@ -1,22 +1,39 @@
 package rapid.decoder.cache;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
-import rapid.decoder.BitmapLoader;
 import rapid.decoder.BitmapMeta;
 import rapid.decoder.BitmapUtils;
 
-public class BitmapLruCache extends LruCache<BitmapLoader, Bitmap> {
+public class BitmapLruCache extends LruCache<BitmapCacheKey, Bitmap> {
     private static class CachedMeta implements BitmapMeta {
-        public int width;
-        public int height;
-        public WeakHashMap<Bitmap, Object> bitmaps = new WeakHashMap<Bitmap, Object>();
+        final Object id;
+        int width;
+        int height;
+        /**
+         * One reference per bitmap of this image which hasn't been garbage collected yet. They
+         * have to be reachable themselves to ever be enqueued.
+         */
+        final ArrayList<MetaReference> references = new ArrayList<MetaReference>(1);
+        boolean removed;
+
+        CachedMeta(Object id) {
+            this.id = id;
+        }
+
+        boolean isReferencing(Bitmap bitmap) {
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0, c = references.size(); i < c; ++i) {
+                if (references.get(i).get() == bitmap) return true;
+            }
+            return false;
+        }
 
         @Override
         public int width() {
@@ -29,46 +46,111 @@ public class BitmapLruCache extends LruCache<BitmapLoader, Bitmap> {
         }
     }
 
-    private HashMap<BitmapLoader, WeakReference<Bitmap>> mEvictedBitmap =
-            new HashMap<BitmapLoader, WeakReference<Bitmap>>();
-    private HashMap<Object, CachedMeta> mMetaCache = new HashMap<Object, CachedMeta>();
+    /**
+     * Also serves as the index of the renditions of an image which might still be alive, so
+     * requests for smaller versions of it can be derived from them.
+     */
+    private static class MetaReference extends WeakReference<Bitmap> {
+        final CachedMeta meta;
+        final BitmapCacheKey key;
+
+        MetaReference(Bitmap bitmap, BitmapCacheKey key, CachedMeta meta,
+                      ReferenceQueue<Bitmap> queue) {
+            super(bitmap, queue);
+            this.key = key;
+            this.meta = meta;
+        }
+    }
+
+    /**
+     * Flags of a rendition which make its pixels differ from what its geometry tells.
+     */
+    private static final int UNDERIVABLE_FLAGS = BitmapCacheKey.FLAG_MUTABLE |
+            BitmapCacheKey.FLAG_POST_PROCESSED;
+
+    private final WeakValueMap<BitmapCacheKey, Bitmap> mEvictedBitmap =
+            new WeakValueMap<BitmapCacheKey, Bitmap>();
+    private final ConcurrentHashMap<Object, CachedMeta> mMetaCache =
+            new ConcurrentHashMap<Object, CachedMeta>();
+    private final ReferenceQueue<Bitmap> mMetaQueue = new ReferenceQueue<Bitmap>();
+    private volatile BitmapPool mEvictionPool;
 
     public BitmapLruCache(int maxSize) {
         super(maxSize);
     }
 
+    public BitmapLruCache(int maxSize, CachePolicy policy) {
+        super(maxSize, policy);
+    }
+
     @Override
-    protected int sizeOf(BitmapLoader key, Bitmap value) {
+    protected int sizeOf(BitmapCacheKey key, Bitmap value) {
         return BitmapUtils.getByteCount(value);
     }
 
+    /**
+     * Sets the pool which bitmaps are handed to when they are evicted. Evicted bitmaps are then
+     * overwritten by later decodes, so this may only be used if the application doesn't keep
+     * drawing bitmaps after they left the cache.
+     */
+    public void setEvictionPool(BitmapPool pool) {
+        mEvictionPool = pool;
+    }
+
     @Override
-    protected void entryRemoved(boolean evicted, BitmapLoader key, Bitmap oldValue,
+    protected void entryRemoved(boolean evicted, BitmapCacheKey key, Bitmap oldValue,
                                 Bitmap newValue) {
-        if (!oldValue.isRecycled()) {
-            mEvictedBitmap.put(key, new WeakReference<Bitmap>(oldValue));
+        if (oldValue.isRecycled() || oldValue == newValue) return;
+
+        BitmapPool pool = mEvictionPool;
+        if (pool != null && pool.put(oldValue)) {
+            mEvictedBitmap.remove(key);
+            // Its pixels are going to be overwritten by another image.
+            forgetRendition(key.id(), oldValue);
+        } else {
+            mEvictedBitmap.put(key, oldValue);
         }
     }
 
-    @Override
-    public Bitmap put(BitmapLoader key, Bitmap value) {
-        Bitmap bitmap = super.put(key, value);
-        Object id = key.a();
+    /**
+     * Caches the bitmap and remembers the dimensions of its source image, so that later requests
+     * for the same id can resolve their geometry without decoding bounds again.
+     *
+     * @param cost How expensive it was to produce the bitmap, in microseconds.
+     */
+    public Bitmap put(BitmapCacheKey key, Bitmap value, int sourceWidth, int sourceHeight,
+                      int cost) {
+        Bitmap bitmap = put(key, value, cost);
+        Object id = key.id();
         if (id != null) {
-            CachedMeta info = mMetaCache.get(id);
-            if (info == null) {
-                info = new CachedMeta();
-                mMetaCache.put(id, info);
+            expungeStaleMeta();
+            while (true) {
+                CachedMeta info = mMetaCache.get(id);
+                if (info == null) {
+                    info = new CachedMeta(id);
+                    CachedMeta existing = mMetaCache.putIfAbsent(id, info);
+                    if (existing != null) {
+                        info = existing;
+                    }
+                }
+                synchronized (info) {
+                    // Lost a race against the last bitmap of this image being collected.
+                    if (info.removed) continue;
+
+                    info.width = sourceWidth;
+                    info.height = sourceHeight;
+                    if (!info.isReferencing(value)) {
+                        info.references.add(new MetaReference(value, key, info, mMetaQueue));
+                    }
+                }
+                break;
             }
-            info.width = key.sourceWidth();
-            info.height = key.sourceHeight();
-            info.bitmaps.put(value, null);
         }
         return bitmap;
     }
 
     @Override
-    public Bitmap get(BitmapLoader key) {
+    public Bitmap get(BitmapCacheKey key) {
         Bitmap bitmap = super.get(key);
         if (bitmap != null) {
             if (bitmap.isRecycled()) {
@@ -78,58 +160,164 @@ public class BitmapLruCache extends LruCache<BitmapLoader, Bitmap> {
             }
         }
 
-        WeakReference<Bitmap> ref = mEvictedBitmap.get(key);
-        if (ref == null) {
-            if (Math.random() <= 0.2) {
-                gcEvictedBitmaps();
-            }
+        bitmap = mEvictedBitmap.get(key);
+        if (bitmap != null && bitmap.isRecycled()) {
+            mEvictedBitmap.remove(key, bitmap);
             return null;
         }
-
-        bitmap = ref.get();
-        if (bitmap == null || bitmap.isRecycled()) {
-            mEvictedBitmap.remove(key);
-            return null;
-        } else {
-            return bitmap;
-        }
+        return bitmap;
     }
 
     public BitmapMeta getMeta(Object id) {
         CachedMeta meta = mMetaCache.get(id);
         if (meta == null) {
-            if (Math.random() <= 0.2) {
-                gcMetaCache();
-            }
-            return null;
+            expungeStaleMeta();
         }
+        return meta;
+    }
 
-        if (meta.bitmaps.isEmpty()) {
-            mMetaCache.remove(id);
+    /**
+     * Finds the smallest bitmap of the same image which is at least as large as the requested one
+     * would be and covers its whole region, so the requested bitmap can be derived by scaling it
+     * down or cropping it instead of decoding again.
+     *
+     * @param outSourceRect Receives the part of the returned bitmap which corresponds to the
+     *                      requested region.
+     * @return The rendition, or null if none is suitable.
+     */
+    public Bitmap findRendition(BitmapCacheKey request, Rect outSourceRect) {
+        Object id = request.id();
+        if (id == null || (request.flags() & BitmapCacheKey.FLAG_POST_PROCESSED) != 0) {
             return null;
         }
+        CachedMeta meta = mMetaCache.get(id);
+        if (meta == null) return null;
 
-        return meta;
+        Bitmap best = null;
+        int bestPixels = Integer.MAX_VALUE;
+        synchronized (meta) {
+            int left, top, right, bottom;
+            if (request.hasRegion()) {
+                left = request.regionLeft();
+                top = request.regionTop();
+                right = request.regionRight();
+                bottom = request.regionBottom();
+            } else {
+                left = top = 0;
+                right = meta.width;
+                bottom = meta.height;
+            }
+            if (right <= left || bottom <= top) return null;
+
+            float scaleX = (float) request.width() / (right - left);
+            float scaleY = (float) request.height() / (bottom - top);
+
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0, c = meta.references.size(); i < c; ++i) {
+                MetaReference ref = meta.references.get(i);
+                BitmapCacheKey key = ref.key;
+                if (!isDerivable(key, request)) continue;
+
+                Bitmap bitmap = ref.get();
+                if (bitmap == null || bitmap.isRecycled()) continue;
+
+                int width = bitmap.getWidth();
+                int height = bitmap.getHeight();
+                if (width * height >= bestPixels) continue;
+
+                int keyLeft, keyTop, keyRight, keyBottom;
+                if (key.hasRegion()) {
+                    keyLeft = key.regionLeft();
+                    keyTop = key.regionTop();
+                    keyRight = key.regionRight();
+                    keyBottom = key.regionBottom();
+                } else {
+                    keyLeft = keyTop = 0;
+                    keyRight = meta.width;
+                    keyBottom = meta.height;
+                }
+                if (left < keyLeft || top < keyTop || right > keyRight || bottom > keyBottom) {
+                    continue;
+                }
+
+                float keyScaleX = (float) width / (keyRight - keyLeft);
+                float keyScaleY = (float) height / (keyBottom - keyTop);
+                if (keyScaleX < scaleX || keyScaleY < scaleY) continue;
+
+                best = bitmap;
+                bestPixels = width * height;
+                outSourceRect.set(
+                        Math.round((left - keyLeft) * keyScaleX),
+                        Math.round((top - keyTop) * keyScaleY),
+                        Math.min(width, Math.round((right - keyLeft) * keyScaleX)),
+                        Math.min(height, Math.round((bottom - keyTop) * keyScaleY)));
+            }
+        }
+        return best;
     }
 
-    private void gcEvictedBitmaps() {
-        Iterator<Map.Entry<BitmapLoader, WeakReference<Bitmap>>> it = mEvictedBitmap.entrySet()
-                .iterator();
-        while (it.hasNext()) {
-            Map.Entry<BitmapLoader, WeakReference<Bitmap>> entry = it.next();
-            Bitmap bitmap = entry.getValue().get();
-            if (bitmap == null || bitmap.isRecycled()) {
-                it.remove();
+    private static boolean isDerivable(BitmapCacheKey rendition, BitmapCacheKey request) {
+        int flags = rendition.flags();
+        int requestFlags = request.flags();
+        return (flags & UNDERIVABLE_FLAGS) == 0 &&
+                rendition.config() == request.config() &&
+                (flags & BitmapCacheKey.FLAG_OPAQUE) ==
+                        (requestFlags & BitmapCacheKey.FLAG_OPAQUE) &&
+                // An unfiltered rendition would show through a filtered request.
+                ((flags & BitmapCacheKey.FLAG_FILTER) != 0 ||
+                        (requestFlags & BitmapCacheKey.FLAG_FILTER) == 0);
+    }
+
+    private void forgetRendition(Object id, Bitmap bitmap) {
+        if (id == null) return;
+
+        CachedMeta meta = mMetaCache.get(id);
+        if (meta == null) return;
+
+        synchronized (meta) {
+            for (int i = meta.references.size() - 1; i >= 0; --i) {
+                MetaReference ref = meta.references.get(i);
+                if (ref.get() == bitmap) {
+                    meta.references.remove(i);
+                    ref.clear();
+                }
+            }
+            // The removed references will never be enqueued.
+            if (meta.references.isEmpty() && !meta.removed) {
+                meta.removed = true;
+                mMetaCache.remove(meta.id, meta);
             }
         }
     }
 
-    private void gcMetaCache() {
-        Iterator<Map.Entry<Object, CachedMeta>> it = mMetaCache.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<Object, CachedMeta> entry = it.next();
-            if (entry.getValue().bitmaps.isEmpty()) {
-                it.remove();
+    /**
+     * Forgets bitmaps which have been evicted but might still be alive, and the meta of images
+     * which don't have any bitmap alive anymore.
+     */
+    public void clearEvictedBitmaps() {
+        mEvictedBitmap.clear();
+        expungeStaleMeta();
+    }
+
+    /**
+     * Forgets the meta of all images. Cached bitmaps can't be found anymore until their images are
+     * decoded again, so this should only be called together with {@link #evictAll()}.
+     */
+    public void clearMetaCache() {
+        mMetaCache.clear();
+    }
+
+    private void expungeStaleMeta() {
+        Object polled;
+        while ((polled = mMetaQueue.poll()) != null) {
+            MetaReference ref = (MetaReference) polled;
+            CachedMeta meta = ref.meta;
+            synchronized (meta) {
+                meta.references.remove(ref);
+                if (meta.references.isEmpty() && !meta.removed) {
+                    meta.removed = true;
+                    mMetaCache.remove(meta.id, meta);
+                }
             }
         }
     }
@@ -0,0 +1,226 @@
+package rapid.decoder.cache;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Color;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import rapid.decoder.BitmapUtils;
+
+/**
+ * A byte-budgeted pool of mutable bitmaps which can be decoded into through
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} or drawn into instead of allocating a new
+ * bitmap every time.
+ * <p>
+ * Bitmaps are bucketed by their allocation size. Before KitKat a bitmap can only be reused for
+ * exactly the same size and config, so lookups also match those. From KitKat on any bitmap with a
+ * large enough allocation is handed out and reconfigured. When the pool grows over its budget the
+ * bitmap which has been pooled for the longest time is recycled.
+ */
+public class BitmapPool {
+    /**
+     * A pooled bitmap is not handed out for a request which needs less than 1 / n of its
+     * allocation, so that small thumbnails don't pin large buffers.
+     */
+    private static final int MAX_SIZE_MULTIPLIER = 4;
+
+    private final TreeMap<Integer, ArrayList<Bitmap>> mBuckets =
+            new TreeMap<Integer, ArrayList<Bitmap>>();
+    private final LinkedHashSet<Bitmap> mBitmaps = new LinkedHashSet<Bitmap>();
+    private int mSize;
+    private int mMaxSize;
+
+    private int mHitCount;
+    private int mMissCount;
+
+    public BitmapPool(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Gives the bitmap to the pool. Only mutable bitmaps can be reused, and the caller must not
+     * touch the bitmap anymore once it has been accepted.
+     *
+     * @return true if the bitmap has been pooled. Otherwise the caller still owns it.
+     */
+    public boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return false;
+        }
+
+        final int byteCount = BitmapUtils.getByteCount(bitmap);
+        synchronized (this) {
+            if (byteCount > mMaxSize || !mBitmaps.add(bitmap)) {
+                return false;
+            }
+
+            ArrayList<Bitmap> bucket = mBuckets.get(byteCount);
+            if (bucket == null) {
+                bucket = new ArrayList<Bitmap>();
+                mBuckets.put(byteCount, bucket);
+            }
+            bucket.add(bitmap);
+            mSize += byteCount;
+
+            trimToSize(mMaxSize);
+        }
+        return true;
+    }
+
+    /**
+     * Returns a bitmap of the given size and config whose pixels are cleared to transparent, or
+     * null if there is no suitable one.
+     */
+    @SuppressLint("NewApi")
+    public Bitmap get(int width, int height, Config config) {
+        if (config == null) {
+            config = Config.ARGB_8888;
+        }
+
+        final Bitmap bitmap = getDirty(width, height, config);
+        if (bitmap == null) return null;
+
+        if (Build.VERSION.SDK_INT >= 19 && (bitmap.getWidth() != width ||
+                bitmap.getHeight() != height || bitmap.getConfig() != config)) {
+
+            try {
+                bitmap.reconfigure(width, height, config);
+            } catch (IllegalArgumentException e) {
+                put(bitmap);
+                return null;
+            }
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        if (Build.VERSION.SDK_INT >= 12) {
+            bitmap.setHasAlpha(!Config.RGB_565.equals(config));
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns a bitmap which can be used as {@link android.graphics.BitmapFactory.Options#inBitmap}
+     * to decode an image of the given size and config, or null if there is no suitable one. From
+     * KitKat on the returned bitmap may be bigger than requested and still holds its old pixels.
+     */
+    public synchronized Bitmap getDirty(int width, int height, Config config) {
+        if (width <= 0 || height <= 0) return null;
+        if (config == null) {
+            config = Config.ARGB_8888;
+        }
+
+        final int byteCount = width * height * bytesPerPixel(config);
+        Bitmap bitmap = null;
+        if (Build.VERSION.SDK_INT >= 19) {
+            SortedMap<Integer, ArrayList<Bitmap>> larger = mBuckets.tailMap(byteCount);
+            if (!larger.isEmpty()) {
+                int bucketByteCount = larger.firstKey();
+                if (bucketByteCount <= byteCount * MAX_SIZE_MULTIPLIER) {
+                    ArrayList<Bitmap> bucket = larger.get(bucketByteCount);
+                    bitmap = removeFromBucket(bucketByteCount, bucket, bucket.size() - 1);
+                }
+            }
+        } else {
+            ArrayList<Bitmap> bucket = mBuckets.get(byteCount);
+            if (bucket != null) {
+                for (int i = bucket.size() - 1; i >= 0; --i) {
+                    Bitmap candidate = bucket.get(i);
+                    if (candidate.getWidth() == width && candidate.getHeight() == height &&
+                            config.equals(candidate.getConfig())) {
+
+                        bitmap = removeFromBucket(byteCount, bucket, i);
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (bitmap == null) {
+            ++mMissCount;
+        } else {
+            ++mHitCount;
+        }
+        return bitmap;
+    }
+
+    private Bitmap removeFromBucket(int byteCount, ArrayList<Bitmap> bucket, int index) {
+        Bitmap bitmap = bucket.remove(index);
+        if (bucket.isEmpty()) {
+            mBuckets.remove(byteCount);
+        }
+        mBitmaps.remove(bitmap);
+        mSize -= byteCount;
+        return bitmap;
+    }
+
+    /**
+     * Recycles pooled bitmaps, eldest first, until the pool is not bigger than the given size.
+     */
+    public synchronized void trimToSize(int maxSize) {
+        Iterator<Bitmap> it = mBitmaps.iterator();
+        while (mSize > maxSize && it.hasNext()) {
+            Bitmap bitmap = it.next();
+            it.remove();
+
+            int byteCount = BitmapUtils.getByteCount(bitmap);
+            ArrayList<Bitmap> bucket = mBuckets.get(byteCount);
+            if (bucket != null) {
+                bucket.remove(bitmap);
+                if (bucket.isEmpty()) {
+                    mBuckets.remove(byteCount);
+                }
+            }
+            mSize -= byteCount;
+            bitmap.recycle();
+        }
+    }
+
+    public void evictAll() {
+        trimToSize(-1);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    private static int bytesPerPixel(Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+                return 2;
+            case ARGB_4444:
+                // ARGB_4444 is decoded as ARGB_8888 from KitKat on.
+                return Build.VERSION.SDK_INT >= 19 ? 4 : 2;
+            default:
+                return 4;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d]", mSize, mMaxSize,
+                mHitCount, mMissCount);
+    }
+}
@@ -0,0 +1,225 @@
+package rapid.decoder.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import rapid.decoder.BitmapMeta;
+
+/**
+ * The header at the start of each file of {@link DiskLruCache}. The payload follows it directly.
+ * <pre>
+ *   int     magic
+ *   int     header length, including the key
+ *   long    payload length
+ *   int     width, or 0 if unknown
+ *   int     height, or 0 if unknown
+ *   byte[]  mime type in ASCII, padded with zeros to {@value #MIME_TYPE_SIZE} bytes
+ *   long    expiry time in milliseconds since the epoch
+ *   long    length of the complete payload, or -1 if unknown
+ *   UTF     the full key (see {@link java.io.DataOutput#writeUTF})
+ *   UTF     ETag, or empty
+ *   UTF     Last-Modified, or empty
+ * </pre>
+ * The payload length, size and mime type are written when the entry is committed, since they're
+ * only known once the whole payload has been written.
+ */
+public final class CacheEntryHeader implements BitmapMeta {
+    private static final int MAGIC = 0x52444333; // "RDC3"
+    private static final int MIME_TYPE_SIZE = 16;
+    private static final int COMMITTED_FIELDS_OFFSET = 8;
+    private static final int COMMITTED_FIELDS_SIZE = 8 + 4 + 4 + MIME_TYPE_SIZE;
+    private static final int FIXED_SIZE = COMMITTED_FIELDS_OFFSET + COMMITTED_FIELDS_SIZE + 8 + 8;
+    /**
+     * Headers are read with a single read of this many bytes unless the key is unusually long.
+     */
+    private static final int READ_SIZE = 512;
+
+    private final String mKey;
+    private final int mHeaderLength;
+    private final long mLength;
+    private final String mMimeType;
+    private final int mWidth;
+    private final int mHeight;
+    private final HttpCacheInfo mCacheInfo;
+
+    private CacheEntryHeader(String key, int headerLength, long length, String mimeType,
+                             int width, int height, HttpCacheInfo cacheInfo) {
+        mKey = key;
+        mHeaderLength = headerLength;
+        mLength = length;
+        mMimeType = mimeType;
+        mWidth = width;
+        mHeight = height;
+        mCacheInfo = cacheInfo;
+    }
+
+    public String key() {
+        return mKey;
+    }
+
+    /**
+     * @return The length of the payload in bytes.
+     */
+    public long length() {
+        return mLength;
+    }
+
+    /**
+     * @return The mime type of the payload, or null if it isn't a known image format.
+     */
+    public String mimeType() {
+        return mMimeType;
+    }
+
+    @Override
+    public int width() {
+        return mWidth;
+    }
+
+    @Override
+    public int height() {
+        return mHeight;
+    }
+
+    /**
+     * @return The HTTP validators and freshness of the entry, or null if it has been stored
+     * without any and stays valid until it is evicted.
+     */
+    public HttpCacheInfo cacheInfo() {
+        return mCacheInfo;
+    }
+
+    /**
+     * @return false if the entry holds only the beginning of a download which has been
+     * interrupted, and which can be resumed from its end.
+     */
+    public boolean isComplete() {
+        return mCacheInfo == null || mCacheInfo.contentLength() < 0 ||
+                mLength >= mCacheInfo.contentLength();
+    }
+
+    /**
+     * @return The position of the payload in the entry.
+     */
+    int headerLength() {
+        return mHeaderLength;
+    }
+
+    /**
+     * Writes the header of a new entry. The fields which depend on the payload are left empty
+     * until {@link #commit} is called.
+     */
+    static void writeTo(OutputStream out, String key, HttpCacheInfo cacheInfo)
+            throws IOException {
+        String eTag = null;
+        String lastModified = null;
+        long expiresAt = HttpCacheInfo.NEVER_EXPIRES;
+        long contentLength = -1;
+        if (cacheInfo != null) {
+            eTag = cacheInfo.eTag();
+            lastModified = cacheInfo.lastModified();
+            expiresAt = cacheInfo.expiresAt();
+            contentLength = cacheInfo.contentLength();
+        }
+
+        ByteArrayOutputStream variableBytes = new ByteArrayOutputStream(key.length() + 64);
+        DataOutputStream variable = new DataOutputStream(variableBytes);
+        variable.writeUTF(key);
+        variable.writeUTF(eTag != null ? eTag : "");
+        variable.writeUTF(lastModified != null ? lastModified : "");
+
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(MAGIC);
+        dos.writeInt(FIXED_SIZE + variableBytes.size());
+        dos.write(new byte[COMMITTED_FIELDS_SIZE]);
+        dos.writeLong(expiresAt);
+        dos.writeLong(contentLength);
+        variableBytes.writeTo(dos);
+        dos.flush();
+    }
+
+    /**
+     * Fills in the fields of a header written by {@link #writeTo} once the payload is complete.
+     */
+    static void commit(DiskStore.Editor editor, long length, String mimeType, int width,
+                       int height) throws IOException {
+        ByteBuffer fields = ByteBuffer.allocate(COMMITTED_FIELDS_SIZE);
+        fields.putLong(length).putInt(width).putInt(height);
+        if (mimeType != null) {
+            byte[] ascii = mimeType.getBytes("US-ASCII");
+            fields.put(ascii, 0, Math.min(ascii.length, MIME_TYPE_SIZE));
+        }
+
+        editor.overwrite(COMMITTED_FIELDS_OFFSET, fields.array());
+    }
+
+    /**
+     * Reads and validates the header of the entry.
+     *
+     * @return The header, or null if the entry doesn't belong to the key or is incomplete.
+     */
+    static CacheEntryHeader read(DiskStore.Snapshot snapshot, String key) throws IOException {
+        FileChannel channel = snapshot.getChannel();
+        long offset = snapshot.getOffset();
+        if (snapshot.getLength() < FIXED_SIZE) return null;
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_SIZE, snapshot.getLength()));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) break;
+        }
+        if (buffer.position() < FIXED_SIZE) return null;
+
+        buffer.flip();
+        int magic = buffer.getInt();
+        int headerLength = buffer.getInt();
+        long length = buffer.getLong();
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        if (magic != MAGIC || headerLength < FIXED_SIZE ||
+                length != snapshot.getLength() - headerLength) {
+            return null;
+        }
+
+        byte[] mimeBytes = new byte[MIME_TYPE_SIZE];
+        buffer.get(mimeBytes);
+        int mimeLength = 0;
+        while (mimeLength < MIME_TYPE_SIZE && mimeBytes[mimeLength] != 0) {
+            ++mimeLength;
+        }
+        String mimeType = (mimeLength == 0 ? null : new String(mimeBytes, 0, mimeLength,
+                "US-ASCII"));
+        long expiresAt = buffer.getLong();
+        long contentLength = buffer.getLong();
+
+        byte[] variableBytes = new byte[headerLength - FIXED_SIZE];
+        int buffered = Math.min(variableBytes.length, buffer.remaining());
+        buffer.get(variableBytes, 0, buffered);
+        if (buffered < variableBytes.length) {
+            ByteBuffer rest = ByteBuffer.wrap(variableBytes, buffered,
+                    variableBytes.length - buffered);
+            while (rest.hasRemaining()) {
+                if (channel.read(rest, offset + FIXED_SIZE + rest.position()) < 0) return null;
+            }
+        }
+        DataInputStream variable = new DataInputStream(new ByteArrayInputStream(variableBytes));
+        String storedKey = variable.readUTF();
+        if (!storedKey.equals(key)) return null;
+        String eTag = variable.readUTF();
+        String lastModified = variable.readUTF();
+
+        HttpCacheInfo cacheInfo = null;
+        if (eTag.length() != 0 || lastModified.length() != 0 ||
+                expiresAt != HttpCacheInfo.NEVER_EXPIRES || contentLength >= 0) {
+            cacheInfo = new HttpCacheInfo(eTag.length() == 0 ? null : eTag,
+                    lastModified.length() == 0 ? null : lastModified, expiresAt, contentLength);
+        }
+        return new CacheEntryHeader(storedKey, headerLength, length, mimeType, width, height,
+                cacheInfo);
+    }
+}
@@ -0,0 +1,39 @@
+package rapid.decoder.cache;
+
+/**
+ * Chooses which entries {@link LruCache} keeps when it is full.
+ */
+public enum CachePolicy {
+    /**
+     * Evicts the least recently used entry.
+     */
+    LRU {
+        @Override
+        <K, V> EvictionPolicy<K, V> newEvictionPolicy() {
+            return new LruPolicy<K, V>();
+        }
+    },
+    /**
+     * W-TinyLFU. Recency based like LRU for new entries, but keeps frequently used entries when a
+     * lot of entries are only used once, e.g. while flinging through a long list.
+     */
+    W_TINY_LFU {
+        @Override
+        <K, V> EvictionPolicy<K, V> newEvictionPolicy() {
+            return new WindowTinyLfuPolicy<K, V>();
+        }
+    },
+    /**
+     * GreedyDual-Size-Frequency. Keeps entries which were expensive to produce, are small and
+     * are used often, and evicts cheap and large ones first. Entries should be put with
+     * {@link LruCache#put(Object, Object, int)} to tell their cost.
+     */
+    GDSF {
+        @Override
+        <K, V> EvictionPolicy<K, V> newEvictionPolicy() {
+            return new GreedyDualSizePolicy<K, V>();
+        }
+    };
+
+    abstract <K, V> EvictionPolicy<K, V> newEvictionPolicy();
+}
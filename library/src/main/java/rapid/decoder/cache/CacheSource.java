@@ -2,6 +2,19 @@ package rapid.decoder.cache;
 
 public enum CacheSource {
     MEMORY,
+    /**
+     * Scaled down or cropped from a larger bitmap of the same image in the memory cache.
+     */
+    MEMORY_DERIVED,
+    /**
+     * Decoded from compressed bytes kept in memory, without reading the disk or the network.
+     */
+    MEMORY_ENCODED,
     DISK,
+    /**
+     * Decoded from a resized, cropped or framed copy kept in the rendition cache, without decoding
+     * the full-size image.
+     */
+    DISK_RENDITION,
     NOT_CACHED
 }
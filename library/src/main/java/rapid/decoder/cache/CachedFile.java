@@ -0,0 +1,74 @@
+package rapid.decoder.cache;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An entry of {@link DiskLruCache} opened for decoders to read directly, either through its file
+ * descriptor or mapped into memory, instead of copying it through a stream.
+ * <p>
+ * The file stays open until this is closed or garbage collected. It stays readable even if the
+ * entry is evicted meanwhile.
+ */
+public final class CachedFile implements Closeable {
+    private final DiskStore.Snapshot mSnapshot;
+    private final CacheEntryHeader mHeader;
+    private final long mPayloadOffset;
+    private ByteBuffer mMappedBuffer;
+
+    CachedFile(DiskStore.Snapshot snapshot, CacheEntryHeader header) {
+        mSnapshot = snapshot;
+        mHeader = header;
+        mPayloadOffset = snapshot.getOffset() + header.headerLength();
+    }
+
+    public CacheEntryHeader getHeader() {
+        return mHeader;
+    }
+
+    /**
+     * @return The length of the payload in bytes.
+     */
+    public long getLength() {
+        return mHeader.length();
+    }
+
+    /**
+     * @return The file descriptor, which reads the payload from its current position on. The
+     * position is shared by every user of the descriptor, so reads have to synchronize on this
+     * object and call {@link #rewind()} first. The payload may be preceded and followed by other
+     * data, so it can't be handed to decoders which seek on their own, like BitmapFactory on some
+     * versions; decode from {@link #map()} instead.
+     */
+    public FileDescriptor getFileDescriptor() throws IOException {
+        return mSnapshot.getFileDescriptor();
+    }
+
+    /**
+     * Moves the position of the file descriptor to the start of the payload.
+     */
+    public void rewind() throws IOException {
+        mSnapshot.getChannel().position(mPayloadOffset);
+    }
+
+    /**
+     * @return A read-only buffer of the payload, mapped into memory the first time this is called.
+     * Every call returns a new buffer positioned at the start, which shares the mapping. The
+     * mapping stays valid after this is closed, since entries are never overwritten in place.
+     */
+    public synchronized ByteBuffer map() throws IOException {
+        if (mMappedBuffer == null) {
+            mMappedBuffer = mSnapshot.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    mPayloadOffset, getLength());
+        }
+        return mMappedBuffer.duplicate();
+    }
+
+    @Override
+    public void close() {
+        mSnapshot.close();
+    }
+}
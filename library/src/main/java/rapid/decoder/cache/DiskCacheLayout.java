@@ -0,0 +1,31 @@
+package rapid.decoder.cache;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Chooses how {@link DiskLruCache} lays out its entries on the file system.
+ */
+public enum DiskCacheLayout {
+    /**
+     * Every entry is a file of its own, and a journal tracks them. Suits large images.
+     */
+    FILE_PER_ENTRY {
+        @Override
+        DiskStore open(File directory, int appVersion, long maxSize) throws IOException {
+            return new FileDiskStore(DiskLruCacheEngine.open(directory, appVersion, 1, maxSize));
+        }
+    },
+    /**
+     * Entries are appended to a few large segment files and evicted a segment at a time. Saves
+     * the per-file costs of the file system when most entries are small, like thumbnails.
+     */
+    SEGMENTS {
+        @Override
+        DiskStore open(File directory, int appVersion, long maxSize) throws IOException {
+            return SegmentDiskStore.open(directory, appVersion, maxSize);
+        }
+    };
+
+    abstract DiskStore open(File directory, int appVersion, long maxSize) throws IOException;
+}
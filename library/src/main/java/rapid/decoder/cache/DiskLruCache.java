@@ -10,8 +10,6 @@ import android.os.Build;
 import android.os.Environment;
 import android.os.StatFs;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -19,19 +17,35 @@ import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+/**
+ * Each entry starts with a {@link CacheEntryHeader} holding the full key, so a lookup validates it
+ * with one read. How entries are stored is chosen with {@link DiskCacheLayout}.
+ * <p>
+ * Lookups and writes of different keys run in parallel. {@link #mDiskCacheLock} only guards
+ * opening, closing and clearing the cache. Nothing waits for the cache to be opened in the
+ * background: lookups miss and writes are dropped until it is ready.
+ */
 public class DiskLruCache {
     private final Object mDiskCacheLock = new Object();
-    private DiskLruCacheEngine mCache;
+    private volatile DiskStore mCache;
     private Context mContext;
     private String mCacheName;
+    private File mDirectory;
     private long mCacheSize;
-    private boolean mDiskCacheStarting = true;
+    private DiskCacheLayout mLayout;
+    private boolean mClosed;
 
-    @SuppressLint("NewApi")
     public DiskLruCache(Context context, String cacheName, long cacheSize) {
+        this(context, cacheName, cacheSize, DiskCacheLayout.FILE_PER_ENTRY);
+    }
+
+    @SuppressLint("NewApi")
+    public DiskLruCache(Context context, String cacheName, long cacheSize,
+                        DiskCacheLayout layout) {
         mContext = context;
         mCacheName = cacheName;
         mCacheSize = cacheSize;
+        mLayout = layout;
 
         int version;
         PackageManager pm = context.getPackageManager();
@@ -57,8 +71,26 @@ public class DiskLruCache {
         }
     }
 
+    /**
+     * Opens the cache in the given directory on the calling thread.
+     */
+    public DiskLruCache(File directory, int appVersion, long cacheSize) {
+        this(directory, appVersion, cacheSize, DiskCacheLayout.FILE_PER_ENTRY);
+    }
+
+    /**
+     * Opens the cache in the given directory on the calling thread.
+     */
+    public DiskLruCache(File directory, int appVersion, long cacheSize, DiskCacheLayout layout) {
+        mDirectory = directory;
+        mCacheSize = cacheSize;
+        mLayout = layout;
+        initDiskCache(appVersion);
+    }
+
     public void close() {
         synchronized (mDiskCacheLock) {
+            mClosed = true;
             if (mCache != null) {
                 try {
                     mCache.close();
@@ -71,109 +103,154 @@ public class DiskLruCache {
     private void initDiskCache(int version) {
         // Set up disk cache
         synchronized (mDiskCacheLock) {
-            try {
-                if (mCache == null || mCache.isClosed()) {
-                    File diskCacheDir = getDiskCacheDir(mContext, mCacheName);
-                    if (!diskCacheDir.exists()) {
-                        if (!diskCacheDir.mkdirs()) {
-                            return;
-                        }
-                    }
-                    if (getUsableSpace(diskCacheDir) > mCacheSize) {
-                        try {
-                            mCache = DiskLruCacheEngine.open(
-                                    diskCacheDir, version, 2, mCacheSize);
-                        } catch (final IOException ignored) {
-                        }
-                    }
+            if (mClosed || (mCache != null && !mCache.isClosed())) {
+                return;
+            }
+            if (mDirectory == null) {
+                mDirectory = getDiskCacheDir(mContext, mCacheName);
+            }
+            File diskCacheDir = mDirectory;
+            if (!diskCacheDir.exists()) {
+                if (!diskCacheDir.mkdirs()) {
+                    return;
+                }
+            }
+            if (getUsableSpace(diskCacheDir) > mCacheSize) {
+                try {
+                    mCache = mLayout.open(diskCacheDir, version, mCacheSize);
+                } catch (final IOException ignored) {
                 }
-            } finally {
-                mDiskCacheStarting = false;
-                mDiskCacheLock.notifyAll();
             }
         }
     }
 
     public TransactionOutputStream getOutputStream(String key) {
-        final String hash = hashKeyForDisk(key);
+        return getOutputStream(key, null);
+    }
 
-        synchronized (mDiskCacheLock) {
-            while (mDiskCacheStarting) {
-                try {
-                    mDiskCacheLock.wait();
-                } catch (InterruptedException ignored) {
-                }
-            }
+    /**
+     * @param cacheInfo How the entry is revalidated when it goes stale, or null if it stays valid
+     *                  until it is evicted.
+     */
+    public TransactionOutputStream getOutputStream(String key, HttpCacheInfo cacheInfo) {
+        final String hash = hashKeyForDisk(key);
+        final DiskStore cache = mCache;
 
-            // Add to disk cache
-            if (mCache != null) {
-                OutputStream out = null;
-                try {
-                    final DiskLruCacheEngine.Editor editor = mCache.edit(hash);
-                    if (editor != null) {
-                        out = editor.newOutputStream(0);
-                        DataOutputStream dos = new DataOutputStream(out);
-                        dos.writeUTF(key);
-                        dos.close();
-
-                        return new TransactionOutputStream(this, editor, editor.newOutputStream(1));
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                } finally {
-                    try {
-                        if (out != null) {
-                            out.close();
-                        }
-                    } catch (IOException ignored) {
-                    }
+        // Add to disk cache
+        if (cache != null) {
+            try {
+                final DiskStore.Editor editor = cache.edit(hash);
+                if (editor != null) {
+                    OutputStream out = editor.newOutputStream();
+                    CacheEntryHeader.writeTo(out, key, cacheInfo);
+                    return new TransactionOutputStream(this, editor, out);
                 }
+            } catch (Exception e) {
+                e.printStackTrace();
             }
         }
 
         return null;
     }
 
+    /**
+     * @return A stream positioned at the payload of the entry, or null if there is no complete
+     * one.
+     */
     public InputStream get(String key) {
-        final String hash = hashKeyForDisk(key);
+        DiskStore.Snapshot snapshot = getSnapshot(key);
+        if (snapshot == null) return null;
 
-        synchronized (mDiskCacheLock) {
-            while (mDiskCacheStarting) {
-                try {
-                    mDiskCacheLock.wait();
-                } catch (InterruptedException ignored) {
-                }
+        try {
+            CacheEntryHeader header = CacheEntryHeader.read(snapshot, key);
+            if (header != null && header.isComplete()) {
+                return snapshot.newInputStream(header.headerLength());
             }
+        } catch (IOException ignored) {
+        }
+        snapshot.close();
+        return null;
+    }
 
-            if (mCache == null) return null;
+    /**
+     * Opens the entry for decoders to read straight from the file, through its descriptor or
+     * mapped into memory.
+     *
+     * @return The entry, or null if there is no complete one.
+     */
+    public CachedFile getFile(String key) {
+        return getFile(key, true);
+    }
 
-            // Add to disk cache
-            InputStream inputStream = null;
-            try {
-                final DiskLruCacheEngine.Snapshot snapshot = mCache.get(hash);
-                if (snapshot == null) return null;
+    /**
+     * @return The beginning of a download which has been interrupted, or null if there is none.
+     * @see CacheEntryHeader#isComplete()
+     */
+    public CachedFile getPartialFile(String key) {
+        return getFile(key, false);
+    }
 
-                inputStream = snapshot.getInputStream(0);
-                if (inputStream == null) return null;
+    private CachedFile getFile(String key, boolean complete) {
+        DiskStore.Snapshot snapshot = getSnapshot(key);
+        if (snapshot == null) return null;
 
-                DataInputStream dis = new DataInputStream(inputStream);
-                String storedKey = dis.readUTF();
-                dis.close();
+        try {
+            CacheEntryHeader header = CacheEntryHeader.read(snapshot, key);
+            if (header != null && header.isComplete() == complete) {
+                return new CachedFile(snapshot, header);
+            }
+        } catch (IOException ignored) {
+        }
+        snapshot.close();
+        return null;
+    }
 
-                if (!storedKey.equals(key)) return null;
+    /**
+     * Reads only the header of the entry, which tells the payload's type and dimensions without
+     * decoding it.
+     *
+     * @return The header, or null if there is no complete entry for the key.
+     */
+    public CacheEntryHeader getHeader(String key) {
+        DiskStore.Snapshot snapshot = getSnapshot(key);
+        if (snapshot == null) return null;
 
-                return snapshot.getInputStream(1);
-            } catch (IOException ignored) {
-            } finally {
-                try {
-                    if (inputStream != null) {
-                        inputStream.close();
-                    }
-                } catch (IOException ignored) {
-                }
-            }
+        try {
+            CacheEntryHeader header = CacheEntryHeader.read(snapshot, key);
+            return (header != null && header.isComplete() ? header : null);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * @return true if the entry was removed.
+     */
+    public boolean remove(String key) {
+        final DiskStore cache = mCache;
+        if (cache == null) return false;
+
+        try {
+            return cache.remove(hashKeyForDisk(key));
+        } catch (IOException ignored) {
+        } catch (IllegalStateException ignored) {
+            // closed or cleared in the meantime
         }
+        return false;
+    }
 
+    private DiskStore.Snapshot getSnapshot(String key) {
+        final DiskStore cache = mCache;
+        if (cache == null) return null;
+
+        try {
+            return cache.get(hashKeyForDisk(key));
+        } catch (IOException ignored) {
+        } catch (IllegalStateException ignored) {
+            // closed or cleared in the meantime
+        }
         return null;
     }
 
@@ -236,9 +313,12 @@ public class DiskLruCache {
     }
 
     public void flush() throws IOException {
-        synchronized (mDiskCacheLock) {
-            if (mCache != null) {
-                mCache.flush();
+        DiskStore cache = mCache;
+        if (cache != null) {
+            try {
+                cache.flush();
+            } catch (IllegalStateException ignored) {
+                // closed or cleared in the meantime
             }
         }
     }
@@ -17,14 +17,16 @@
 package rapid.decoder.cache;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -34,18 +36,25 @@ import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.lang.reflect.Array;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  ******************************************************************************
@@ -98,96 +107,132 @@ import java.util.concurrent.TimeUnit;
  * responding appropriately.
  */
 final class DiskLruCacheEngine implements Closeable {
-    static final String JOURNAL_FILE = "journal";
-    static final String JOURNAL_FILE_TMP = "journal.tmp";
-    static final String MAGIC = "libcore.io.DiskLruCache";
-    static final String VERSION_1 = "1";
+    static final String JOURNAL_FILE = "journal.bin";
+    static final String JOURNAL_FILE_TMP = "journal.bin.tmp";
+    static final String INDEX_FILE = "index.bin";
+    static final String INDEX_FILE_TMP = "index.bin.tmp";
+    /** Text journal of earlier versions. */
+    static final String LEGACY_JOURNAL_FILE = "journal";
+    static final int MAGIC = 0x444c5243; // "DLRC"
+    static final int VERSION_2 = 2;
+    static final int INDEX_MAGIC = 0x444c5249; // "DLRI"
+    private static final int JOURNAL_HEADER_SIZE = 16;
     static final long ANY_SEQUENCE_NUMBER = -1;
-    private static final String CLEAN = "CLEAN";
-    private static final String DIRTY = "DIRTY";
-    private static final String REMOVE = "REMOVE";
-    private static final String READ = "READ";
+    private static final byte CLEAN = 1;
+    private static final byte DIRTY = 2;
+    private static final byte REMOVE = 3;
+    private static final byte READ = 4;
 
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
+    /** Queued records are written at the latest after this long... */
+    private static final long JOURNAL_WRITE_DELAY_MILLIS = 200;
+    /** ...or as soon as this many of them are queued. */
+    private static final int JOURNAL_WRITE_BATCH_SIZE = 64;
+
     /*
-     * This cache uses a journal file named "journal". A typical journal file
-     * looks like this:
-     *     libcore.io.DiskLruCache
-     *     1
-     *     100
-     *     2
+     * This cache uses a binary journal file named "journal.bin". It starts
+     * with a header of four big-endian ints: the magic number, the journal
+     * version, the application's version and the value count.
+     *
+     * Each following record is the state of a cache entry: an op byte and the
+     * key as modified UTF-8 (see DataOutput#writeUTF), followed by the
+     * lengths of the values as unsigned LEB128 varints for CLEAN records.
+     *   o DIRTY records track that an entry is actively being created or
+     *     updated. Every successful DIRTY action should be followed by a CLEAN
+     *     or REMOVE action.
+     *   o CLEAN records track a cache entry that has been successfully
+     *     published and may be read.
+     *   o READ records track accesses for LRU.
+     *   o REMOVE records track entries that have been deleted.
      *
-     *     CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832 21054
-     *     DIRTY 335c4c6028171cfddfbaae1a9c313c52
-     *     CLEAN 335c4c6028171cfddfbaae1a9c313c52 3934 2342
-     *     REMOVE 335c4c6028171cfddfbaae1a9c313c52
-     *     DIRTY 1ab96a171faeeee38496d8b330771a7a
-     *     CLEAN 1ab96a171faeeee38496d8b330771a7a 1600 234
-     *     READ 335c4c6028171cfddfbaae1a9c313c52
-     *     READ 3400330d1dfc7f3f7f4b8d4d803dfcf6
+     * The journal file is appended to as cache operations occur. Records are
+     * queued and written in batches, on a short timer or once enough of them
+     * are queued, instead of one flush per operation. A crash may lose the
+     * last batch, and may leave a partial record at the end of the journal,
+     * which is dropped on the next open. Since DIRTY records aren't
+     * guaranteed to be on disk before files are created, opening the cache
+     * deletes every file in its directory which the journal doesn't know of.
      *
-     * The first five lines of the journal form its header. They are the
-     * constant string "libcore.io.DiskLruCache", the disk cache's version,
-     * the application's version, the value count, and a blank line.
+     * The journal is occasionally compacted in the background by writing the
+     * current state to "journal.bin.tmp", which replaces the journal
+     * afterwards. Records queued meanwhile keep being appended to the old
+     * journal and are copied over to the new one at the end, so compaction
+     * doesn't hold up operations on the cache.
      *
-     * Each of the subsequent lines in the file is a record of the state of a
-     * cache entry. Each line contains space-separated values: a state, a key,
-     * and optional state-specific values.
-     *   o DIRTY lines track that an entry is actively being created or updated.
-     *     Every successful DIRTY action should be followed by a CLEAN or REMOVE
-     *     action. DIRTY lines without a matching CLEAN or REMOVE indicate that
-     *     temporary files may need to be deleted.
-     *   o CLEAN lines track a cache entry that has been successfully published
-     *     and may be read. A publish line is followed by the lengths of each of
-     *     its values.
-     *   o READ lines track accesses for LRU.
-     *   o REMOVE lines track entries that have been deleted.
+     * After compaction and on close, the published entries are also written in
+     * access order to an index snapshot named "index.bin", along with the length
+     * the journal had when the snapshot was taken. Opening the cache loads the
+     * snapshot with a single read and replays only the journal records after
+     * that length. The snapshot is deleted before the journal is replaced, so it
+     * never describes another journal than the current one.
      *
-     * The journal file is appended to as cache operations occur. The journal may
-     * occasionally be compacted by dropping redundant lines. A temporary file named
-     * "journal.tmp" will be used during compaction; that file should be deleted if
-     * it exists when the cache is opened.
+     * Operations on different entries run in parallel. Each entry is guarded by
+     * its own monitor, and the records it produces are queued while holding it
+     * so records of one entry stay in order. The journal lock may be taken
+     * while holding no entry monitor, or before taking them, but never the
+     * other way around.
      */
 
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
+    private final File indexFile;
+    private final File indexFileTmp;
+    /** Serializes replacing the journal and writing the index snapshot. */
+    private final Object indexLock = new Object();
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
-    private long size = 0;
-    private Writer journalWriter;
-    private final LinkedHashMap<String, Entry> lruEntries
-            = new LinkedHashMap<String, Entry>(0, 0.75f, true);
-    private int redundantOpCount;
+    private final AtomicLong size = new AtomicLong();
+    private final ConcurrentHashMap<String, Entry> lruEntries
+            = new ConcurrentHashMap<String, Entry>();
+    private final AtomicInteger redundantOpCount = new AtomicInteger();
+    private volatile boolean closed;
+
+    /** Orders entries by their last access, since the map itself isn't ordered. */
+    private final AtomicLong accessClock = new AtomicLong();
+
+    /** Serializes removing the least recently used entries. */
+    private final Object trimLock = new Object();
+
+    /** Guards {@link #journalWriter} and {@link #compactionTail}. */
+    private final ReentrantLock journalLock = new ReentrantLock();
+    private final ConcurrentLinkedQueue<JournalRecord> journalQueue
+            = new ConcurrentLinkedQueue<JournalRecord>();
+    private final AtomicInteger journalQueueSize = new AtomicInteger();
+    private final AtomicBoolean journalWriteScheduled = new AtomicBoolean();
+    private DataOutputStream journalWriter;
+    /** Records written while the journal is being compacted, or null. */
+    private ArrayList<JournalRecord> compactionTail;
 
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
      * its sequence number is not equal to its entry's sequence number.
      */
-    private long nextSequenceNumber = 0;
+    private final AtomicLong nextSequenceNumber = new AtomicLong();
 
-    /* From java.util.Arrays */
-    @SuppressWarnings("unchecked")
-    private static <T> T[] copyOfRange(T[] original, int start, int end) {
-        final int originalLength = original.length; // For exception priority compatibility.
-        if (start > end) {
-            throw new IllegalArgumentException();
-        }
-        if (start < 0 || start > originalLength) {
-            throw new ArrayIndexOutOfBoundsException();
+    private static final class JournalRecord {
+        final byte op;
+        final String key;
+        final long[] lengths;
+
+        JournalRecord(byte op, String key, long[] lengths) {
+            this.op = op;
+            this.key = key;
+            this.lengths = lengths;
         }
-        final int resultLength = end - start;
-        final int copyLength = Math.min(resultLength, originalLength - start);
-        final T[] result = (T[]) Array
-                .newInstance(original.getClass().getComponentType(), resultLength);
-        System.arraycopy(original, start, result, 0, copyLength);
-        return result;
     }
 
+    private static final Comparator<Entry> ACCESS_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.sortOrder < rhs.sortOrder ? -1 : (lhs.sortOrder > rhs.sortOrder ? 1 : 0);
+        }
+    };
+
     /**
      * Returns the remainder of 'reader' as a string, closing it when done.
      */
@@ -205,34 +250,6 @@ final class DiskLruCacheEngine implements Closeable {
         }
     }
 
-    /**
-     * Returns the ASCII characters up to but not including the next "\r\n", or
-     * "\n".
-     *
-     * @throws java.io.EOFException if the stream is exhausted before the next newline
-     *     character.
-     */
-    public static String readAsciiLine(InputStream in) throws IOException {
-        // TODO: support UTF-8 here instead
-
-        StringBuilder result = new StringBuilder(80);
-        while (true) {
-            int c = in.read();
-            if (c == -1) {
-                throw new EOFException();
-            } else if (c == '\n') {
-                break;
-            }
-
-            result.append((char) c);
-        }
-        int length = result.length();
-        if (length > 0 && result.charAt(length - 1) == '\r') {
-            result.setLength(length - 1);
-        }
-        return result.toString();
-    }
-
     /**
      * Closes 'closeable', ignoring any checked exceptions. Does nothing if 'closeable' is null.
      */
@@ -266,20 +283,38 @@ final class DiskLruCacheEngine implements Closeable {
         }
     }
 
+    /** Writes queued journal records of all caches. */
+    private static final ScheduledExecutorService journalExecutor =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DiskLruCache journal");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final Runnable journalWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            journalWriteScheduled.set(false);
+            try {
+                writeJournal(true);
+            } catch (IOException ignored) {
+            }
+        }
+    };
+
     /** This cache uses a single background thread to evict entries. */
     private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
             60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override public Void call() throws Exception {
-            synchronized (DiskLruCacheEngine.this) {
-                if (journalWriter == null) {
-                    return null; // closed
-                }
-                trimToSize();
-                if (journalRebuildRequired()) {
-                    rebuildJournal();
-                    redundantOpCount = 0;
-                }
+            if (closed) {
+                return null;
+            }
+            trimToSize();
+            if (journalRebuildRequired()) {
+                rebuildJournal();
             }
             return null;
         }
@@ -290,6 +325,8 @@ final class DiskLruCacheEngine implements Closeable {
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.indexFile = new File(directory, INDEX_FILE);
+        this.indexFileTmp = new File(directory, INDEX_FILE_TMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
     }
@@ -317,16 +354,23 @@ final class DiskLruCacheEngine implements Closeable {
         DiskLruCacheEngine cache = new DiskLruCacheEngine(directory, appVersion, valueCount, maxSize);
         if (cache.journalFile.exists()) {
             try {
-                cache.readJournal();
+                boolean complete = cache.readJournal(cache.readIndex());
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                if (complete) {
+                    cache.openJournalWriter();
+                } else {
+                    // Don't append to a partial record.
+                    cache.rebuildJournal();
+                }
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
 //                        + journalIsCorrupt.getMessage() + ", removing");
                 cache.delete();
             }
+        } else if (new File(directory, LEGACY_JOURNAL_FILE).exists()) {
+            // Entries of the text journal can't be read anymore.
+            cache.delete();
         }
 
         // create a new empty cache
@@ -336,43 +380,154 @@ final class DiskLruCacheEngine implements Closeable {
         return cache;
     }
 
-    private void readJournal() throws IOException {
-        InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
+    /**
+     * Loads the entries of the index snapshot.
+     *
+     * @return The position in the journal after which records are newer than
+     *     the snapshot, or 0 if there is no usable snapshot.
+     */
+    private long readIndex() {
+        if (!indexFile.exists()) {
+            return 0;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(readFileFully(indexFile)));
+            if (in.readInt() != INDEX_MAGIC
+                    || in.readInt() != appVersion
+                    || in.readInt() != valueCount) {
+                return 0;
+            }
+            long journalLength = in.readLong();
+            if (journalLength < JOURNAL_HEADER_SIZE || journalLength > journalFile.length()) {
+                return 0;
+            }
+
+            while (in.readBoolean()) {
+                Entry entry = new Entry(in.readUTF());
+                for (int i = 0; i < valueCount; i++) {
+                    entry.lengths[i] = readVarLong(in);
+                }
+                entry.readable = true;
+                entry.accessOrder = accessClock.incrementAndGet();
+                lruEntries.put(entry.key, entry);
+            }
+            return journalLength;
+        } catch (IOException e) {
+            lruEntries.clear();
+            return 0;
+        }
+    }
+
+    private static byte[] readFileFully(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int count = in.read(bytes, offset, bytes.length - offset);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                offset += count;
+            }
+            return bytes;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the published entries to the index snapshot. The journal has to
+     * be {@code journalLength} long, and every record before that has to be
+     * reflected by the entries already.
+     */
+    private void writeIndex(long journalLength) throws IOException {
+        DataOutputStream out = newJournalStream(indexFileTmp, false);
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(appVersion);
+            out.writeInt(valueCount);
+            out.writeLong(journalLength);
+            for (Entry entry : entriesByAccessOrder()) {
+                synchronized (entry) {
+                    if (entry.removed || !entry.readable) {
+                        continue;
+                    }
+                    out.writeBoolean(true);
+                    out.writeUTF(entry.key);
+                    for (long length : entry.lengths) {
+                        writeVarLong(out, length);
+                    }
+                }
+            }
+            out.writeBoolean(false);
+        } finally {
+            closeQuietly(out);
+        }
+        if (!indexFileTmp.renameTo(indexFile)) {
+            throw new IOException("failed to rename " + indexFileTmp);
+        }
+    }
+
+    /**
+     * @param replayFrom Position to start reading records from, or 0 to read
+     *     the whole journal.
+     * @return false if the journal ends with a partial record.
+     */
+    private boolean readJournal(long replayFrom) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE));
         try {
-            String magic = readAsciiLine(in);
-            String version = readAsciiLine(in);
-            String appVersionString = readAsciiLine(in);
-            String valueCountString = readAsciiLine(in);
-            String blank = readAsciiLine(in);
-            if (!MAGIC.equals(magic)
-                    || !VERSION_1.equals(version)
-                    || !Integer.toString(appVersion).equals(appVersionString)
-                    || !Integer.toString(valueCount).equals(valueCountString)
-                    || !"".equals(blank)) {
-                throw new IOException("unexpected journal header: ["
-                        + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
+            int magic = in.readInt();
+            int version = in.readInt();
+            int appVersionInJournal = in.readInt();
+            int valueCountInJournal = in.readInt();
+            if (magic != MAGIC
+                    || version != VERSION_2
+                    || appVersionInJournal != appVersion
+                    || valueCountInJournal != valueCount) {
+                throw new IOException("unexpected journal header: [" + magic + ", " + version
+                        + ", " + appVersionInJournal + ", " + valueCountInJournal + "]");
+            }
+            if (replayFrom > JOURNAL_HEADER_SIZE) {
+                skipFully(in, replayFrom - JOURNAL_HEADER_SIZE);
             }
 
+            int recordCount = 0;
             while (true) {
-                try {
-                    readJournalLine(readAsciiLine(in));
-                } catch (EOFException endOfJournal) {
+                int op = in.read();
+                if (op == -1) {
                     break;
                 }
+                try {
+                    readJournalRecord((byte) op, in);
+                } catch (EOFException partialRecord) {
+                    return false;
+                }
+                ++recordCount;
             }
+            redundantOpCount.set(replayFrom > 0
+                    ? recordCount : Math.max(0, recordCount - lruEntries.size()));
+            return true;
         } finally {
             closeQuietly(in);
         }
     }
 
-    private void readJournalLine(String line) throws IOException {
-        String[] parts = line.split(" ");
-        if (parts.length < 2) {
-            throw new IOException("unexpected journal line: " + line);
+    private void readJournalRecord(byte op, DataInputStream in) throws IOException {
+        String key = in.readUTF();
+        long[] lengths = null;
+        if (op == CLEAN) {
+            lengths = new long[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                lengths[i] = readVarLong(in);
+            }
+        } else if (op != DIRTY && op != REMOVE && op != READ) {
+            throw new IOException("unexpected journal record: " + op + " " + key);
         }
 
-        String key = parts[1];
-        if (parts[0].equals(REMOVE) && parts.length == 2) {
+        if (op == REMOVE) {
             lruEntries.remove(key);
             return;
         }
@@ -382,17 +537,70 @@ final class DiskLruCacheEngine implements Closeable {
             entry = new Entry(key);
             lruEntries.put(key, entry);
         }
+        entry.accessOrder = accessClock.incrementAndGet();
 
-        if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
+        if (op == CLEAN) {
             entry.readable = true;
             entry.currentEditor = null;
-            entry.setLengths(copyOfRange(parts, 2, parts.length));
-        } else if (parts[0].equals(DIRTY) && parts.length == 2) {
+            System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+        } else if (op == DIRTY) {
             entry.currentEditor = new Editor(entry);
-        } else if (parts[0].equals(READ) && parts.length == 2) {
-            // this work was already done by calling lruEntries.get()
-        } else {
-            throw new IOException("unexpected journal line: " + line);
+        }
+        // READ: this work was already done by updating the access order
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint in journal");
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private void writeRecord(DataOutputStream out, JournalRecord record) throws IOException {
+        out.writeByte(record.op);
+        out.writeUTF(record.key);
+        if (record.op == CLEAN) {
+            for (long length : record.lengths) {
+                writeVarLong(out, length);
+            }
+        }
+    }
+
+    private static DataOutputStream newJournalStream(File file, boolean append)
+            throws FileNotFoundException {
+        return new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file, append), IO_BUFFER_SIZE));
+    }
+
+    private void openJournalWriter() throws IOException {
+        journalLock.lock();
+        try {
+            journalWriter = newJournalStream(journalFile, true);
+        } finally {
+            journalLock.unlock();
         }
     }
 
@@ -402,11 +610,12 @@ final class DiskLruCacheEngine implements Closeable {
      */
     private void processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
+        deleteUnknownFiles();
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
             if (entry.currentEditor == null) {
                 for (int t = 0; t < valueCount; t++) {
-                    size += entry.lengths[t];
+                    size.addAndGet(entry.lengths[t]);
                 }
             } else {
                 entry.currentEditor = null;
@@ -419,37 +628,170 @@ final class DiskLruCacheEngine implements Closeable {
         }
     }
 
+    /**
+     * Deletes temporary files of edits which never completed, and files of
+     * entries whose CLEAN records were lost.
+     */
+    private void deleteUnknownFiles() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.equals(JOURNAL_FILE) || name.equals(INDEX_FILE) || file.isDirectory()) {
+                continue;
+            }
+            int dot = name.indexOf('.');
+            if (name.endsWith(".tmp") || dot < 0
+                    || !lruEntries.containsKey(name.substring(0, dot))) {
+                deleteIfExists(file);
+            }
+        }
+    }
+
     /**
      * Creates a new journal that omits redundant information. This replaces the
      * current journal if it exists.
      */
-    private synchronized void rebuildJournal() throws IOException {
-        if (journalWriter != null) {
-            journalWriter.close();
-        }
-
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
+    private void rebuildJournal() throws IOException {
+        synchronized (indexLock) {
+            // The snapshot describes a prefix of the journal being replaced.
+            deleteIfExists(indexFile);
+            journalLock.lock();
+            try {
+                if (compactionTail != null) {
+                    return; // already compacting
+                }
+                if (journalWriter != null) {
+                    writeQueuedRecordsLocked();
+                }
+                compactionTail = new ArrayList<JournalRecord>();
+            } finally {
+                journalLock.unlock();
+            }
 
-        for (Entry entry : lruEntries.values()) {
-            if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
-            } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            long journalLength;
+            DataOutputStream writer = null;
+            try {
+                writer = newJournalStream(journalFileTmp, false);
+                writer.writeInt(MAGIC);
+                writer.writeInt(VERSION_2);
+                writer.writeInt(appVersion);
+                writer.writeInt(valueCount);
+
+                // Changes made from now on are collected in the compaction tail. The
+                // ones which are already seen here are redundant but harmless.
+                for (Entry entry : entriesByAccessOrder()) {
+                    synchronized (entry) {
+                        if (entry.removed) {
+                            continue;
+                        }
+                        if (entry.currentEditor != null) {
+                            writeRecord(writer, new JournalRecord(DIRTY, entry.key, null));
+                        } else if (entry.readable) {
+                            writeRecord(writer, new JournalRecord(CLEAN, entry.key,
+                                    entry.lengths.clone()));
+                        }
+                    }
+                }
+
+                journalLock.lock();
+                try {
+                    writeQueuedRecordsLocked();
+                    for (JournalRecord record : compactionTail) {
+                        writeRecord(writer, record);
+                    }
+                    writer.close();
+                    writer = null;
+
+                    if (journalWriter != null) {
+                        journalWriter.close();
+                    }
+                    if (!journalFileTmp.renameTo(journalFile)) {
+                        throw new IOException("failed to rename " + journalFileTmp);
+                    }
+                    journalWriter = closed ? null : newJournalStream(journalFile, true);
+                    journalLength = journalFile.length();
+                    redundantOpCount.set(0);
+                } finally {
+                    compactionTail = null;
+                    journalLock.unlock();
+                }
+            } finally {
+                closeQuietly(writer);
             }
+            writeIndex(journalLength);
         }
+    }
 
-        writer.close();
-        journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+    /**
+     * Returns the entries from the least recently used to the most recently
+     * used one.
+     */
+    private Entry[] entriesByAccessOrder() {
+        synchronized (trimLock) {
+            Entry[] entries = lruEntries.values().toArray(new Entry[lruEntries.size()]);
+            for (Entry entry : entries) {
+                entry.sortOrder = entry.accessOrder;
+            }
+            Arrays.sort(entries, ACCESS_ORDER);
+            return entries;
+        }
+    }
+
+    /**
+     * Queues a record for the journal. Callers hold the monitor of the entry
+     * the record is about, and call {@link #scheduleJournalWrite} after
+     * releasing it.
+     */
+    private void appendJournal(byte op, String key, long[] lengths) {
+        journalQueue.add(new JournalRecord(op, key, lengths));
+        journalQueueSize.incrementAndGet();
+    }
+
+    /**
+     * Writes the queued records right away if there are enough of them, or
+     * makes sure they are written shortly.
+     */
+    private void scheduleJournalWrite() throws IOException {
+        if (journalQueueSize.get() >= JOURNAL_WRITE_BATCH_SIZE) {
+            writeJournal(false);
+        } else if (journalWriteScheduled.compareAndSet(false, true)) {
+            journalExecutor.schedule(journalWriteTask, JOURNAL_WRITE_DELAY_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the queued records unless another thread is already writing, in
+     * which case that thread picks them up.
+     */
+    private void writeJournal(boolean flush) throws IOException {
+        if (!journalLock.tryLock()) {
+            return;
+        }
+        try {
+            writeQueuedRecordsLocked();
+            if (flush && journalWriter != null) {
+                journalWriter.flush();
+            }
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    private void writeQueuedRecordsLocked() throws IOException {
+        JournalRecord record;
+        while ((record = journalQueue.poll()) != null) {
+            journalQueueSize.decrementAndGet();
+            if (journalWriter != null) {
+                writeRecord(journalWriter, record);
+            }
+            if (compactionTail != null) {
+                compactionTail.add(record);
+            }
+        }
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -470,7 +812,7 @@ final class DiskLruCacheEngine implements Closeable {
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Snapshot get(String key) throws IOException {
+    public Snapshot get(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
         Entry entry = lruEntries.get(key);
@@ -478,32 +820,42 @@ final class DiskLruCacheEngine implements Closeable {
             return null;
         }
 
-        if (!entry.readable) {
-            return null;
-        }
-
-        /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
-         */
         InputStream[] ins = new InputStream[valueCount];
-        try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+        long sequenceNumber;
+        synchronized (entry) {
+            if (!entry.readable || entry.removed) {
+                return null;
             }
-        } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
-            return null;
+
+            /*
+             * Open all streams eagerly to guarantee that we see a single published
+             * snapshot. If we opened streams lazily then the streams could come
+             * from different edits.
+             */
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    ins[i] = new FileInputStream(entry.getCleanFile(i));
+                }
+            } catch (FileNotFoundException e) {
+                // a file must have been deleted manually!
+                for (InputStream in : ins) {
+                    closeQuietly(in);
+                }
+                return null;
+            }
+
+            sequenceNumber = entry.sequenceNumber;
+            entry.accessOrder = accessClock.incrementAndGet();
+            appendJournal(READ, key, null);
         }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
+        redundantOpCount.incrementAndGet();
+        scheduleJournalWrite();
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+        return new Snapshot(key, sequenceNumber, ins);
     }
 
     /**
@@ -514,27 +866,49 @@ final class DiskLruCacheEngine implements Closeable {
         return edit(key, ANY_SEQUENCE_NUMBER);
     }
 
-    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+    private Editor edit(String key, long expectedSequenceNumber) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
-                && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
-            return null; // snapshot is stale
-        }
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
-        } else if (entry.currentEditor != null) {
-            return null; // another edit is in progress
-        }
 
-        Editor editor = new Editor(entry);
-        entry.currentEditor = editor;
+        Editor editor;
+        while (true) {
+            Entry entry = lruEntries.get(key);
+            if (entry == null) {
+                if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER) {
+                    return null; // snapshot is stale
+                }
+                entry = new Entry(key);
+                Entry existing = lruEntries.putIfAbsent(key, entry);
+                if (existing != null) {
+                    entry = existing;
+                }
+            }
 
-        // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+            synchronized (entry) {
+                if (entry.removed) {
+                    if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER) {
+                        return null; // snapshot is stale
+                    }
+                    continue; // lost a race against a removal, start over with a new entry
+                }
+                if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
+                        && entry.sequenceNumber != expectedSequenceNumber) {
+                    return null; // snapshot is stale
+                }
+                if (entry.currentEditor != null) {
+                    return null; // another edit is in progress
+                }
+
+                editor = new Editor(entry);
+                entry.currentEditor = editor;
+                entry.accessOrder = accessClock.incrementAndGet();
+                appendJournal(DIRTY, key, null);
+            }
+            break;
+        }
+
+        // Files of edits which never complete are swept when the cache is opened again.
+        scheduleJournalWrite();
         return editor;
     }
 
@@ -558,56 +932,66 @@ final class DiskLruCacheEngine implements Closeable {
      * this cache. This may be greater than the max size if a background
      * deletion is pending.
      */
-    public synchronized long size() {
-        return size;
+    public long size() {
+        return size.get();
     }
 
-    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+    private void completeEdit(Editor editor, boolean success) throws IOException {
         Entry entry = editor.entry;
-        if (entry.currentEditor != editor) {
-            throw new IllegalStateException();
-        }
+        int missingIndex = -1;
+        synchronized (entry) {
+            if (entry.currentEditor != editor) {
+                throw new IllegalStateException();
+            }
+
+            // if this edit is creating the entry for the first time, every index must have a value
+            if (success && !entry.readable) {
+                for (int i = 0; i < valueCount; i++) {
+                    if (!entry.getDirtyFile(i).exists()) {
+                        missingIndex = i;
+                        success = false;
+                        break;
+                    }
+                }
+            }
 
-        // if this edit is creating the entry for the first time, every index must have a value
-        if (success && !entry.readable) {
             for (int i = 0; i < valueCount; i++) {
-                if (!entry.getDirtyFile(i).exists()) {
-                    editor.abort();
-                    throw new IllegalStateException("edit didn't create file " + i);
+                File dirty = entry.getDirtyFile(i);
+                if (success) {
+                    if (dirty.exists()) {
+                        File clean = entry.getCleanFile(i);
+                        dirty.renameTo(clean);
+                        long oldLength = entry.lengths[i];
+                        long newLength = clean.length();
+                        entry.lengths[i] = newLength;
+                        size.addAndGet(newLength - oldLength);
+                    }
+                } else {
+                    deleteIfExists(dirty);
                 }
             }
-        }
 
-        for (int i = 0; i < valueCount; i++) {
-            File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+            entry.currentEditor = null;
+            if (entry.readable | success) {
+                entry.readable = true;
+                appendJournal(CLEAN, entry.key, entry.lengths.clone());
+                if (success) {
+                    entry.sequenceNumber = nextSequenceNumber.getAndIncrement();
                 }
             } else {
-                deleteIfExists(dirty);
+                entry.removed = true;
+                lruEntries.remove(entry.key, entry);
+                appendJournal(REMOVE, entry.key, null);
             }
         }
 
-        redundantOpCount++;
-        entry.currentEditor = null;
-        if (entry.readable | success) {
-            entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
-            }
-        } else {
-            lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+        redundantOpCount.incrementAndGet();
+        scheduleJournalWrite();
+        if (missingIndex >= 0) {
+            throw new IllegalStateException("edit didn't create file " + missingIndex);
         }
 
-        if (size > maxSize || journalRebuildRequired()) {
+        if (size.get() > maxSize || journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
     }
@@ -618,8 +1002,9 @@ final class DiskLruCacheEngine implements Closeable {
      */
     private boolean journalRebuildRequired() {
         final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
-        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
-                && redundantOpCount >= lruEntries.size();
+        int redundantOps = redundantOpCount.get();
+        return redundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && redundantOps >= lruEntries.size();
     }
 
     /**
@@ -628,31 +1013,42 @@ final class DiskLruCacheEngine implements Closeable {
      *
      * @return true if an entry was removed.
      */
-    public synchronized boolean remove(String key) throws IOException {
+    public boolean remove(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
         Entry entry = lruEntries.get(key);
-        if (entry == null || entry.currentEditor != null) {
+        if (entry == null || !removeEntry(entry)) {
             return false;
         }
 
-        for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (!file.delete()) {
-                throw new IOException("failed to delete " + file);
-            }
-            size -= entry.lengths[i];
-            entry.lengths[i] = 0;
+        if (journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
         }
+        return true;
+    }
 
-        redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
-        lruEntries.remove(key);
+    private boolean removeEntry(Entry entry) throws IOException {
+        synchronized (entry) {
+            if (entry.removed || !entry.readable || entry.currentEditor != null) {
+                return false;
+            }
 
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            for (int i = 0; i < valueCount; i++) {
+                File file = entry.getCleanFile(i);
+                if (!file.delete()) {
+                    throw new IOException("failed to delete " + file);
+                }
+                size.addAndGet(-entry.lengths[i]);
+                entry.lengths[i] = 0;
+            }
+
+            entry.removed = true;
+            lruEntries.remove(entry.key, entry);
+            appendJournal(REMOVE, entry.key, null);
         }
 
+        redundantOpCount.incrementAndGet();
+        scheduleJournalWrite();
         return true;
     }
 
@@ -660,11 +1056,11 @@ final class DiskLruCacheEngine implements Closeable {
      * Returns true if this cache has been closed.
      */
     public boolean isClosed() {
-        return journalWriter == null;
+        return closed;
     }
 
     private void checkNotClosed() {
-        if (journalWriter == null) {
+        if (closed) {
             throw new IllegalStateException("cache is closed");
         }
     }
@@ -672,34 +1068,78 @@ final class DiskLruCacheEngine implements Closeable {
     /**
      * Force buffered operations to the filesystem.
      */
-    public synchronized void flush() throws IOException {
+    public void flush() throws IOException {
         checkNotClosed();
         trimToSize();
-        journalWriter.flush();
+        journalLock.lock();
+        try {
+            writeQueuedRecordsLocked();
+            if (journalWriter != null) {
+                journalWriter.flush();
+            }
+        } finally {
+            journalLock.unlock();
+        }
     }
 
     /**
      * Closes this cache. Stored values will remain on the filesystem.
      */
-    public synchronized void close() throws IOException {
-        if (journalWriter == null) {
-            return; // already closed
+    public void close() throws IOException {
+        journalLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            journalLock.unlock();
         }
-        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-            if (entry.currentEditor != null) {
-                entry.currentEditor.abort();
+
+        for (Entry entry : lruEntries.values()) {
+            Editor editor;
+            synchronized (entry) {
+                editor = entry.currentEditor;
+            }
+            if (editor != null) {
+                try {
+                    editor.abort();
+                } catch (IllegalStateException ignored) {
+                    // completed in the meantime
+                }
             }
         }
         trimToSize();
-        journalWriter.close();
-        journalWriter = null;
+
+        synchronized (indexLock) {
+            journalLock.lock();
+            try {
+                writeQueuedRecordsLocked();
+                if (journalWriter != null) {
+                    journalWriter.close();
+                    journalWriter = null;
+                }
+            } finally {
+                journalLock.unlock();
+            }
+            // Nothing changes anymore, so the snapshot covers the whole journal.
+            if (journalFile.exists()) {
+                writeIndex(journalFile.length());
+            }
+        }
     }
 
     private void trimToSize() throws IOException {
-        while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+        if (size.get() <= maxSize) {
+            return;
+        }
+        synchronized (trimLock) {
+            for (Entry entry : entriesByAccessOrder()) {
+                if (size.get() <= maxSize) {
+                    break;
+                }
+                removeEntry(entry);
+            }
         }
     }
 
@@ -784,7 +1224,7 @@ final class DiskLruCacheEngine implements Closeable {
          * or null if no value has been committed.
          */
         public InputStream newInputStream(int index) throws IOException {
-            synchronized (DiskLruCacheEngine.this) {
+            synchronized (entry) {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
@@ -812,7 +1252,7 @@ final class DiskLruCacheEngine implements Closeable {
          * IOExceptions.
          */
         public OutputStream newOutputStream(int index) throws IOException {
-            synchronized (DiskLruCacheEngine.this) {
+            synchronized (entry) {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
@@ -820,6 +1260,14 @@ final class DiskLruCacheEngine implements Closeable {
             }
         }
 
+        /**
+         * Returns the file the value at {@code index} is written to until this
+         * edit is committed.
+         */
+        File getDirtyFile(int index) {
+            return entry.getDirtyFile(index);
+        }
+
         /**
          * Sets the value at {@code index} to {@code value}.
          */
@@ -893,6 +1341,9 @@ final class DiskLruCacheEngine implements Closeable {
         }
     }
 
+    /**
+     * Mutable state of an entry is guarded by its own monitor.
+     */
     private final class Entry {
         private final String key;
 
@@ -902,6 +1353,15 @@ final class DiskLruCacheEngine implements Closeable {
         /** True if this entry has ever been published */
         private boolean readable;
 
+        /** True once this entry has left the map. A new entry has to be created to edit its key again. */
+        private boolean removed;
+
+        /** Value of the access clock at the last access. */
+        private volatile long accessOrder;
+
+        /** Copy of accessOrder which doesn't change while entries are sorted, guarded by trimLock. */
+        private long sortOrder;
+
         /** The ongoing edit or null if this entry is not being edited. */
         private Editor currentEditor;
 
@@ -913,35 +1373,6 @@ final class DiskLruCacheEngine implements Closeable {
             this.lengths = new long[valueCount];
         }
 
-        public String getLengths() throws IOException {
-            StringBuilder result = new StringBuilder();
-            for (long size : lengths) {
-                result.append(' ').append(size);
-            }
-            return result.toString();
-        }
-
-        /**
-         * Set lengths using decimal numbers like "10123".
-         */
-        private void setLengths(String[] strings) throws IOException {
-            if (strings.length != valueCount) {
-                throw invalidLengths(strings);
-            }
-
-            try {
-                for (int i = 0; i < strings.length; i++) {
-                    lengths[i] = Long.parseLong(strings[i]);
-                }
-            } catch (NumberFormatException e) {
-                throw invalidLengths(strings);
-            }
-        }
-
-        private IOException invalidLengths(String[] strings) throws IOException {
-            throw new IOException("unexpected journal line: " + Arrays.toString(strings));
-        }
-
         public File getCleanFile(int i) {
             return new File(directory, key + "." + i);
         }
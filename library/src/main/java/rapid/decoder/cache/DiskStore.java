@@ -0,0 +1,75 @@
+package rapid.decoder.cache;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Storage engine of {@link DiskLruCache}. Keys are already hashed into strings which are safe to
+ * use as file names.
+ */
+interface DiskStore extends Closeable {
+    /**
+     * @return An editor for the entry, or null if it is being edited already.
+     */
+    Editor edit(String key) throws IOException;
+
+    /**
+     * @return The entry, or null if there is none.
+     */
+    Snapshot get(String key) throws IOException;
+
+    boolean remove(String key) throws IOException;
+
+    void flush() throws IOException;
+
+    boolean isClosed();
+
+    /**
+     * Closes the store and deletes everything in its directory.
+     */
+    void delete() throws IOException;
+
+    interface Editor {
+        OutputStream newOutputStream() throws IOException;
+
+        /**
+         * Overwrites bytes which have already been written to the stream. The stream has to be
+         * closed before.
+         */
+        void overwrite(long position, byte[] bytes) throws IOException;
+
+        void commit() throws IOException;
+
+        void abort() throws IOException;
+    }
+
+    /**
+     * A stored entry, which lies in {@link #getChannel()} from {@link #getOffset()} on.
+     */
+    interface Snapshot extends Closeable {
+        FileChannel getChannel();
+
+        long getOffset();
+
+        long getLength();
+
+        /**
+         * @return The descriptor of the file the entry lies in, which shares its position with
+         * {@link #getChannel()}.
+         */
+        FileDescriptor getFileDescriptor() throws IOException;
+
+        /**
+         * @return A stream of the entry from the given position on. Closing it closes the
+         * snapshot.
+         */
+        InputStream newInputStream(long position) throws IOException;
+
+        @Override
+        void close();
+    }
+}
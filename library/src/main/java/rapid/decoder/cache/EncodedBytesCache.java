@@ -0,0 +1,34 @@
+package rapid.decoder.cache;
+
+/**
+ * Keeps the compressed bytes of recently decoded images, keyed by the ids of their loaders.
+ * Decoding them again is much cheaper than reading the disk cache or the network, and they take a
+ * fraction of the memory of the decoded bitmaps.
+ */
+public class EncodedBytesCache extends LruCache<Object, byte[]> {
+    /**
+     * A single image may take at most this fraction of the cache, so one large image can't flush
+     * everything else out.
+     */
+    private static final int MAX_ENTRY_SIZE_DIVISOR = 8;
+
+    public EncodedBytesCache(int maxSize) {
+        super(maxSize);
+    }
+
+    public EncodedBytesCache(int maxSize, CachePolicy policy) {
+        super(maxSize, policy);
+    }
+
+    @Override
+    protected int sizeOf(Object key, byte[] value) {
+        return value.length;
+    }
+
+    /**
+     * @return The largest number of bytes of a single image which is worth keeping.
+     */
+    public int maxEntrySize() {
+        return maxSize() / MAX_ENTRY_SIZE_DIVISOR;
+    }
+}
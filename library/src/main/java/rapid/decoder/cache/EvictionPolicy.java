@@ -0,0 +1,77 @@
+package rapid.decoder.cache;
+
+import java.util.List;
+
+import rapid.decoder.cache.LruCache.Node;
+
+/**
+ * Decides in which order {@link LruCache} evicts its entries. All methods are called with the
+ * cache's eviction lock held, so implementations don't need any synchronization of their own.
+ */
+abstract class EvictionPolicy<K, V> {
+    /**
+     * Called when the maximum size of the cache has been set or changed.
+     */
+    abstract void setMaxSize(int maxSize);
+
+    /**
+     * Called when a node has been inserted into the cache.
+     */
+    abstract void onAdd(Node<K, V> node);
+
+    /**
+     * Called when a node has been read. Hits are buffered, so this may be called some time after
+     * the actual read, and some hits may never be reported.
+     */
+    abstract void onAccess(Node<K, V> node);
+
+    /**
+     * Called when a node has been removed from the cache for any reason, including eviction.
+     */
+    abstract void onRemove(Node<K, V> node);
+
+    /**
+     * @return The node which should be evicted next, or null if the cache is empty.
+     */
+    abstract Node<K, V> victim();
+
+    /**
+     * Adds all nodes to the list, roughly in the order they would be evicted.
+     */
+    abstract void collect(List<Node<K, V>> out);
+
+    //
+    // Helpers for circular lists with a sentinel node. sentinel.next is the eldest node.
+    //
+
+    static <K, V> Node<K, V> newSentinel() {
+        Node<K, V> sentinel = new Node<K, V>(null, null, 0);
+        sentinel.prev = sentinel.next = sentinel;
+        return sentinel;
+    }
+
+    static <K, V> void linkLast(Node<K, V> sentinel, Node<K, V> node) {
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+
+    static <K, V> void unlink(Node<K, V> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = node.next = null;
+    }
+
+    static <K, V> void moveToLast(Node<K, V> sentinel, Node<K, V> node) {
+        if (sentinel.prev == node) return;
+        unlink(node);
+        linkLast(sentinel, node);
+    }
+
+    static <K, V> void collect(Node<K, V> sentinel, List<Node<K, V>> out) {
+        for (Node<K, V> node = sentinel.next; node != sentinel; node = node.next) {
+            out.add(node);
+        }
+    }
+}
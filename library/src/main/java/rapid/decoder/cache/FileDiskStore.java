@@ -0,0 +1,137 @@
+package rapid.decoder.cache;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link DiskStore} which keeps every entry in a file of its own, managed by
+ * {@link DiskLruCacheEngine}.
+ */
+final class FileDiskStore implements DiskStore {
+    private final DiskLruCacheEngine mEngine;
+
+    FileDiskStore(DiskLruCacheEngine engine) {
+        mEngine = engine;
+    }
+
+    @Override
+    public DiskStore.Editor edit(String key) throws IOException {
+        DiskLruCacheEngine.Editor editor = mEngine.edit(key);
+        return editor == null ? null : new Editor(editor);
+    }
+
+    @Override
+    public DiskStore.Snapshot get(String key) throws IOException {
+        DiskLruCacheEngine.Snapshot snapshot = mEngine.get(key);
+        return snapshot == null ? null : new Snapshot(snapshot);
+    }
+
+    @Override
+    public boolean remove(String key) throws IOException {
+        return mEngine.remove(key);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mEngine.flush();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mEngine.isClosed();
+    }
+
+    @Override
+    public void delete() throws IOException {
+        mEngine.delete();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mEngine.close();
+    }
+
+    private static class Editor implements DiskStore.Editor {
+        private final DiskLruCacheEngine.Editor mEditor;
+
+        Editor(DiskLruCacheEngine.Editor editor) {
+            mEditor = editor;
+        }
+
+        @Override
+        public OutputStream newOutputStream() throws IOException {
+            return mEditor.newOutputStream(0);
+        }
+
+        @Override
+        public void overwrite(long position, byte[] bytes) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(mEditor.getDirtyFile(0), "rw");
+            try {
+                raf.seek(position);
+                raf.write(bytes);
+            } finally {
+                raf.close();
+            }
+        }
+
+        @Override
+        public void commit() throws IOException {
+            mEditor.commit();
+        }
+
+        @Override
+        public void abort() throws IOException {
+            mEditor.abort();
+        }
+    }
+
+    private static class Snapshot implements DiskStore.Snapshot {
+        private final DiskLruCacheEngine.Snapshot mSnapshot;
+        private final FileInputStream mIn;
+
+        Snapshot(DiskLruCacheEngine.Snapshot snapshot) {
+            mSnapshot = snapshot;
+            mIn = (FileInputStream) snapshot.getInputStream(0);
+        }
+
+        @Override
+        public FileChannel getChannel() {
+            return mIn.getChannel();
+        }
+
+        @Override
+        public long getOffset() {
+            return 0;
+        }
+
+        @Override
+        public long getLength() {
+            try {
+                return mIn.getChannel().size();
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public FileDescriptor getFileDescriptor() throws IOException {
+            return mIn.getFD();
+        }
+
+        @Override
+        public InputStream newInputStream(long position) throws IOException {
+            mIn.getChannel().position(position);
+            return mIn;
+        }
+
+        @Override
+        public void close() {
+            mSnapshot.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package rapid.decoder.cache;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+import rapid.decoder.cache.LruCache.Node;
+
+/**
+ * GreedyDual-Size-Frequency. Every entry has the priority
+ * <pre>L + frequency * cost / size</pre>
+ * and the entry with the lowest priority is evicted. L is the priority of the last evicted entry,
+ * so entries which haven't been used for a while age relative to newly inserted ones and a formerly
+ * popular entry can't stay forever.
+ */
+class GreedyDualSizePolicy<K, V> extends EvictionPolicy<K, V> {
+    private final TreeSet<Node<K, V>> mQueue = new TreeSet<Node<K, V>>(
+            new Comparator<Node<K, V>>() {
+                @Override
+                public int compare(Node<K, V> lhs, Node<K, V> rhs) {
+                    if (lhs.priority < rhs.priority) return -1;
+                    if (lhs.priority > rhs.priority) return 1;
+                    return lhs.sequence < rhs.sequence ? -1 :
+                            (lhs.sequence > rhs.sequence ? 1 : 0);
+                }
+            });
+
+    private double mInflation;
+    private long mSequence;
+    private Node<K, V> mLastVictim;
+
+    @Override
+    void setMaxSize(int maxSize) {
+    }
+
+    @Override
+    void onAdd(Node<K, V> node) {
+        node.frequency = 1;
+        updatePriority(node);
+        mQueue.add(node);
+    }
+
+    @Override
+    void onAccess(Node<K, V> node) {
+        mQueue.remove(node);
+        if (node.frequency < Integer.MAX_VALUE) {
+            ++node.frequency;
+        }
+        updatePriority(node);
+        mQueue.add(node);
+    }
+
+    @Override
+    void onRemove(Node<K, V> node) {
+        if (mQueue.remove(node) && node == mLastVictim) {
+            // Only age the cache when the entry is actually evicted, not on every remove.
+            mInflation = node.priority;
+        }
+        mLastVictim = null;
+    }
+
+    @Override
+    Node<K, V> victim() {
+        mLastVictim = mQueue.isEmpty() ? null : mQueue.first();
+        return mLastVictim;
+    }
+
+    private void updatePriority(Node<K, V> node) {
+        node.priority = mInflation +
+                (double) node.frequency * node.cost / Math.max(1, node.weight);
+        node.sequence = mSequence++;
+    }
+
+    @Override
+    void collect(List<Node<K, V>> out) {
+        out.addAll(mQueue);
+    }
+}
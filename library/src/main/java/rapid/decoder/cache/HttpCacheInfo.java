@@ -0,0 +1,221 @@
+package rapid.decoder.cache;
+
+import android.support.annotation.Nullable;
+
+import java.net.URLConnection;
+import java.util.Locale;
+
+/**
+ * What an HTTP response tells about caching it: its validators, until when it may be used
+ * without asking the server again, and how long the complete body is. Stored in the
+ * {@link CacheEntryHeader} of the entry.
+ */
+public final class HttpCacheInfo {
+    /**
+     * Responses which can't be revalidated and don't say how long they stay fresh are kept until
+     * they are evicted, like everything was before validators were stored.
+     */
+    public static final long NEVER_EXPIRES = Long.MAX_VALUE;
+
+    /**
+     * Without an explicit lifetime, a response stays fresh for this fraction of the time since it
+     * was last modified, as suggested by RFC 7234.
+     */
+    private static final int HEURISTIC_FRESHNESS_DIVISOR = 10;
+
+    private final String mETag;
+    private final String mLastModified;
+    private final long mExpiresAt;
+    private final long mContentLength;
+
+    public HttpCacheInfo(@Nullable String eTag, @Nullable String lastModified, long expiresAt) {
+        this(eTag, lastModified, expiresAt, -1);
+    }
+
+    /**
+     * @param contentLength Length of the complete body, or -1 if unknown.
+     */
+    public HttpCacheInfo(@Nullable String eTag, @Nullable String lastModified, long expiresAt,
+                         long contentLength) {
+        mETag = eTag;
+        mLastModified = lastModified;
+        mExpiresAt = expiresAt;
+        mContentLength = contentLength;
+    }
+
+    @Nullable
+    public String eTag() {
+        return mETag;
+    }
+
+    /**
+     * @return The Last-Modified header as it was sent.
+     */
+    @Nullable
+    public String lastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * @return The time in milliseconds since the epoch after which the entry has to be
+     * revalidated, or {@link #NEVER_EXPIRES}.
+     */
+    public long expiresAt() {
+        return mExpiresAt;
+    }
+
+    /**
+     * @return The length of the complete body, or -1 if unknown.
+     */
+    public long contentLength() {
+        return mContentLength;
+    }
+
+    public boolean isFresh(long now) {
+        return now < mExpiresAt;
+    }
+
+    public boolean canRevalidate() {
+        return mETag != null || mLastModified != null;
+    }
+
+    /**
+     * @return A tag which changes whenever the image may have changed: its validators, or the
+     * time it expires at if it has none, since it is then downloaded whole again.
+     */
+    public String versionTag() {
+        if (!canRevalidate()) {
+            return Long.toString(mExpiresAt);
+        }
+        return (mETag != null ? mETag : "") + ',' + (mLastModified != null ? mLastModified : "");
+    }
+
+    /**
+     * Makes the request conditional, so the server answers 304 Not Modified if the cached entry
+     * is still current.
+     */
+    public void addConditions(URLConnection connection) {
+        if (mETag != null) {
+            connection.setRequestProperty("If-None-Match", mETag);
+        }
+        if (mLastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", mLastModified);
+        }
+    }
+
+    /**
+     * Asks for the rest of the body after the given number of bytes. The server sends the whole
+     * body again instead if it has changed since.
+     *
+     * @return false if the download can't be resumed.
+     */
+    public boolean addRange(URLConnection connection, long start) {
+        return addRange(connection, start, -1);
+    }
+
+    /**
+     * Asks for the bytes from start to end, both inclusive, of the body.
+     *
+     * @param end -1 for the rest of the body.
+     * @return false if the range can't be asked for.
+     */
+    public boolean addRange(URLConnection connection, long start, long end) {
+        if (mContentLength <= start || !canRevalidate()) return false;
+
+        connection.setRequestProperty("Range", "bytes=" + start + "-" + (end >= 0 ? end : ""));
+        connection.setRequestProperty("If-Range", mETag != null ? mETag : mLastModified);
+        return true;
+    }
+
+    /**
+     * @param requestTime When the request was sent, in milliseconds since the epoch.
+     * @return The cache info of the response, or null if it must not be stored.
+     */
+    @Nullable
+    public static HttpCacheInfo fromResponse(URLConnection connection, long requestTime) {
+        return parse(connection, requestTime, null, null, contentLengthOf(connection));
+    }
+
+    /**
+     * @return The length of the complete body, which a 206 Partial Content response tells in its
+     * Content-Range header, or -1 if unknown.
+     */
+    private static long contentLengthOf(URLConnection connection) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        String length;
+        if (contentRange != null) {
+            length = contentRange.substring(contentRange.lastIndexOf('/') + 1).trim();
+        } else {
+            length = connection.getHeaderField("Content-Length");
+        }
+        if (length == null) return -1;
+
+        try {
+            return Long.parseLong(length);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Applies a 304 Not Modified response, which may leave out the validators of the entry.
+     *
+     * @return The updated cache info, or null if the entry must not be stored anymore.
+     */
+    @Nullable
+    public HttpCacheInfo refresh(URLConnection connection, long requestTime) {
+        return parse(connection, requestTime, mETag, mLastModified, mContentLength);
+    }
+
+    private static HttpCacheInfo parse(URLConnection connection, long requestTime,
+                                       String eTag, String lastModified, long contentLength) {
+        long maxAge = -1;
+        boolean noCache = false;
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-store")) {
+                    return null;
+                } else if (directive.equals("no-cache")) {
+                    noCache = true;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAge = Long.parseLong(directive.substring("max-age=".length()));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+
+        String newETag = connection.getHeaderField("ETag");
+        if (newETag != null) {
+            eTag = newETag;
+        }
+        String newLastModified = connection.getHeaderField("Last-Modified");
+        if (newLastModified != null) {
+            lastModified = newLastModified;
+        }
+
+        long date = connection.getDate();
+        if (date <= 0) {
+            date = requestTime;
+        }
+        long expiresAt;
+        if (noCache) {
+            expiresAt = 0;
+        } else if (maxAge >= 0) {
+            expiresAt = requestTime + maxAge * 1000;
+        } else if (connection.getExpiration() > 0) {
+            expiresAt = requestTime + connection.getExpiration() - date;
+        } else if (eTag == null && lastModified == null) {
+            expiresAt = NEVER_EXPIRES;
+        } else if (connection.getLastModified() > 0) {
+            expiresAt = requestTime + Math.max(0, date - connection.getLastModified()) /
+                    HEURISTIC_FRESHNESS_DIVISOR;
+        } else {
+            expiresAt = requestTime;
+        }
+        return new HttpCacheInfo(eTag, lastModified, expiresAt, contentLength);
+    }
+}
@@ -0,0 +1,172 @@
+package rapid.decoder.cache;
+
+/**
+ * Finds out the format and dimensions of an image from the bytes written to the cache, without
+ * decoding it. Only the first 64KB are looked at.
+ */
+class ImageHeaderSniffer {
+    private static final int MAX_BUFFERED_BYTES = 64 * 1024;
+
+    private byte[] mBuffer = new byte[1024];
+    private int mLength;
+    private long mTotalLength;
+
+    private String mMimeType;
+    private int mWidth;
+    private int mHeight;
+
+    public void update(byte[] buffer, int offset, int count) {
+        mTotalLength += count;
+        int toCopy = Math.min(count, MAX_BUFFERED_BYTES - mLength);
+        if (toCopy <= 0) return;
+
+        if (mLength + toCopy > mBuffer.length) {
+            byte[] newBuffer = new byte[Math.min(MAX_BUFFERED_BYTES,
+                    Math.max(mBuffer.length * 2, mLength + toCopy))];
+            System.arraycopy(mBuffer, 0, newBuffer, 0, mLength);
+            mBuffer = newBuffer;
+        }
+        System.arraycopy(buffer, offset, mBuffer, mLength, toCopy);
+        mLength += toCopy;
+    }
+
+    public void update(int oneByte) {
+        if (mLength < mBuffer.length) {
+            ++mTotalLength;
+            mBuffer[mLength++] = (byte) oneByte;
+        } else {
+            update(new byte[]{(byte) oneByte}, 0, 1);
+        }
+    }
+
+    /**
+     * @return The number of bytes seen so far.
+     */
+    public long length() {
+        return mTotalLength;
+    }
+
+    public String mimeType() {
+        return mMimeType;
+    }
+
+    public int width() {
+        return mWidth;
+    }
+
+    public int height() {
+        return mHeight;
+    }
+
+    /**
+     * Parses the bytes seen so far. The buffer is released afterwards.
+     */
+    public void finish() {
+        if (startsWith(0, 0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a)) {
+            mMimeType = "image/png";
+            if (startsWith(12, 'I', 'H', 'D', 'R')) {
+                setSize(int32BE(16), int32BE(20));
+            }
+        } else if (startsWith(0, 0xff, 0xd8)) {
+            mMimeType = "image/jpeg";
+            parseJpegFrame();
+        } else if (startsWith(0, 'G', 'I', 'F', '8')) {
+            mMimeType = "image/gif";
+            if (mLength >= 10) {
+                setSize(int16LE(6), int16LE(8));
+            }
+        } else if (startsWith(0, 'R', 'I', 'F', 'F') && startsWith(8, 'W', 'E', 'B', 'P')) {
+            mMimeType = "image/webp";
+            parseWebPChunk();
+        } else if (startsWith(0, 'B', 'M')) {
+            mMimeType = "image/bmp";
+            if (mLength >= 26) {
+                setSize(int32LE(18), Math.abs(int32LE(22)));
+            }
+        }
+        mBuffer = null;
+    }
+
+    private void parseJpegFrame() {
+        int offset = 2;
+        while (offset + 4 <= mLength) {
+            if (u8(offset) != 0xff) return;
+            int marker = u8(offset + 1);
+            if (marker == 0xff) {
+                // fill byte
+                ++offset;
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd8)) {
+                offset += 2;
+                continue;
+            }
+
+            int segmentLength = int16BE(offset + 2);
+            boolean isStartOfFrame = (marker >= 0xc0 && marker <= 0xcf &&
+                    marker != 0xc4 && marker != 0xc8 && marker != 0xcc);
+            if (isStartOfFrame) {
+                if (offset + 9 <= mLength) {
+                    setSize(int16BE(offset + 7), int16BE(offset + 5));
+                }
+                return;
+            }
+            if (marker == 0xda || segmentLength < 2) return;
+            offset += 2 + segmentLength;
+        }
+    }
+
+    private void parseWebPChunk() {
+        if (startsWith(12, 'V', 'P', '8', ' ')) {
+            if (mLength >= 30) {
+                setSize(int16LE(26) & 0x3fff, int16LE(28) & 0x3fff);
+            }
+        } else if (startsWith(12, 'V', 'P', '8', 'L')) {
+            if (mLength >= 25) {
+                int b0 = u8(21), b1 = u8(22), b2 = u8(23), b3 = u8(24);
+                setSize(1 + (b0 | (b1 & 0x3f) << 8),
+                        1 + ((b1 >> 6) | (b2 << 2) | (b3 & 0x0f) << 10));
+            }
+        } else if (startsWith(12, 'V', 'P', '8', 'X')) {
+            if (mLength >= 30) {
+                setSize(1 + (u8(24) | u8(25) << 8 | u8(26) << 16),
+                        1 + (u8(27) | u8(28) << 8 | u8(29) << 16));
+            }
+        }
+    }
+
+    private void setSize(int width, int height) {
+        if (width > 0 && height > 0) {
+            mWidth = width;
+            mHeight = height;
+        }
+    }
+
+    private boolean startsWith(int offset, int... bytes) {
+        if (offset + bytes.length > mLength) return false;
+        for (int i = 0; i < bytes.length; ++i) {
+            if (u8(offset + i) != bytes[i]) return false;
+        }
+        return true;
+    }
+
+    private int u8(int offset) {
+        return mBuffer[offset] & 0xff;
+    }
+
+    private int int16BE(int offset) {
+        return u8(offset) << 8 | u8(offset + 1);
+    }
+
+    private int int16LE(int offset) {
+        return u8(offset) | u8(offset + 1) << 8;
+    }
+
+    private int int32BE(int offset) {
+        return int16BE(offset) << 16 | int16BE(offset + 2);
+    }
+
+    private int int32LE(int offset) {
+        return int16LE(offset) | int16LE(offset + 2) << 16;
+    }
+}
@@ -16,30 +16,79 @@
 
 package rapid.decoder.cache;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Static library version of {@link android.util.LruCache}. Used to write apps
- * that run on API levels prior to 12. When running on API level 12 or above,
- * this implementation is still used; it does not try to switch to the
- * framework's implementation. See the framework SDK documentation for a class
- * overview.
+ * Concurrent version of {@link android.util.LruCache}. It has the same contract as the framework's
+ * implementation, but lookups don't take any lock.
+ *
+ * <p>Entries live in a {@link ConcurrentHashMap}, so {@link #get} is a plain hash lookup. Instead
+ * of reordering the LRU list on every hit, accesses are recorded into small striped buffers and
+ * replayed into the list later by whichever thread holds the eviction lock. The resulting order
+ * is an approximation of the exact LRU order: a hit may be dropped when its buffer is full and
+ * the lock is busy. Writes, removals and evictions are serialized by the eviction lock.
+ *
+ * <p>Which entry is evicted is decided by a {@link CachePolicy}. Despite the name of this class
+ * it doesn't have to be the least recently used one.
  */
 @SuppressWarnings({"UnusedParameters", "UnusedDeclaration"})
 public class LruCache<K, V> {
-    private final LinkedHashMap<K, V> map;
+    private static final int READ_BUFFER_SIZE = 32;
+    private static final int MAX_READ_BUFFER_COUNT = 16;
+
+    static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int weight;
+
+        Node<K, V> prev;
+        Node<K, V> next;
+        boolean alive = true;
+        /** Which of its lists the eviction policy keeps this node in. */
+        int queue;
+        /** How expensive the value was to produce, in units given by the caller. */
+        int cost = 1;
+        /** Bookkeeping of cost aware policies. */
+        int frequency;
+        double priority;
+        long sequence;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private static final class ReadBuffer<K, V> {
+        final AtomicReferenceArray<Node<K, V>> slots =
+                new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_SIZE);
+        final AtomicInteger writeIndex = new AtomicInteger();
+        final AtomicInteger hitCount = new AtomicInteger();
+        final AtomicInteger missCount = new AtomicInteger();
+    }
+
+    private final ConcurrentHashMap<K, Node<K, V>> map;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ReadBuffer<K, V>[] readBuffers;
+    private final EvictionPolicy<K, V> policy;
 
     /** Size of this cache in units. Not necessarily the number of elements. */
-    private int size;
-    private int maxSize;
+    private volatile int size;
+    private volatile int maxSize;
+
+    private volatile MissRatioCurve missRatioCurve;
 
     private int putCount;
     private int createCount;
     private int evictionCount;
-    private int hitCount;
-    private int missCount;
 
     /**
      * @param maxSize for caches that do not override {@link #sizeOf}, this is
@@ -47,11 +96,33 @@ public class LruCache<K, V> {
      *     this is the maximum sum of the sizes of the entries in this cache.
      */
     public LruCache(int maxSize) {
+        this(maxSize, CachePolicy.LRU);
+    }
+
+    /**
+     * @param maxSize see {@link #LruCache(int)}.
+     * @param policy decides which entries are evicted when the cache is full.
+     */
+    public LruCache(int maxSize, CachePolicy policy) {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
         this.maxSize = maxSize;
-        this.map = new LinkedHashMap<K, V>(0, 0.75f, true);
+        this.policy = policy.newEvictionPolicy();
+        this.policy.setMaxSize(maxSize);
+
+        int bufferCount = 1;
+        int processors = Runtime.getRuntime().availableProcessors();
+        while (bufferCount < processors && bufferCount < MAX_READ_BUFFER_COUNT) {
+            bufferCount <<= 1;
+        }
+        //noinspection unchecked
+        readBuffers = new ReadBuffer[bufferCount];
+        for (int i = 0; i < bufferCount; ++i) {
+            readBuffers[i] = new ReadBuffer<K, V>();
+        }
+
+        this.map = new ConcurrentHashMap<K, Node<K, V>>(16, 0.75f, bufferCount);
     }
 
     /**
@@ -65,16 +136,23 @@ public class LruCache<K, V> {
             throw new NullPointerException("key == null");
         }
 
-        V mapValue;
-        synchronized (this) {
-            mapValue = map.get(key);
-            if (mapValue != null) {
-                hitCount++;
-                return mapValue;
+        MissRatioCurve curve = missRatioCurve;
+        if (curve != null && curve.recordAccess(key)) {
+            int newSize = curve.pollRecommendedSize();
+            if (newSize > 0 && newSize != maxSize) {
+                resize(newSize);
             }
-            missCount++;
         }
 
+        ReadBuffer<K, V> buffer = readBuffer();
+        Node<K, V> node = map.get(key);
+        if (node != null) {
+            buffer.hitCount.incrementAndGet();
+            recordAccess(buffer, node);
+            return node.value;
+        }
+        buffer.missCount.incrementAndGet();
+
         /*
          * Attempt to create a value. This may take a long time, and the map
          * may be different when create() returns. If a conflicting value was
@@ -87,21 +165,24 @@ public class LruCache<K, V> {
             return null;
         }
 
-        synchronized (this) {
+        Node<K, V> mapNode;
+        evictionLock.lock();
+        try {
             createCount++;
-            mapValue = map.put(key, createdValue);
-
-            if (mapValue != null) {
-                // There was a conflict so undo that last put
-                map.put(key, mapValue);
-            } else {
-                size += safeSizeOf(key, createdValue);
+            mapNode = map.get(key);
+            if (mapNode == null) {
+                node = new Node<K, V>(key, createdValue, safeSizeOf(key, createdValue));
+                map.put(key, node);
+                link(node);
+                size += node.weight;
             }
+        } finally {
+            evictionLock.unlock();
         }
 
-        if (mapValue != null) {
-            entryRemoved(false, key, createdValue, mapValue);
-            return mapValue;
+        if (mapNode != null) {
+            entryRemoved(false, key, createdValue, mapNode.value);
+            return mapNode.value;
         } else {
             trimToSize(maxSize);
             return createdValue;
@@ -115,26 +196,87 @@ public class LruCache<K, V> {
      * @return the previous value mapped by {@code key}.
      */
     public V put(K key, V value) {
+        return put(key, value, 1);
+    }
+
+    /**
+     * Caches {@code value} for {@code key}, remembering how expensive it was to
+     * produce. Only {@link CachePolicy#GDSF} takes the cost into account.
+     *
+     * @param cost a positive number in any unit, as long as it is the same for
+     *     all entries of this cache.
+     * @return the previous value mapped by {@code key}.
+     */
+    public V put(K key, V value, int cost) {
         if (key == null || value == null) {
             throw new NullPointerException("key == null || value == null");
         }
 
-        V previous;
-        synchronized (this) {
+        Node<K, V> node = new Node<K, V>(key, value, safeSizeOf(key, value));
+        node.cost = Math.max(1, cost);
+        Node<K, V> previous;
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
             putCount++;
-            size += safeSizeOf(key, value);
-            previous = map.put(key, value);
+            previous = map.put(key, node);
             if (previous != null) {
-                size -= safeSizeOf(key, previous);
+                unlink(previous);
+                size -= previous.weight;
             }
+            link(node);
+            size += node.weight;
+        } finally {
+            evictionLock.unlock();
         }
 
         if (previous != null) {
-            entryRemoved(false, key, previous, value);
+            entryRemoved(false, key, previous.value, value);
+        }
+
+        MissRatioCurve curve = missRatioCurve;
+        if (curve != null) {
+            curve.recordPut(key, node.weight);
+        }
+
+        trimToSize(maxSize);
+        return previous != null ? previous.value : null;
+    }
+
+    /**
+     * Sets the size of the cache, evicting entries if it shrinks.
+     *
+     * @param maxSize The new maximum size.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
         }
 
+        evictionLock.lock();
+        try {
+            this.maxSize = maxSize;
+            policy.setMaxSize(maxSize);
+        } finally {
+            evictionLock.unlock();
+        }
         trimToSize(maxSize);
-        return previous;
+    }
+
+    /**
+     * Lets the cache grow and shrink between the given bounds, to the smallest size at which it
+     * would miss about as rarely as at the upper bound. Entries which have been evicted are
+     * remembered by their keys to estimate that.
+     */
+    public void setAdaptiveSize(int minSize, int maxSize) {
+        missRatioCurve = new MissRatioCurve(minSize, maxSize);
+    }
+
+    /**
+     * @return The estimated miss ratio curve if the cache sizes itself adaptively, or null.
+     */
+    public MissRatioCurve missRatioCurve() {
+        return missRatioCurve;
     }
 
     /**
@@ -146,27 +288,29 @@ public class LruCache<K, V> {
      */
     public void trimToSize(int maxSize) {
         while (true) {
-            K key;
-            V value;
-            synchronized (this) {
+            Node<K, V> toEvict;
+            evictionLock.lock();
+            try {
+                drainReadBuffers();
                 if (size < 0 || (map.isEmpty() && size != 0)) {
                     throw new IllegalStateException(getClass().getName()
                             + ".sizeOf() is reporting inconsistent results!");
                 }
 
-                if (size <= maxSize || map.isEmpty()) {
+                toEvict = (size > maxSize ? policy.victim() : null);
+                if (toEvict == null) {
                     break;
                 }
 
-                Map.Entry<K, V> toEvict = map.entrySet().iterator().next();
-                key = toEvict.getKey();
-                value = toEvict.getValue();
-                map.remove(key);
-                size -= safeSizeOf(key, value);
+                map.remove(toEvict.key, toEvict);
+                unlink(toEvict);
+                size -= toEvict.weight;
                 evictionCount++;
+            } finally {
+                evictionLock.unlock();
             }
 
-            entryRemoved(true, key, value, null);
+            entryRemoved(true, toEvict.key, toEvict.value, null);
         }
     }
 
@@ -180,19 +324,73 @@ public class LruCache<K, V> {
             throw new NullPointerException("key == null");
         }
 
-        V previous;
-        synchronized (this) {
+        Node<K, V> previous;
+        evictionLock.lock();
+        try {
             previous = map.remove(key);
             if (previous != null) {
-                size -= safeSizeOf(key, previous);
+                unlink(previous);
+                size -= previous.weight;
             }
+        } finally {
+            evictionLock.unlock();
         }
 
         if (previous != null) {
-            entryRemoved(false, key, previous, null);
+            entryRemoved(false, key, previous.value, null);
+            return previous.value;
+        }
+        return null;
+    }
+
+    private ReadBuffer<K, V> readBuffer() {
+        int hash = (int) Thread.currentThread().getId();
+        hash ^= (hash >>> 16);
+        return readBuffers[hash & (readBuffers.length - 1)];
+    }
+
+    /**
+     * Records a hit on {@code node} without taking the eviction lock unless the buffer is full.
+     * When it is full and another thread is already draining, the hit is simply dropped.
+     */
+    private void recordAccess(ReadBuffer<K, V> buffer, Node<K, V> node) {
+        int index = buffer.writeIndex.getAndIncrement();
+        if (index < READ_BUFFER_SIZE) {
+            // Not lazySet(), which isn't available before API level 9.
+            buffer.slots.set(index, node);
+        } else if (evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
         }
+    }
+
+    /**
+     * Replays buffered hits into the access order. Must be called with the eviction lock held.
+     */
+    private void drainReadBuffers() {
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            int count = Math.min(buffer.writeIndex.get(), READ_BUFFER_SIZE);
+            for (int i = 0; i < count; ++i) {
+                Node<K, V> node = buffer.slots.getAndSet(i, null);
+                if (node != null && node.alive) {
+                    policy.onAccess(node);
+                }
+            }
+            buffer.writeIndex.set(0);
+        }
+    }
 
-        return previous;
+    private void link(Node<K, V> node) {
+        node.alive = true;
+        policy.onAdd(node);
+    }
+
+    private void unlink(Node<K, V> node) {
+        node.alive = false;
+        policy.onRemove(node);
     }
 
     /**
@@ -262,7 +460,7 @@ public class LruCache<K, V> {
      * of entries in the cache. For all other caches, this returns the sum of
      * the sizes of the entries in this cache.
      */
-    public synchronized final int size() {
+    public final int size() {
         return size;
     }
 
@@ -271,55 +469,94 @@ public class LruCache<K, V> {
      * number of entries in the cache. For all other caches, this returns the
      * maximum sum of the sizes of the entries in this cache.
      */
-    public synchronized final int maxSize() {
+    public final int maxSize() {
         return maxSize;
     }
 
     /**
      * Returns the number of times {@link #get} returned a value.
      */
-    public synchronized final int hitCount() {
-        return hitCount;
+    public final int hitCount() {
+        int count = 0;
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            count += buffer.hitCount.get();
+        }
+        return count;
     }
 
     /**
      * Returns the number of times {@link #get} returned null or required a new
      * value to be created.
      */
-    public synchronized final int missCount() {
-        return missCount;
+    public final int missCount() {
+        int count = 0;
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            count += buffer.missCount.get();
+        }
+        return count;
     }
 
     /**
      * Returns the number of times {@link #create(Object)} returned a value.
      */
-    public synchronized final int createCount() {
-        return createCount;
+    public final int createCount() {
+        evictionLock.lock();
+        try {
+            return createCount;
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
     /**
      * Returns the number of times {@link #put} was called.
      */
-    public synchronized final int putCount() {
-        return putCount;
+    public final int putCount() {
+        evictionLock.lock();
+        try {
+            return putCount;
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
     /**
      * Returns the number of values that have been evicted.
      */
-    public synchronized final int evictionCount() {
-        return evictionCount;
+    public final int evictionCount() {
+        evictionLock.lock();
+        try {
+            return evictionCount;
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
     /**
-     * Returns a copy of the current contents of the cache, ordered from least
-     * recently accessed to most recently accessed.
+     * Returns a copy of the current contents of the cache, roughly ordered from
+     * the entry which would be evicted first to the one which would be evicted
+     * last. With {@link CachePolicy#LRU} that is from least recently accessed to
+     * most recently accessed.
      */
-    public synchronized final Map<K, V> snapshot() {
-        return new LinkedHashMap<K, V>(map);
+    public final Map<K, V> snapshot() {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            ArrayList<Node<K, V>> nodes = new ArrayList<Node<K, V>>(map.size());
+            policy.collect(nodes);
+            LinkedHashMap<K, V> snapshot = new LinkedHashMap<K, V>(map.size());
+            for (Node<K, V> node : nodes) {
+                snapshot.put(node.key, node.value);
+            }
+            return snapshot;
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
-    @Override public synchronized final String toString() {
+    @Override public final String toString() {
+        int hitCount = hitCount();
+        int missCount = missCount();
         int accesses = hitCount + missCount;
         int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
         return String.format(Locale.getDefault(),
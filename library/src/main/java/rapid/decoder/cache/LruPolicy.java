@@ -0,0 +1,41 @@
+package rapid.decoder.cache;
+
+import java.util.List;
+
+import rapid.decoder.cache.LruCache.Node;
+
+/**
+ * Evicts the least recently used entry.
+ */
+class LruPolicy<K, V> extends EvictionPolicy<K, V> {
+    private final Node<K, V> mHead = newSentinel();
+
+    @Override
+    void setMaxSize(int maxSize) {
+    }
+
+    @Override
+    void onAdd(Node<K, V> node) {
+        linkLast(mHead, node);
+    }
+
+    @Override
+    void onAccess(Node<K, V> node) {
+        moveToLast(mHead, node);
+    }
+
+    @Override
+    void onRemove(Node<K, V> node) {
+        unlink(node);
+    }
+
+    @Override
+    Node<K, V> victim() {
+        return mHead.next != mHead ? mHead.next : null;
+    }
+
+    @Override
+    void collect(List<Node<K, V>> out) {
+        collect(mHead, out);
+    }
+}
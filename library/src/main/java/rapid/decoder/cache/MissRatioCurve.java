@@ -0,0 +1,289 @@
+package rapid.decoder.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Estimates online how the miss ratio of a cache would change with its size.
+ * <p>
+ * A sample of the keys is replayed through an LRU stack which keeps only keys and sizes. The stack
+ * also remembers entries which the real cache has already evicted, up to the largest size the
+ * cache may grow to. Each hit on the stack is counted at its stack distance, the number of bytes
+ * a cache must hold to still contain the entry, so the number of hits a cache of any size up to
+ * that bound would have had can be read off the histogram.
+ * <p>
+ * Stack distances are summed in a Fenwick tree which holds the size of each entry at the time of
+ * its last access, so recording an access takes logarithmic time however many entries the stack
+ * remembers.
+ */
+public class MissRatioCurve {
+    private static final int BUCKET_COUNT = 32;
+    /**
+     * Only keys whose hashes have these bits cleared are sampled. Sizes of sampled entries are
+     * scaled up accordingly.
+     */
+    private static final int SAMPLE_MASK = 1;
+    private static final int SAMPLE_SCALE = SAMPLE_MASK + 1;
+    /**
+     * Number of sampled accesses after which a new size is recommended.
+     */
+    private static final int ADAPT_INTERVAL = 500;
+    /**
+     * A smaller size is good enough if it misses at most this much more often than the largest
+     * one would.
+     */
+    private static final float MISS_RATIO_TOLERANCE = 0.02f;
+    private static final int MIN_TIME_CAPACITY = 1024;
+
+    private final int mMinSize;
+    private final int mMaxSize;
+    private final int mBucketSize;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final LinkedHashMap<Object, StackEntry> mStack =
+            new LinkedHashMap<Object, StackEntry>(16, 0.75f, true);
+    private long mStackSize;
+    /**
+     * Fenwick tree of the sizes of the entries of the stack, indexed by the time of their last
+     * access. Times are renumbered when they run out.
+     */
+    private long[] mSizesByTime = new long[MIN_TIME_CAPACITY + 1];
+    private int mTime;
+    private final float[] mHits = new float[BUCKET_COUNT];
+    private float mAccessCount;
+    private int mAccessesSinceAdapt;
+
+    /**
+     * @param minSize The smallest size which may be recommended.
+     * @param maxSize The largest size which may be recommended, and the largest one the curve is
+     *                estimated for.
+     */
+    public MissRatioCurve(int minSize, int maxSize) {
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("0 < minSize <= maxSize is required");
+        }
+        mMinSize = minSize;
+        mMaxSize = maxSize;
+        mBucketSize = Math.max(1, (maxSize + BUCKET_COUNT - 1) / BUCKET_COUNT);
+    }
+
+    private static boolean isSampled(Object key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        hash *= 0x45d9f3b;
+        hash ^= (hash >>> 16);
+        return (hash & SAMPLE_MASK) == 0;
+    }
+
+    /**
+     * Records a lookup of the key. Lookups which come while another thread is recording are
+     * dropped, so this never blocks.
+     *
+     * @return true if it's time to call {@link #pollRecommendedSize()}.
+     */
+    boolean recordAccess(Object key) {
+        if (!isSampled(key) || !mLock.tryLock()) return false;
+        try {
+            ++mAccessCount;
+            ++mAccessesSinceAdapt;
+
+            StackEntry entry = mStack.get(key);
+            if (entry != null) {
+                recordHit(entry);
+            }
+            return mAccessesSinceAdapt >= ADAPT_INTERVAL;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void recordHit(StackEntry entry) {
+        long distance = mStackSize - sizeAccessedBefore(entry.time);
+        if (distance <= mMaxSize) {
+            mHits[(int) ((Math.max(1, distance) - 1) / mBucketSize)] += 1;
+        }
+        moveToTop(entry, entry.size);
+    }
+
+    /**
+     * Gives the entry, which has just been moved to the end of {@link #mStack}, a new time of
+     * last access.
+     */
+    private void moveToTop(StackEntry entry, int size) {
+        if (entry.time != 0) {
+            addSize(entry.time, -entry.size);
+            entry.time = 0;
+        }
+        if (mTime == mSizesByTime.length - 1) {
+            renumberTimes();
+        }
+        entry.time = ++mTime;
+        entry.size = size;
+        addSize(entry.time, size);
+    }
+
+    private void renumberTimes() {
+        mSizesByTime = new long[Math.max(MIN_TIME_CAPACITY, mStack.size() * 2) + 1];
+        mTime = 0;
+        for (StackEntry entry : mStack.values()) {
+            if (entry.time != 0) {
+                entry.time = ++mTime;
+                addSize(entry.time, entry.size);
+            }
+        }
+    }
+
+    private void addSize(int time, long size) {
+        for (int i = time; i < mSizesByTime.length; i += i & -i) {
+            mSizesByTime[i] += size;
+        }
+    }
+
+    private long sizeAccessedBefore(int time) {
+        long size = 0;
+        for (int i = time - 1; i > 0; i -= i & -i) {
+            size += mSizesByTime[i];
+        }
+        return size;
+    }
+
+    /**
+     * Records that an entry has been put into the cache.
+     */
+    void recordPut(Object key, int size) {
+        if (!isSampled(key)) return;
+        mLock.lock();
+        try {
+            StackEntry entry = mStack.get(key);
+            if (entry != null) {
+                mStackSize -= entry.size;
+            } else {
+                entry = new StackEntry();
+                mStack.put(key, entry);
+            }
+            moveToTop(entry, size * SAMPLE_SCALE);
+            mStackSize += entry.size;
+
+            Iterator<StackEntry> it = mStack.values().iterator();
+            while (mStackSize > mMaxSize && it.hasNext()) {
+                StackEntry eldest = it.next();
+                mStackSize -= eldest.size;
+                addSize(eldest.time, -eldest.size);
+                it.remove();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return A new size for the cache if enough accesses have been recorded since the last time,
+     * or 0 otherwise.
+     */
+    int pollRecommendedSize() {
+        mLock.lock();
+        try {
+            if (mAccessesSinceAdapt < ADAPT_INTERVAL) return 0;
+            mAccessesSinceAdapt = 0;
+
+            int size = recommendedSizeLocked();
+            // Let older accesses fade out so the size follows changing usage.
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                mHits[i] /= 2;
+            }
+            mAccessCount /= 2;
+            return size;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return The smallest size between the bounds which misses about as rarely as the largest one.
+     */
+    public int recommendedSize() {
+        mLock.lock();
+        try {
+            return recommendedSizeLocked();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private int recommendedSizeLocked() {
+        float target = missRatioLocked(mMaxSize) + MISS_RATIO_TOLERANCE;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            int size = sizeAt(i);
+            if (size >= mMinSize && missRatioLocked(size) <= target) {
+                return Math.min(size, mMaxSize);
+            }
+        }
+        return mMaxSize;
+    }
+
+    /**
+     * @return The estimated fraction of lookups which would miss in an LRU cache of the given
+     * size, or 1 if nothing has been recorded yet.
+     */
+    public float missRatio(int size) {
+        mLock.lock();
+        try {
+            return missRatioLocked(size);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private float missRatioLocked(int size) {
+        if (mAccessCount == 0) return 1;
+
+        float hits = 0;
+        int buckets = (size >= mMaxSize ? BUCKET_COUNT : size / mBucketSize);
+        for (int i = 0; i < buckets; ++i) {
+            hits += mHits[i];
+        }
+        return Math.max(0, 1 - hits / mAccessCount);
+    }
+
+    /**
+     * @return The number of points the curve is estimated at.
+     */
+    public int pointCount() {
+        return BUCKET_COUNT;
+    }
+
+    /**
+     * @return The cache size of the given point of the curve.
+     */
+    public int sizeAt(int index) {
+        return (int) Math.min(mMaxSize, (long) (index + 1) * mBucketSize);
+    }
+
+    public int minSize() {
+        return mMinSize;
+    }
+
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("MissRatioCurve[");
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            if (i != 0) {
+                sb.append(',');
+            }
+            int size = sizeAt(i);
+            sb.append(String.format(Locale.US, "%d=%.3f", size, missRatio(size)));
+        }
+        return sb.append(']').toString();
+    }
+
+    private static class StackEntry {
+        int time;
+        int size;
+    }
+}
@@ -0,0 +1,782 @@
+package rapid.decoder.cache;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link DiskStore} which appends entries to large segment files instead of giving each entry
+ * a file of its own. This saves the file system a create, a rename and a delete per entry, which
+ * dominate the cost of storing small images like thumbnails.
+ * <p>
+ * An in-memory index maps keys to the places of their values in the segments. It is rebuilt by
+ * reading all segments in order when the store is opened, and a new segment is started then.
+ * Space is reclaimed a whole segment at a time: once the store grows over its size, the entries
+ * of the oldest segment which have been read since it was filled are copied to the newest
+ * segment, and the oldest one is deleted.
+ * <p>
+ * A segment starts with three ints, the magic number, the format version and the application's
+ * version, followed by records of
+ * <pre>
+ *   byte    op, PUT or REMOVE
+ *   UTF     key
+ *   int     value length, PUT only
+ *   byte[]  value, PUT only
+ * </pre>
+ * A partial record at the end of a segment, left by a crash, is ignored.
+ * <p>
+ * Values are written to a temporary file until they are committed, and only small ones are
+ * buffered in memory instead. Committing copies the value to the active segment.
+ */
+final class SegmentDiskStore implements DiskStore {
+    private static final String SEGMENT_PREFIX = "segment.";
+    private static final int MAGIC = 0x52445347; // "RDSG"
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 12;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private static final long MIN_SEGMENT_SIZE = 64 * 1024;
+    private static final long MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+    /**
+     * Values being edited are kept in memory up to this length, and moved to a temporary file
+     * when they grow over it, like whole images or partial downloads.
+     */
+    private static final int MAX_BUFFERED_VALUE_SIZE = 64 * 1024;
+    private static final String TEMP_PREFIX = "value.";
+    /**
+     * At most this fraction of the oldest segment is kept when it is evicted, so every eviction
+     * frees a good part of it.
+     */
+    private static final float MAX_RELOCATED_RATIO = 0.75f;
+
+    private static final class Segment {
+        final int id;
+        final File file;
+        /** Guarded by {@link #mWriteLock} while this is the active segment. */
+        long size;
+        /** Value of {@link #mAccessClock} when the segment stopped being appended to. */
+        volatile long sealedAt = Long.MAX_VALUE;
+
+        Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final long offset;
+        final int length;
+        volatile long lastAccess;
+
+        Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File mDirectory;
+    private final int mAppVersion;
+    private final long mMaxSize;
+    private final long mSegmentSize;
+
+    private final ConcurrentHashMap<String, Location> mIndex =
+            new ConcurrentHashMap<String, Location>();
+    private final ConcurrentHashMap<String, Editor> mEditors =
+            new ConcurrentHashMap<String, Editor>();
+    private final AtomicLong mAccessClock = new AtomicLong();
+
+    /** Guards appending to the segments, the segment list and the index's writers. */
+    private final Object mWriteLock = new Object();
+    /** From the oldest to the newest one, which is appended to. */
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    private FileOutputStream mActiveOut;
+    /** Guarded by {@link #mWriteLock}. */
+    private final byte[] mCopyBuffer = new byte[8 * 1024];
+    private long mSize;
+    private volatile boolean mClosed;
+
+    /** Makes sure only one thread evicts segments at a time. */
+    private final Object mTrimLock = new Object();
+    private final ExecutorService mExecutor = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private final AtomicBoolean mTrimScheduled = new AtomicBoolean();
+    private final Runnable mTrimTask = new Runnable() {
+        @Override
+        public void run() {
+            mTrimScheduled.set(false);
+            try {
+                trimToSize();
+            } catch (IOException ignored) {
+            }
+        }
+    };
+
+    private SegmentDiskStore(File directory, int appVersion, long maxSize) {
+        mDirectory = directory;
+        mAppVersion = appVersion;
+        mMaxSize = maxSize;
+        mSegmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, maxSize / 16));
+    }
+
+    static SegmentDiskStore open(File directory, int appVersion, long maxSize)
+            throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        directory.mkdirs();
+        SegmentDiskStore store = new SegmentDiskStore(directory, appVersion, maxSize);
+        try {
+            store.load();
+        } catch (IOException e) {
+            deleteContents(directory);
+            store = new SegmentDiskStore(directory, appVersion, maxSize);
+        }
+        synchronized (store.mWriteLock) {
+            store.startSegment();
+        }
+        store.scheduleTrim();
+        return store;
+    }
+
+    private void load() throws IOException {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            throw new IOException("not a readable directory: " + mDirectory);
+        }
+
+        ArrayList<Segment> segments = new ArrayList<Segment>();
+        for (File file : files) {
+            int id = parseSegmentId(file.getName());
+            if (id >= 0) {
+                segments.add(new Segment(id, file));
+            } else {
+                // Left over from another layout, or a value which was being edited
+                deleteRecursively(file);
+            }
+        }
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment lhs, Segment rhs) {
+                return lhs.id < rhs.id ? -1 : (lhs.id > rhs.id ? 1 : 0);
+            }
+        });
+
+        for (Segment segment : segments) {
+            readSegment(segment);
+            segment.sealedAt = 0;
+            mSegments.add(segment);
+            mSize += segment.size;
+        }
+    }
+
+    private static int parseSegmentId(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX)) return -1;
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void readSegment(Segment segment) throws IOException {
+        long fileLength = segment.file.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(segment.file), 8 * 1024));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                    in.readInt() != mAppVersion) {
+                throw new IOException("unexpected segment header: " + segment.file);
+            }
+
+            long offset = SEGMENT_HEADER_SIZE;
+            while (true) {
+                int op = in.read();
+                if (op == -1) break;
+
+                String key = in.readUTF();
+                offset += 1 + utfLength(key);
+                if (op == PUT) {
+                    int length = in.readInt();
+                    offset += 4;
+                    // skip() doesn't notice the end of a file.
+                    if (length < 0 || offset + length > fileLength) break;
+                    skipFully(in, length);
+                    mIndex.put(key, new Location(segment, offset, length));
+                    offset += length;
+                } else if (op == REMOVE) {
+                    mIndex.remove(key);
+                } else {
+                    break;
+                }
+            }
+        } catch (EOFException ignored) {
+            // A partial record of a crash. The segment is never appended to again.
+        } finally {
+            closeQuietly(in);
+        }
+        segment.size = fileLength;
+    }
+
+    /**
+     * Seals the active segment and starts appending to a new one.
+     */
+    private void startSegment() throws IOException {
+        int id = 0;
+        if (!mSegments.isEmpty()) {
+            Segment last = mSegments.get(mSegments.size() - 1);
+            last.sealedAt = mAccessClock.get();
+            id = last.id + 1;
+        }
+        if (mActiveOut != null) {
+            mActiveOut.close();
+            mActiveOut = null;
+        }
+
+        Segment segment = new Segment(id, new File(mDirectory, SEGMENT_PREFIX + id));
+        FileOutputStream out = new FileOutputStream(segment.file);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(SEGMENT_HEADER_SIZE);
+        DataOutputStream dos = new DataOutputStream(header);
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeInt(mAppVersion);
+        header.writeTo(out);
+
+        segment.size = SEGMENT_HEADER_SIZE;
+        mSize += SEGMENT_HEADER_SIZE;
+        mSegments.add(segment);
+        mActiveOut = out;
+    }
+
+    /**
+     * Appends a PUT record of the value and points the index at it.
+     *
+     * @param value    The value is read from this, which isn't read at all if it isn't appended.
+     * @param expected If not null, the value is only appended if the key is still mapped to this.
+     */
+    private boolean append(String key, InputStream value, int length, Location expected)
+            throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(key.length() + 8);
+        DataOutputStream dos = new DataOutputStream(header);
+        dos.writeByte(PUT);
+        dos.writeUTF(key);
+        dos.writeInt(length);
+
+        boolean trim;
+        synchronized (mWriteLock) {
+            checkNotClosed();
+            if (expected != null && mIndex.get(key) != expected) return false;
+
+            Segment segment = mSegments.get(mSegments.size() - 1);
+            long recordLength = header.size() + length;
+            if (segment.size > SEGMENT_HEADER_SIZE &&
+                    segment.size + recordLength > mSegmentSize) {
+                startSegment();
+                segment = mSegments.get(mSegments.size() - 1);
+            }
+
+            long written = 0;
+            try {
+                header.writeTo(mActiveOut);
+                written = header.size();
+                int remaining = length;
+                while (remaining > 0) {
+                    int count = value.read(mCopyBuffer, 0, Math.min(mCopyBuffer.length, remaining));
+                    if (count == -1) {
+                        throw new EOFException();
+                    }
+                    mActiveOut.write(mCopyBuffer, 0, count);
+                    written += count;
+                    remaining -= count;
+                }
+            } catch (IOException e) {
+                // Nothing may be appended after the partial record, which is skipped like one of
+                // a crash.
+                segment.size += written;
+                mSize += written;
+                startSegment();
+                throw e;
+            }
+            Location location = new Location(segment, segment.size + header.size(), length);
+            if (expected != null) {
+                location.lastAccess = expected.lastAccess;
+            }
+            segment.size += recordLength;
+            mSize += recordLength;
+            mIndex.put(key, location);
+            trim = (mSize > mMaxSize);
+        }
+
+        if (trim) {
+            scheduleTrim();
+        }
+        return true;
+    }
+
+    @Override
+    public DiskStore.Editor edit(String key) throws IOException {
+        checkNotClosed();
+        Editor editor = new Editor(key);
+        return mEditors.putIfAbsent(key, editor) == null ? editor : null;
+    }
+
+    @Override
+    public DiskStore.Snapshot get(String key) throws IOException {
+        checkNotClosed();
+        while (true) {
+            Location location = mIndex.get(key);
+            if (location == null) return null;
+
+            location.lastAccess = mAccessClock.incrementAndGet();
+            try {
+                // A reader keeps its segment readable even if it is evicted meanwhile.
+                return new Snapshot(new FileInputStream(location.segment.file), location);
+            } catch (FileNotFoundException e) {
+                // The segment has been evicted in the meantime. Try again if the entry has been
+                // relocated.
+                if (mIndex.get(key) == location) return null;
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(String key) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(key.length() + 3);
+        DataOutputStream dos = new DataOutputStream(record);
+        dos.writeByte(REMOVE);
+        dos.writeUTF(key);
+
+        synchronized (mWriteLock) {
+            checkNotClosed();
+            if (mIndex.remove(key) == null) return false;
+
+            record.writeTo(mActiveOut);
+            mSegments.get(mSegments.size() - 1).size += record.size();
+            mSize += record.size();
+            return true;
+        }
+    }
+
+    private void scheduleTrim() {
+        if (mTrimScheduled.compareAndSet(false, true)) {
+            mExecutor.submit(mTrimTask);
+        }
+    }
+
+    /**
+     * Evicts the oldest segments until the store fits in its size.
+     */
+    private void trimToSize() throws IOException {
+        synchronized (mTrimLock) {
+            while (true) {
+                Segment victim;
+                synchronized (mWriteLock) {
+                    if (mClosed || mSize <= mMaxSize || mSegments.size() < 2) return;
+                    victim = mSegments.get(0);
+                }
+
+                evictSegment(victim);
+
+                synchronized (mWriteLock) {
+                    mSegments.remove(victim);
+                    mSize -= victim.size;
+                }
+                if (!victim.file.delete()) {
+                    throw new IOException("failed to delete " + victim.file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the segment from the start to the end, copying the values still in use to the
+     * active segment and dropping the rest from the index.
+     */
+    private void evictSegment(Segment victim) throws IOException {
+        long relocationBudget = (long) (victim.size * MAX_RELOCATED_RATIO);
+        long sealedAt = victim.sealedAt;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(victim.file), 64 * 1024));
+        try {
+            skipFully(in, SEGMENT_HEADER_SIZE);
+            long offset = SEGMENT_HEADER_SIZE;
+            while (offset < victim.size) {
+                int op = in.read();
+                if (op == -1) break;
+
+                String key = in.readUTF();
+                offset += 1 + utfLength(key);
+                if (op != PUT) continue;
+
+                int length = in.readInt();
+                offset += 4;
+                if (length < 0 || offset + length > victim.size) break;
+
+                Location location = mIndex.get(key);
+                boolean live = (location != null && location.segment == victim &&
+                        location.offset == offset);
+                if (live && location.lastAccess > sealedAt && length <= relocationBudget) {
+                    if (append(key, in, length, location)) {
+                        relocationBudget -= length;
+                    } else {
+                        skipFully(in, length);
+                    }
+                } else {
+                    skipFully(in, length);
+                    if (live) {
+                        mIndex.remove(key, location);
+                    }
+                }
+                offset += length;
+            }
+        } catch (EOFException ignored) {
+            // a partial record of a crash
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkNotClosed();
+        trimToSize();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (mWriteLock) {
+            if (mClosed) return;
+            mClosed = true;
+            if (mActiveOut != null) {
+                mActiveOut.close();
+                mActiveOut = null;
+            }
+        }
+    }
+
+    @Override
+    public void delete() throws IOException {
+        close();
+        deleteContents(mDirectory);
+    }
+
+    private void checkNotClosed() {
+        if (mClosed) {
+            throw new IllegalStateException("cache is closed");
+        }
+    }
+
+    private static int utfLength(String s) {
+        int length = 2;
+        for (int i = 0, n = s.length(); i < n; ++i) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                length += 1;
+            } else if (c <= 0x07ff) {
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) throw new EOFException();
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static void deleteContents(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            deleteRecursively(file);
+        }
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        if (file.isDirectory()) {
+            deleteContents(file);
+        }
+        if (!file.delete() && file.exists()) {
+            throw new IOException("failed to delete file: " + file);
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private class Editor implements DiskStore.Editor {
+        private final String mKey;
+        private final ValueOutputStream mOut = new ValueOutputStream();
+        private boolean mDone;
+
+        Editor(String key) {
+            mKey = key;
+        }
+
+        @Override
+        public OutputStream newOutputStream() {
+            return mOut;
+        }
+
+        @Override
+        public void overwrite(long position, byte[] bytes) throws IOException {
+            mOut.overwrite(position, bytes);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (!finish()) return;
+            try {
+                if (mOut.length() > Integer.MAX_VALUE) {
+                    throw new IOException("value too large: " + mOut.length());
+                }
+                InputStream in = mOut.newInputStream();
+                try {
+                    append(mKey, in, (int) mOut.length(), null);
+                } finally {
+                    closeQuietly(in);
+                }
+            } finally {
+                mOut.discard();
+            }
+        }
+
+        @Override
+        public void abort() {
+            if (finish()) {
+                mOut.discard();
+            }
+        }
+
+        private boolean finish() {
+            if (mDone) return false;
+            mDone = true;
+            mEditors.remove(mKey, this);
+            return true;
+        }
+    }
+
+    /**
+     * Keeps a value in memory until it grows over {@link #MAX_BUFFERED_VALUE_SIZE}, and in a
+     * temporary file in the directory of the store from then on. Closing it keeps the value.
+     */
+    private class ValueOutputStream extends OutputStream {
+        private ValueBuffer mBuffer = new ValueBuffer();
+        private File mFile;
+        private FileOutputStream mFileOut;
+        private long mLength;
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            reserve(1);
+            if (mFileOut != null) {
+                mFileOut.write(oneByte);
+            } else {
+                mBuffer.write(oneByte);
+            }
+            ++mLength;
+        }
+
+        @Override
+        public void write(@NonNull byte[] buffer, int offset, int count) throws IOException {
+            reserve(count);
+            if (mFileOut != null) {
+                mFileOut.write(buffer, offset, count);
+            } else {
+                mBuffer.write(buffer, offset, count);
+            }
+            mLength += count;
+        }
+
+        private void reserve(int count) throws IOException {
+            if (mFileOut != null || mLength + count <= MAX_BUFFERED_VALUE_SIZE) return;
+
+            mFile = File.createTempFile(TEMP_PREFIX, null, mDirectory);
+            mFileOut = new FileOutputStream(mFile);
+            mBuffer.writeTo(mFileOut);
+            mBuffer = null;
+        }
+
+        long length() {
+            return mLength;
+        }
+
+        void overwrite(long position, byte[] bytes) throws IOException {
+            if (position < 0 || position + bytes.length > mLength) {
+                throw new IOException("overwriting bytes which haven't been written");
+            }
+            if (mFileOut != null) {
+                FileChannel channel = mFileOut.getChannel();
+                ByteBuffer source = ByteBuffer.wrap(bytes);
+                while (source.hasRemaining()) {
+                    channel.write(source, position + source.position());
+                }
+            } else {
+                System.arraycopy(bytes, 0, mBuffer.buffer(), (int) position, bytes.length);
+            }
+        }
+
+        InputStream newInputStream() throws IOException {
+            if (mFileOut != null) {
+                return new FileInputStream(mFile);
+            } else {
+                return new ByteArrayInputStream(mBuffer.buffer(), 0, mBuffer.size());
+            }
+        }
+
+        /**
+         * Deletes the temporary file, if any.
+         */
+        void discard() {
+            if (mFileOut == null) return;
+            try {
+                mFileOut.close();
+            } catch (IOException ignored) {
+            }
+            //noinspection ResultOfMethodCallIgnored
+            mFile.delete();
+        }
+    }
+
+    private static class ValueBuffer extends ByteArrayOutputStream {
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    private static class Snapshot implements DiskStore.Snapshot {
+        private final FileInputStream mIn;
+        private final Location mLocation;
+
+        Snapshot(FileInputStream in, Location location) {
+            mIn = in;
+            mLocation = location;
+        }
+
+        @Override
+        public FileChannel getChannel() {
+            return mIn.getChannel();
+        }
+
+        @Override
+        public long getOffset() {
+            return mLocation.offset;
+        }
+
+        @Override
+        public long getLength() {
+            return mLocation.length;
+        }
+
+        @Override
+        public FileDescriptor getFileDescriptor() throws IOException {
+            return mIn.getFD();
+        }
+
+        @Override
+        public InputStream newInputStream(long position) throws IOException {
+            mIn.getChannel().position(mLocation.offset + position);
+            return new BoundedInputStream(mIn, mLocation.length - position);
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(mIn);
+        }
+    }
+
+    private static class BoundedInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) {
+                --mRemaining;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining <= 0) return -1;
+            int read = in.read(buffer, offset, (int) Math.min(count, mRemaining));
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = in.skip(Math.min(count, mRemaining));
+            if (skipped > 0) {
+                mRemaining -= skipped;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), mRemaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
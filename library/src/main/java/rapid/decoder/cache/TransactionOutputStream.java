@@ -5,52 +5,60 @@ import android.support.annotation.NonNull;
 import java.io.IOException;
 import java.io.OutputStream;
 
-import rapid.decoder.cache.DiskLruCacheEngine.Editor;
-
 @SuppressWarnings("UnusedDeclaration")
 public class TransactionOutputStream extends OutputStream {
-	private Editor mEditor;
+	private DiskStore.Editor mEditor;
 	private OutputStream mOut;
 	private DiskLruCache mCache;
-	
-	public TransactionOutputStream(DiskLruCache cache, Editor editor, OutputStream out) {
+	private ImageHeaderSniffer mSniffer = new ImageHeaderSniffer();
+
+	public TransactionOutputStream(DiskLruCache cache, DiskStore.Editor editor, OutputStream out) {
 		mCache = cache;
 		mEditor = editor;
 		mOut = out;
 	}
-	
+
 	@Override
 	public void close() throws IOException {
 		mOut.close();
+		mSniffer.finish();
+		try {
+			CacheEntryHeader.commit(mEditor, mSniffer.length(),
+					mSniffer.mimeType(), mSniffer.width(), mSniffer.height());
+		} catch (IOException e) {
+			mEditor.abort();
+			throw e;
+		}
+		// The store isn't flushed here. A crash before it is only costs the entry.
 		mEditor.commit();
-		mCache.flush();
 	}
-	
+
 	public void rollback() throws IOException {
 		mOut.close();
 		mEditor.abort();
-		mCache.flush();
 	}
-	
+
 	@Override
 	public void flush() throws IOException {
 		mOut.flush();
 	}
-	
+
 	@Override
 	public void write(@NonNull byte[] buffer, int offset, int count)
 			throws IOException {
-		
+
 		mOut.write(buffer, offset, count);
+		mSniffer.update(buffer, offset, count);
 	}
-	
+
 	@Override
 	public void write(int oneByte) throws IOException {
 		mOut.write(oneByte);
+		mSniffer.update(oneByte);
 	}
-	
+
 	@Override
 	public void write(@NonNull byte[] buffer) throws IOException {
-		mOut.write(buffer);
+		write(buffer, 0, buffer.length);
 	}
 }
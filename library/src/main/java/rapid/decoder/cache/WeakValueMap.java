@@ -0,0 +1,78 @@
+package rapid.decoder.cache;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A concurrent map which only holds its values weakly. Entries whose values have been garbage
+ * collected are removed through a {@link ReferenceQueue} on later writes and misses, so no
+ * operation ever has to scan the whole map.
+ */
+public class WeakValueMap<K, V> {
+    private static class ValueReference<K, V> extends WeakReference<V> {
+        final K key;
+
+        ValueReference(K key, V value, ReferenceQueue<? super V> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+    }
+
+    private final ConcurrentHashMap<K, ValueReference<K, V>> mMap =
+            new ConcurrentHashMap<K, ValueReference<K, V>>();
+    private final ReferenceQueue<V> mQueue = new ReferenceQueue<V>();
+
+    public V get(K key) {
+        ValueReference<K, V> ref = mMap.get(key);
+        if (ref == null) {
+            expungeStaleEntries();
+            return null;
+        }
+
+        V value = ref.get();
+        if (value == null) {
+            mMap.remove(key, ref);
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        expungeStaleEntries();
+        mMap.put(key, new ValueReference<K, V>(key, value, mQueue));
+    }
+
+    /**
+     * Removes the entry for the key only if it is currently mapped to the given value.
+     */
+    public boolean remove(K key, V value) {
+        ValueReference<K, V> ref = mMap.get(key);
+        return ref != null && ref.get() == value && mMap.remove(key, ref);
+    }
+
+    public void remove(K key) {
+        mMap.remove(key);
+    }
+
+    public void clear() {
+        mMap.clear();
+        expungeStaleEntries();
+    }
+
+    /**
+     * @return The number of entries including the ones whose values have been collected but not
+     * expunged yet.
+     */
+    public int size() {
+        return mMap.size();
+    }
+
+    public void expungeStaleEntries() {
+        Object polled;
+        while ((polled = mQueue.poll()) != null) {
+            @SuppressWarnings("unchecked")
+            ValueReference<K, V> ref = (ValueReference<K, V>) polled;
+            mMap.remove(ref.key, ref);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package rapid.decoder.cache;
+
+import java.util.List;
+
+import rapid.decoder.cache.LruCache.Node;
+
+/**
+ * W-TinyLFU. New entries go into a small LRU window. Entries leaving the window enter the
+ * probation segment of a segmented LRU main space, and are promoted to its protected segment when
+ * they are read again. When something has to be evicted, the entries which have just left the
+ * window compete with the eldest entries in probation, and the one a {@link FrequencySketch} has
+ * seen less often loses. A burst of
+ * one-off entries, like a fling through a long list, therefore can't push out entries which are
+ * used over and over again.
+ */
+class WindowTinyLfuPolicy<K, V> extends EvictionPolicy<K, V> {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    /**
+     * Bitmaps are large compared to the whole cache, so the window is bigger than the 1% usually
+     * used for small entries. Otherwise it couldn't even hold one of them.
+     */
+    private static final int WINDOW_PERCENT = 10;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final Node<K, V> mWindow = newSentinel();
+    private final Node<K, V> mProbation = newSentinel();
+    private final Node<K, V> mProtected = newSentinel();
+    private final FrequencySketch mSketch = new FrequencySketch();
+
+    private int mMaxWindowSize;
+    private int mMaxProtectedSize;
+    private int mWindowSize;
+    private int mProtectedSize;
+    private int mEntryCount;
+
+    /** The eldest entry which has left the window since the last insertion and not been judged. */
+    private Node<K, V> mCandidate;
+
+    @Override
+    void setMaxSize(int maxSize) {
+        mMaxWindowSize = Math.max(1, maxSize * WINDOW_PERCENT / 100);
+        mMaxProtectedSize = (maxSize - mMaxWindowSize) * PROTECTED_PERCENT / 100;
+    }
+
+    @Override
+    void onAdd(Node<K, V> node) {
+        if (++mEntryCount > mSketch.capacity()) {
+            mSketch.ensureCapacity(2 * mEntryCount);
+        }
+        mSketch.increment(node.key);
+        mCandidate = null;
+
+        node.queue = WINDOW;
+        linkLast(mWindow, node);
+        mWindowSize += node.weight;
+
+        while (mWindowSize > mMaxWindowSize && mWindow.next != mWindow) {
+            Node<K, V> eldest = mWindow.next;
+            unlink(eldest);
+            mWindowSize -= eldest.weight;
+            eldest.queue = PROBATION;
+            linkLast(mProbation, eldest);
+            if (mCandidate == null) {
+                mCandidate = eldest;
+            }
+        }
+    }
+
+    @Override
+    void onAccess(Node<K, V> node) {
+        mSketch.increment(node.key);
+
+        switch (node.queue) {
+            case WINDOW:
+                moveToLast(mWindow, node);
+                break;
+
+            case PROBATION:
+                if (node == mCandidate) {
+                    advanceCandidate();
+                }
+                unlink(node);
+                node.queue = PROTECTED;
+                linkLast(mProtected, node);
+                mProtectedSize += node.weight;
+
+                while (mProtectedSize > mMaxProtectedSize && mProtected.next != node) {
+                    Node<K, V> demoted = mProtected.next;
+                    unlink(demoted);
+                    mProtectedSize -= demoted.weight;
+                    demoted.queue = PROBATION;
+                    linkLast(mProbation, demoted);
+                }
+                break;
+
+            case PROTECTED:
+                moveToLast(mProtected, node);
+                break;
+        }
+    }
+
+    @Override
+    void onRemove(Node<K, V> node) {
+        if (node == mCandidate) {
+            advanceCandidate();
+        }
+        unlink(node);
+        --mEntryCount;
+        if (node.queue == WINDOW) {
+            mWindowSize -= node.weight;
+        } else if (node.queue == PROTECTED) {
+            mProtectedSize -= node.weight;
+        }
+    }
+
+    @Override
+    Node<K, V> victim() {
+        if (mProbation.next != mProbation) {
+            Node<K, V> eldest = mProbation.next;
+            Node<K, V> candidate = mCandidate;
+            if (candidate == null || candidate == eldest) return eldest;
+            return mSketch.frequency(candidate.key) > mSketch.frequency(eldest.key) ?
+                    eldest : candidate;
+        } else if (mProtected.next != mProtected) {
+            return mProtected.next;
+        } else if (mWindow.next != mWindow) {
+            return mWindow.next;
+        } else {
+            return null;
+        }
+    }
+
+    private void advanceCandidate() {
+        Node<K, V> next = mCandidate.next;
+        mCandidate = (next != mProbation ? next : null);
+    }
+
+    @Override
+    void collect(List<Node<K, V>> out) {
+        collect(mProbation, out);
+        collect(mProtected, out);
+        collect(mWindow, out);
+    }
+}
@@ -11,8 +11,22 @@ public class ScaleTypeFraming extends FramingMethod {
         mScaleType = scaleType;
     }
 
+    public ImageView.ScaleType scaleType() {
+        return mScaleType;
+    }
+
     @Override
     public FramedDecoder createFramedDecoder(BitmapDecoder decoder, int frameWidth, int frameHeight) {
         return FramedDecoder.newInstance(decoder, frameWidth, frameHeight, mScaleType);
     }
+
+    @Override
+    public int hashCode() {
+        return mScaleType.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ScaleTypeFraming && mScaleType == ((ScaleTypeFraming) o).mScaleType;
+    }
 }
@@ -0,0 +1,143 @@
+package rapid.decoder;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import rapid.decoder.cache.CachedFile;
+import rapid.decoder.cache.DiskCacheLayout;
+import rapid.decoder.cache.DiskLruCache;
+import rapid.decoder.cache.TransactionOutputStream;
+
+public class CachedFileBitmapLoaderTest extends AndroidTestCase {
+    private static final String KEY = "http://example.com/image.png";
+    private static final long CACHE_SIZE = 1024 * 1024;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = new File(System.getProperty("java.io.tmpdir"),
+                "CachedFileBitmapLoaderTest-" + System.nanoTime());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mDirectory);
+    }
+
+    private DiskLruCache openCache(DiskCacheLayout layout) {
+        return new DiskLruCache(new File(mDirectory, layout.name()), 1, CACHE_SIZE, layout);
+    }
+
+    private static void put(DiskLruCache cache, String key, byte[] value) throws IOException {
+        TransactionOutputStream out = cache.getOutputStream(key);
+        assertNotNull(out);
+        out.write(value);
+        out.close();
+    }
+
+    /**
+     * Puts another entry first, so that the entry starts past the beginning of its segment in
+     * the segmented layout.
+     */
+    private static void putAfterOther(DiskLruCache cache, byte[] value) throws IOException {
+        byte[] other = new byte[777];
+        Arrays.fill(other, (byte) 0x5a);
+        put(cache, "http://example.com/other.png", other);
+        put(cache, KEY, value);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] encodePng(int width, int height) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    private void assertReadsPayload(DiskCacheLayout layout) throws IOException {
+        DiskLruCache cache = openCache(layout);
+        byte[] value = new byte[4096];
+        for (int i = 0; i < value.length; ++i) {
+            value[i] = (byte) i;
+        }
+        putAfterOther(cache, value);
+
+        CachedFile file = cache.getFile(KEY);
+        assertNotNull(file);
+        try {
+            assertEquals(value.length, file.getLength());
+        } finally {
+            file.close();
+        }
+
+        InputStream in = new CachedFileBitmapLoader(cache, KEY).openInputStream();
+        assertNotNull(in);
+        assertTrue(Arrays.equals(value, readFully(in)));
+        cache.close();
+    }
+
+    public void testReadsPayloadPerEntry() throws Exception {
+        assertReadsPayload(DiskCacheLayout.FILE_PER_ENTRY);
+    }
+
+    public void testReadsPayloadSegmented() throws Exception {
+        assertReadsPayload(DiskCacheLayout.SEGMENTS);
+    }
+
+    private void assertDecodes(DiskCacheLayout layout) throws IOException {
+        DiskLruCache cache = openCache(layout);
+        putAfterOther(cache, encodePng(5, 3));
+
+        BitmapLoader loader = new CachedFileBitmapLoader(cache, KEY);
+        assertEquals(5, loader.width());
+        assertEquals(3, loader.height());
+        Bitmap bitmap = loader.decode();
+        assertNotNull(bitmap);
+        assertEquals(5, bitmap.getWidth());
+        assertEquals(3, bitmap.getHeight());
+        bitmap.recycle();
+        cache.close();
+    }
+
+    public void testDecodesPerEntry() throws Exception {
+        assertDecodes(DiskCacheLayout.FILE_PER_ENTRY);
+    }
+
+    public void testDecodesSegmented() throws Exception {
+        assertDecodes(DiskCacheLayout.SEGMENTS);
+    }
+
+    public void testMissingEntryDecodesToNull() throws Exception {
+        DiskLruCache cache = openCache(DiskCacheLayout.SEGMENTS);
+        assertNull(new CachedFileBitmapLoader(cache, KEY).decode());
+        cache.close();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,65 @@
+package rapid.decoder;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import rapid.decoder.cache.CacheSource;
+
+public class DecodeFlightTest extends AndroidTestCase {
+    private static byte[] encodePng(int width, int height) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    private static class WidthListener implements Decodable.OnBitmapDecodedListener {
+        private final CountDownLatch mDone;
+        volatile int width = -1;
+
+        WidthListener(CountDownLatch done) {
+            mDone = done;
+        }
+
+        @Override
+        public void onBitmapDecoded(@Nullable Bitmap bitmap, @Nullable CacheSource cacheSource) {
+            width = (bitmap != null ? bitmap.getWidth() : 0);
+            mDone.countDown();
+        }
+
+        @Override
+        public void onCancel() {
+            mDone.countDown();
+        }
+    }
+
+    public void testSourcesWithoutIdAreNotShared() throws InterruptedException {
+        final BitmapLoader first = BitmapDecoder.from(encodePng(3, 2));
+        final BitmapLoader second = BitmapDecoder.from(encodePng(5, 2));
+        assertEquals(first, second);
+
+        CountDownLatch done = new CountDownLatch(2);
+        final WidthListener firstListener = new WidthListener(done);
+        final WidthListener secondListener = new WidthListener(done);
+        // Both requests have to be made before either flight lands.
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                first.decode(new Object(), firstListener);
+                second.decode(new Object(), secondListener);
+            }
+        });
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(3, firstListener.width);
+        assertEquals(5, secondListener.width);
+    }
+}
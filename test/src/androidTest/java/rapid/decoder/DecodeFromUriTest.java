@@ -1,6 +1,7 @@
 package rapid.decoder;
 
 import android.graphics.Bitmap;
+import android.net.Uri;
 import android.test.AndroidTestCase;
 
 public class DecodeFromUriTest extends AndroidTestCase {
@@ -21,4 +22,14 @@ public class DecodeFromUriTest extends AndroidTestCase {
                 ".test/2130837504").decode();
         assertNotNull(bitmap);
     }
+
+    public void testNetworkFetcherRequiresNetworkUri() {
+        NetworkFetcher fetcher = new UrlConnectionFetcher();
+        assertNotNull(BitmapDecoder.from(Uri.parse("http://example.com/a.jpg"), false, fetcher));
+        try {
+            BitmapDecoder.from(Uri.parse("file:///sdcard/a.jpg"), false, fetcher);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
 }
@@ -0,0 +1,372 @@
+package rapid.decoder;
+
+import android.support.annotation.NonNull;
+import android.test.AndroidTestCase;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import rapid.decoder.cache.CachedFile;
+import rapid.decoder.cache.DiskLruCache;
+import rapid.decoder.cache.HttpCacheInfo;
+
+public class HttpStreamOpenerTest extends AndroidTestCase {
+    private static final byte[] BODY = "not really an image".getBytes();
+
+    private File mDirectory;
+    private DiskLruCache mCache;
+    private Server mServer;
+    private String mUrl;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = new File(System.getProperty("java.io.tmpdir"),
+                "HttpStreamOpenerTest-" + System.nanoTime());
+        mCache = new DiskLruCache(mDirectory, 1, 1024 * 1024);
+        mServer = new Server();
+        mUrl = "http://127.0.0.1:" + mServer.port() + "/image.jpg";
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        mCache.clear();
+    }
+
+    private byte[] fetch(HttpCacheInfo staleInfo) throws IOException {
+        return readFully(new HttpStreamOpener(mUrl, mCache, staleInfo,
+                new UrlConnectionFetcher()).openInputStream());
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        assertNotNull(in);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    public void testNotModifiedRefreshesEntry() throws Exception {
+        mServer.enqueue("200 OK", "ETag: \"v1\"\r\nCache-Control: max-age=0\r\n", BODY);
+        assertTrue(Arrays.equals(BODY, fetch(null)));
+
+        CachedFile file = mCache.getFile(mUrl);
+        assertNotNull(file);
+        HttpCacheInfo info = file.getHeader().cacheInfo();
+        file.close();
+        assertEquals("\"v1\"", info.eTag());
+        assertFalse(info.isFresh(System.currentTimeMillis() + 1));
+
+        mServer.enqueue("304 Not Modified", "Cache-Control: max-age=3600\r\n", null);
+        assertTrue(Arrays.equals(BODY, fetch(info)));
+        assertEquals("\"v1\"", mServer.requestHeader(1, "If-None-Match"));
+
+        CachedFile refreshed = mCache.getFile(mUrl);
+        assertNotNull(refreshed);
+        assertEquals(BODY.length, refreshed.getLength());
+        assertEquals("\"v1\"", refreshed.getHeader().cacheInfo().eTag());
+        assertTrue(refreshed.getHeader().cacheInfo().isFresh(System.currentTimeMillis()));
+        // Renditions of the image stay valid.
+        assertEquals(info.versionTag(), refreshed.getHeader().cacheInfo().versionTag());
+        refreshed.close();
+    }
+
+    public void testModifiedResponseReplacesEntry() throws Exception {
+        mServer.enqueue("200 OK", "ETag: \"v1\"\r\nCache-Control: no-cache\r\n", BODY);
+        fetch(null);
+
+        byte[] newBody = "another image".getBytes();
+        mServer.enqueue("200 OK", "ETag: \"v2\"\r\n", newBody);
+        HttpCacheInfo staleInfo = mCache.getHeader(mUrl).cacheInfo();
+        assertTrue(Arrays.equals(newBody, fetch(staleInfo)));
+
+        CachedFile file = mCache.getFile(mUrl);
+        assertEquals(newBody.length, file.getLength());
+        assertEquals("\"v2\"", file.getHeader().cacheInfo().eTag());
+        assertFalse(staleInfo.versionTag().equals(file.getHeader().cacheInfo().versionTag()));
+        file.close();
+    }
+
+    public void testNotModifiedAfterEvictionRefetches() throws Exception {
+        mServer.enqueue("200 OK", "ETag: \"v1\"\r\nCache-Control: no-cache\r\n", BODY);
+        fetch(null);
+        HttpCacheInfo info = mCache.getHeader(mUrl).cacheInfo();
+        assertTrue(mCache.remove(mUrl));
+
+        mServer.enqueue("304 Not Modified", "", null);
+        mServer.enqueue("200 OK", "ETag: \"v1\"\r\n", BODY);
+        assertTrue(Arrays.equals(BODY, fetch(info)));
+        assertEquals(3, mServer.requestCount());
+        assertNull(mServer.requestHeader(2, "If-None-Match"));
+    }
+
+    public void testNoStoreIsNotCached() throws Exception {
+        mServer.enqueue("200 OK", "Cache-Control: no-store\r\n", BODY);
+        assertTrue(Arrays.equals(BODY, fetch(null)));
+        assertNull(mCache.getFile(mUrl));
+    }
+
+    public void testInterruptedDownloadIsResumed() throws Exception {
+        byte[] body = new byte[64 * 1024];
+        new Random(1).nextBytes(body);
+        mServer.enqueue("200 OK", "ETag: \"v1\"\r\n", body);
+
+        InputStream in = new HttpStreamOpener(mUrl, mCache, null,
+                new UrlConnectionFetcher()).openInputStream();
+        assertNotNull(in);
+        assertEquals(1000, in.read(new byte[1000]));
+        in.close();
+
+        assertNull(mCache.getFile(mUrl));
+        CachedFile partial = mCache.getPartialFile(mUrl);
+        assertNotNull(partial);
+        int start = (int) partial.getLength();
+        partial.close();
+        assertTrue(start >= 1000 && start < body.length);
+
+        mServer.enqueue("206 Partial Content", "ETag: \"v1\"\r\nContent-Range: bytes " + start +
+                "-" + (body.length - 1) + "/" + body.length + "\r\n",
+                Arrays.copyOfRange(body, start, body.length));
+        assertTrue(Arrays.equals(body, fetch(null)));
+        assertEquals("bytes=" + start + "-", mServer.requestHeader(1, "Range"));
+        assertEquals("\"v1\"", mServer.requestHeader(1, "If-Range"));
+
+        CachedFile file = mCache.getFile(mUrl);
+        assertNotNull(file);
+        assertEquals(body.length, file.getLength());
+        file.close();
+    }
+
+    public void testConnectionsAreOpenedByFetcher() throws Exception {
+        mServer.enqueue("200 OK", "", BODY);
+        NetworkFetcher fetcher = new UrlConnectionFetcher() {
+            @NonNull
+            @Override
+            public URLConnection openConnection(@NonNull String url) throws IOException {
+                URLConnection connection = super.openConnection(url);
+                connection.setRequestProperty("User-Agent", "fetcher");
+                return connection;
+            }
+        };
+        InputStream in = new HttpStreamOpener(mUrl, null, null, fetcher).openInputStream();
+        assertNotNull(in);
+        in.close();
+        assertEquals("fetcher", mServer.requestHeader(0, "User-Agent"));
+    }
+
+    public void testLargeImageIsDownloadedInSegments() throws Exception {
+        byte[] body = new byte[256 * 1024];
+        new Random(2).nextBytes(body);
+        mServer.serve("ETag: \"v1\"\r\nAccept-Ranges: bytes\r\n", body);
+
+        HttpStreamOpener opener = new HttpStreamOpener(mUrl, mCache, null,
+                new UrlConnectionFetcher());
+        opener.setSegmentedDownload(4, 64 * 1024);
+        assertTrue(Arrays.equals(body, readFully(opener.openInputStream())));
+
+        assertEquals(4, mServer.requestCount());
+        int ranges = 0;
+        for (int i = 0; i < 4; ++i) {
+            String range = mServer.requestHeader(i, "Range");
+            if (range != null) {
+                ++ranges;
+                assertEquals("\"v1\"", mServer.requestHeader(i, "If-Range"));
+            }
+        }
+        assertEquals(3, ranges);
+
+        CachedFile file = mCache.getFile(mUrl);
+        assertNotNull(file);
+        assertEquals(body.length, file.getLength());
+        file.close();
+    }
+
+    public void testCancelStopsSegmentedDownload() throws Exception {
+        byte[] body = new byte[256 * 1024];
+        mServer.serve("ETag: \"v1\"\r\nAccept-Ranges: bytes\r\n", body);
+        mServer.stallRanges();
+
+        final HttpStreamOpener opener = new HttpStreamOpener(mUrl, mCache, null,
+                new UrlConnectionFetcher());
+        opener.setSegmentedDownload(4, 64 * 1024);
+        final InputStream[] result = new InputStream[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                result[0] = opener.openInputStream();
+            }
+        };
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mServer.requestCount() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(4, mServer.requestCount());
+
+        opener.cancel();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertNull(result[0]);
+        // It isn't downloaded again over one connection.
+        assertEquals(4, mServer.requestCount());
+    }
+
+    /**
+     * Answers each connection with the next enqueued response, or with a range of the served body,
+     * and keeps the request headers.
+     */
+    private static class Server extends Thread {
+        private final ServerSocket mSocket = new ServerSocket(0);
+        private final LinkedBlockingQueue<byte[]> mResponses = new LinkedBlockingQueue<byte[]>();
+        private final List<List<String>> mRequests = new ArrayList<List<String>>();
+        private volatile String mHeaders;
+        private volatile byte[] mBody;
+        private volatile boolean mStallRanges;
+
+        Server() throws IOException {
+            setDaemon(true);
+            start();
+        }
+
+        int port() {
+            return mSocket.getLocalPort();
+        }
+
+        void enqueue(String status, String headers, byte[] body) throws IOException {
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            response.write(("HTTP/1.1 " + status + "\r\n" + headers +
+                    "Content-Length: " + (body != null ? body.length : 0) + "\r\n" +
+                    "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+            if (body != null) {
+                response.write(body);
+            }
+            mResponses.add(response.toByteArray());
+        }
+
+        /**
+         * Answers every request from now on with the body, or the range of it asked for.
+         */
+        void serve(String headers, byte[] body) {
+            mHeaders = headers;
+            mBody = body;
+        }
+
+        /**
+         * Sends no body for range requests, until the client hangs up.
+         */
+        void stallRanges() {
+            mStallRanges = true;
+        }
+
+        synchronized int requestCount() {
+            return mRequests.size();
+        }
+
+        synchronized String requestHeader(int request, String name) {
+            return header(mRequests.get(request), name);
+        }
+
+        private static String header(List<String> lines, String name) {
+            for (String line : lines) {
+                if (line.regionMatches(true, 0, name + ":", 0, name.length() + 1)) {
+                    return line.substring(name.length() + 1).trim();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = mSocket.accept();
+                    Thread thread = new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                answer(socket);
+                            } catch (IOException ignored) {
+                                // The client hung up.
+                            } catch (InterruptedException ignored) {
+                            }
+                        }
+                    };
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException ignored) {
+                // closed
+            }
+        }
+
+        private void answer(Socket socket) throws IOException, InterruptedException {
+            try {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                List<String> lines = new ArrayList<String>();
+                String line;
+                while ((line = reader.readLine()) != null && line.length() != 0) {
+                    lines.add(line);
+                }
+                synchronized (this) {
+                    mRequests.add(lines);
+                }
+
+                OutputStream out = socket.getOutputStream();
+                byte[] body = mBody;
+                if (body == null) {
+                    out.write(mResponses.take());
+                } else {
+                    String range = header(lines, "Range");
+                    int start = 0;
+                    int end = body.length;
+                    String status = "200 OK";
+                    String headers = mHeaders;
+                    if (range != null) {
+                        String[] bounds = range.substring("bytes=".length()).split("-");
+                        start = Integer.parseInt(bounds[0]);
+                        end = Integer.parseInt(bounds[1]) + 1;
+                        status = "206 Partial Content";
+                        headers += "Content-Range: bytes " + start + "-" + (end - 1) + "/" +
+                                body.length + "\r\n";
+                    }
+                    out.write(("HTTP/1.1 " + status + "\r\n" + headers + "Content-Length: " +
+                            (end - start) + "\r\nConnection: close\r\n\r\n")
+                            .getBytes("US-ASCII"));
+                    if (range != null && mStallRanges) {
+                        out.flush();
+                        //noinspection StatementWithEmptyBody
+                        while (socket.getInputStream().read() != -1) {
+                        }
+                        return;
+                    }
+                    out.write(body, start, end - start);
+                }
+                out.flush();
+            } finally {
+                socket.close();
+            }
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
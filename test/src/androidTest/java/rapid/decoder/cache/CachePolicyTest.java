@@ -0,0 +1,153 @@
+package rapid.decoder.cache;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Replays synthetic access traces against each {@link CachePolicy} and compares hit ratios.
+ */
+public class CachePolicyTest extends AndroidTestCase {
+    private static final String TAG = "CachePolicyTest";
+
+    private static final int CACHE_SIZE = 100;
+    private static final int HOT_KEY_COUNT = 400;
+    private static final int ACCESS_COUNT = 200000;
+
+    /**
+     * Keys drawn from a Zipf distribution, like avatars and headers shown over and over, with a
+     * long run of keys which are seen only once (a fling through a list) every so often.
+     */
+    private static int[] createScanHeavyTrace(long seed) {
+        Random random = new Random(seed);
+        double[] cdf = zipfCdf(HOT_KEY_COUNT, 0.9);
+        int[] trace = new int[ACCESS_COUNT];
+        int nextScanKey = HOT_KEY_COUNT;
+        int i = 0;
+        while (i < trace.length) {
+            for (int j = 0; j < 1000 && i < trace.length; ++j) {
+                trace[i++] = sample(cdf, random);
+            }
+            for (int j = 0; j < 2 * CACHE_SIZE && i < trace.length; ++j) {
+                trace[i++] = nextScanKey++;
+            }
+        }
+        return trace;
+    }
+
+    private static int[] createRecencyTrace(long seed) {
+        // A sliding working set: recently used keys are the most likely to be used again.
+        Random random = new Random(seed);
+        int[] trace = new int[ACCESS_COUNT];
+        for (int i = 0; i < trace.length; ++i) {
+            int base = i / 50;
+            trace[i] = base + random.nextInt(CACHE_SIZE / 2);
+        }
+        return trace;
+    }
+
+    private static double[] zipfCdf(int n, double exponent) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; ++i) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; ++i) {
+            cdf[i] /= sum;
+        }
+        return cdf;
+    }
+
+    private static int sample(double[] cdf, Random random) {
+        double p = random.nextDouble();
+        int low = 0;
+        int high = cdf.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cdf[mid] < p) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static double hitRatio(CachePolicy policy, int[] trace) {
+        LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(CACHE_SIZE, policy);
+        for (int key : trace) {
+            if (cache.get(key) == null) {
+                cache.put(key, key);
+            }
+            assertTrue(cache.size() <= CACHE_SIZE);
+        }
+        return (double) cache.hitCount() / trace.length;
+    }
+
+    public void testScanResistance() {
+        int[] trace = createScanHeavyTrace(1);
+        double lru = hitRatio(CachePolicy.LRU, trace);
+        double tinyLfu = hitRatio(CachePolicy.W_TINY_LFU, trace);
+
+        Log.i(TAG, String.format("scan-heavy: lru=%.3f w-tinylfu=%.3f", lru, tinyLfu));
+        assertTrue(tinyLfu > lru);
+    }
+
+    public void testRecencyWorkload() {
+        int[] trace = createRecencyTrace(2);
+        double lru = hitRatio(CachePolicy.LRU, trace);
+        double tinyLfu = hitRatio(CachePolicy.W_TINY_LFU, trace);
+
+        Log.i(TAG, String.format("recency: lru=%.3f w-tinylfu=%.3f", lru, tinyLfu));
+        // The window has to keep W-TinyLFU close to LRU where recency is all that matters.
+        assertTrue(tinyLfu > lru * 0.8);
+    }
+
+    public void testCostAwareEviction() {
+        // Small thumbnails which came from the network and large images decoded from resources.
+        int expensiveKept = 0;
+        for (CachePolicy policy : new CachePolicy[]{CachePolicy.LRU, CachePolicy.GDSF}) {
+            LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(100, policy) {
+                @Override
+                protected int sizeOf(Integer key, Integer value) {
+                    return value;
+                }
+            };
+            for (int i = 0; i < 10; ++i) {
+                cache.put(i, 5, 1000);
+            }
+            for (int i = 100; i < 200; ++i) {
+                cache.put(i, 20, 10);
+                assertTrue(cache.size() <= 100);
+            }
+
+            int kept = 0;
+            for (int i = 0; i < 10; ++i) {
+                if (cache.get(i) != null) {
+                    ++kept;
+                }
+            }
+            if (policy == CachePolicy.LRU) {
+                assertEquals(0, kept);
+            } else {
+                expensiveKept = kept;
+            }
+        }
+        assertEquals(10, expensiveKept);
+    }
+
+    public void testEvictionOrder() {
+        LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(3, CachePolicy.LRU);
+        cache.put(1, 1);
+        cache.put(2, 2);
+        cache.put(3, 3);
+        cache.get(1);
+        cache.put(4, 4);
+
+        assertNull(cache.get(2));
+        assertNotNull(cache.get(1));
+        assertEquals(3, cache.size());
+    }
+}
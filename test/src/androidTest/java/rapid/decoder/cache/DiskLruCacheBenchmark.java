@@ -0,0 +1,207 @@
+package rapid.decoder.cache;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how throughput of {@link DiskLruCache} scales with the number of threads, compared to
+ * the same cache behind a single global monitor (the way BitmapDecoder used to guard it).
+ */
+public class DiskLruCacheBenchmark extends AndroidTestCase {
+    private static final String TAG = "DiskLruCacheBenchmark";
+
+    private static final int KEY_COUNT = 256;
+    private static final int VALUE_SIZE = 16 * 1024;
+    private static final int THUMBNAIL_SIZE = 8 * 1024;
+    private static final int OPERATIONS_PER_THREAD = 2000;
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+
+    private interface Operation {
+        void run(String key) throws IOException;
+    }
+
+    private File mDirectory;
+    private byte[] mValue;
+    private DiskCacheLayout mLayout = DiskCacheLayout.FILE_PER_ENTRY;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = new File(System.getProperty("java.io.tmpdir"),
+                "DiskLruCacheBenchmark-" + System.nanoTime());
+        mValue = new byte[VALUE_SIZE];
+        new Random(1).nextBytes(mValue);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mDirectory);
+    }
+
+    public void testLookupScaling() throws Exception {
+        // Everything fits, so this measures hits only.
+        compare("lookup", KEY_COUNT * VALUE_SIZE * 2);
+    }
+
+    public void testMixedScaling() throws Exception {
+        // Half of the keys fit, so lookups both hit and miss and misses write new entries.
+        compare("mixed", KEY_COUNT * VALUE_SIZE / 2);
+    }
+
+    private void compare(String name, long cacheSize) throws Exception {
+        for (int threads : THREAD_COUNTS) {
+            final DiskLruCache cache = newCache(name + "-concurrent-" + threads, cacheSize);
+            double concurrent = run(threads, new Operation() {
+                @Override
+                public void run(String key) throws IOException {
+                    lookup(cache, key);
+                }
+            });
+            cache.close();
+
+            final DiskLruCache lockedCache = newCache(name + "-locked-" + threads, cacheSize);
+            final Object lock = new Object();
+            double locked = run(threads, new Operation() {
+                @Override
+                public void run(String key) throws IOException {
+                    synchronized (lock) {
+                        lookup(lockedCache, key);
+                    }
+                }
+            });
+            lockedCache.close();
+
+            Log.i(TAG, String.format("%s: threads=%d concurrent=%.1f ops/ms global-lock=%.1f ops/ms",
+                    name, threads, concurrent, locked));
+        }
+    }
+
+    public void testLayouts() throws Exception {
+        // Thumbnails, where per-file costs dominate.
+        mValue = Arrays.copyOf(mValue, THUMBNAIL_SIZE);
+        for (int threads : THREAD_COUNTS) {
+            double[] throughput = new double[DiskCacheLayout.values().length];
+            for (DiskCacheLayout layout : DiskCacheLayout.values()) {
+                mLayout = layout;
+                final DiskLruCache cache = newCache("layout-" + layout + "-" + threads,
+                        KEY_COUNT * THUMBNAIL_SIZE / 2);
+                throughput[layout.ordinal()] = run(threads, new Operation() {
+                    @Override
+                    public void run(String key) throws IOException {
+                        lookup(cache, key);
+                    }
+                });
+                cache.close();
+            }
+            Log.i(TAG, String.format("layouts: threads=%d files=%.1f ops/ms segments=%.1f ops/ms",
+                    threads, throughput[DiskCacheLayout.FILE_PER_ENTRY.ordinal()],
+                    throughput[DiskCacheLayout.SEGMENTS.ordinal()]));
+        }
+    }
+
+    public void testConcurrentWritesOfSameKey() throws Exception {
+        final DiskLruCache cache = newCache("same-key", VALUE_SIZE * 2);
+        run(8, new Operation() {
+            @Override
+            public void run(String key) throws IOException {
+                lookup(cache, "http://example.com/same.jpg");
+            }
+        });
+        InputStream in = cache.get("http://example.com/same.jpg");
+        assertNotNull(in);
+        assertEquals(VALUE_SIZE, readFully(in));
+        cache.close();
+    }
+
+    private DiskLruCache newCache(String name, long size) throws IOException {
+        DiskLruCache cache = new DiskLruCache(new File(mDirectory, name), 1, size, mLayout);
+        for (int i = 0; i < KEY_COUNT && (long) (i + 1) * mValue.length <= size; ++i) {
+            lookup(cache, keyOf(i));
+        }
+        return cache;
+    }
+
+    private static String keyOf(int index) {
+        return "http://example.com/" + index + ".jpg";
+    }
+
+    private void lookup(DiskLruCache cache, String key) throws IOException {
+        InputStream in = cache.get(key);
+        if (in != null) {
+            assertEquals(mValue.length, readFully(in));
+            return;
+        }
+
+        TransactionOutputStream out = cache.getOutputStream(key);
+        if (out != null) {
+            out.write(mValue);
+            out.close();
+        }
+    }
+
+    private static int readFully(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int total = 0;
+        int count;
+        try {
+            while ((count = in.read(buffer)) != -1) {
+                total += count;
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+
+    private double run(int threadCount, final Operation operation) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final Throwable[] failure = new Throwable[1];
+        for (int t = 0; t < threadCount; ++t) {
+            final Random random = new Random(t);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < OPERATIONS_PER_THREAD; ++i) {
+                            // Skewed like images in a scrolling list.
+                            int key = (int) (Math.pow(random.nextDouble(), 2) * KEY_COUNT);
+                            operation.run(keyOf(key));
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsedMillis = Math.max(1, (System.nanoTime() - begin) / 1000000);
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+        return (double) threadCount * OPERATIONS_PER_THREAD / elapsedMillis;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
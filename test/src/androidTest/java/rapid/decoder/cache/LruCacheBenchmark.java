@@ -0,0 +1,137 @@
+package rapid.decoder.cache;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how lookup throughput of {@link LruCache} scales with the number of threads, compared
+ * to the same cache behind a single global monitor (the way BitmapDecoder used to guard it), and
+ * what adaptive sizing costs on top of it.
+ */
+public class LruCacheBenchmark extends AndroidTestCase {
+    private static final String TAG = "LruCacheBenchmark";
+
+    private static final int KEY_COUNT = 1024;
+    private static final int CACHE_SIZE = KEY_COUNT / 2;
+    private static final int OPERATIONS_PER_THREAD = 200000;
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16};
+
+    private interface Lookup {
+        Object get(Integer key);
+    }
+
+    private Integer[] mTrace;
+
+    @Override
+    protected void setUp() throws Exception {
+        // Skewed trace: most lookups hit a small hot set, like rows of a scrolling grid.
+        Random random = new Random(1);
+        mTrace = new Integer[OPERATIONS_PER_THREAD];
+        for (int i = 0; i < mTrace.length; ++i) {
+            int key = (int) (Math.pow(random.nextDouble(), 3) * KEY_COUNT);
+            mTrace[i] = key;
+        }
+    }
+
+    public void testLookupScaling() throws InterruptedException {
+        for (int threads : THREAD_COUNTS) {
+            final LruCache<Integer, Object> cache = newCache();
+            double concurrent = run(threads, new Lookup() {
+                @Override
+                public Object get(Integer key) {
+                    return lookup(cache, key);
+                }
+            });
+
+            final LruCache<Integer, Object> lockedCache = newCache();
+            final Object lock = new Object();
+            double locked = run(threads, new Lookup() {
+                @Override
+                public Object get(Integer key) {
+                    synchronized (lock) {
+                        return lookup(lockedCache, key);
+                    }
+                }
+            });
+
+            Log.i(TAG, String.format("threads=%d concurrent=%.0f ops/ms global-lock=%.0f ops/ms",
+                    threads, concurrent, locked));
+            assertTrue(cache.size() <= CACHE_SIZE);
+            assertTrue(cache.hitCount() > 0);
+        }
+    }
+
+    public void testAdaptiveSizingOverhead() throws InterruptedException {
+        for (int threads : THREAD_COUNTS) {
+            final LruCache<Integer, Object> cache = newCache();
+            double fixed = run(threads, new Lookup() {
+                @Override
+                public Object get(Integer key) {
+                    return lookup(cache, key);
+                }
+            });
+
+            // Lets the curve remember every key, so its stack is as deep as it gets.
+            final LruCache<Integer, Object> adaptiveCache = newCache();
+            adaptiveCache.setAdaptiveSize(CACHE_SIZE / 4, KEY_COUNT);
+            double adaptive = run(threads, new Lookup() {
+                @Override
+                public Object get(Integer key) {
+                    return lookup(adaptiveCache, key);
+                }
+            });
+
+            Log.i(TAG, String.format("threads=%d fixed=%.0f ops/ms adaptive=%.0f ops/ms size=%d",
+                    threads, fixed, adaptive, adaptiveCache.maxSize()));
+            assertTrue(adaptiveCache.size() <= KEY_COUNT);
+            assertTrue(adaptiveCache.hitCount() > 0);
+        }
+    }
+
+    private static LruCache<Integer, Object> newCache() {
+        LruCache<Integer, Object> cache = new LruCache<Integer, Object>(CACHE_SIZE);
+        for (int i = 0; i < CACHE_SIZE; ++i) {
+            cache.put(i, i);
+        }
+        return cache;
+    }
+
+    private static Object lookup(LruCache<Integer, Object> cache, Integer key) {
+        Object value = cache.get(key);
+        if (value == null) {
+            cache.put(key, key);
+        }
+        return value;
+    }
+
+    private double run(int threadCount, final Lookup lookup) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; ++t) {
+            final int offset = t * 7919;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < mTrace.length; ++i) {
+                            lookup.get(mTrace[(i + offset) % mTrace.length]);
+                        }
+                    } catch (InterruptedException ignored) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsedMillis = Math.max(1, (System.nanoTime() - begin) / 1000000);
+        return (double) threadCount * mTrace.length / elapsedMillis;
+    }
+}
@@ -0,0 +1,40 @@
+package rapid.decoder.cache;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Random;
+
+public class MissRatioCurveTest extends AndroidTestCase {
+    private static final String TAG = "MissRatioCurveTest";
+
+    private static void replay(LruCache<Integer, Integer> cache, int workingSet, long seed) {
+        Random random = new Random(seed);
+        for (int i = 0; i < 100000; ++i) {
+            int key = random.nextInt(workingSet);
+            if (cache.get(key) == null) {
+                cache.put(key, key);
+            }
+        }
+    }
+
+    public void testShrinksToWorkingSet() {
+        LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(400);
+        cache.setAdaptiveSize(10, 400);
+        replay(cache, 50, 1);
+
+        Log.i(TAG, "shrunk to " + cache.maxSize() + ": " + cache.missRatioCurve());
+        assertTrue(cache.maxSize() >= 40);
+        assertTrue(cache.maxSize() <= 100);
+    }
+
+    public void testGrowsToWorkingSet() {
+        LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(20);
+        cache.setAdaptiveSize(10, 400);
+        replay(cache, 150, 2);
+
+        Log.i(TAG, "grown to " + cache.maxSize() + ": " + cache.missRatioCurve());
+        assertTrue(cache.maxSize() >= 120);
+        assertTrue(cache.maxSize() <= 250);
+    }
+}
@@ -0,0 +1,183 @@
+package rapid.decoder.cache;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class SegmentDiskStoreTest extends AndroidTestCase {
+    private static final int VALUE_SIZE = 8 * 1024;
+    private static final long CACHE_SIZE = 1024 * 1024;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = new File(System.getProperty("java.io.tmpdir"),
+                "SegmentDiskStoreTest-" + System.nanoTime());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mDirectory);
+    }
+
+    private DiskLruCache openCache() {
+        return new DiskLruCache(mDirectory, 1, CACHE_SIZE, DiskCacheLayout.SEGMENTS);
+    }
+
+    private static String keyOf(int index) {
+        return "http://example.com/thumb/" + index + ".jpg";
+    }
+
+    private static byte[] valueOf(int index) {
+        byte[] value = new byte[VALUE_SIZE];
+        Arrays.fill(value, (byte) index);
+        return value;
+    }
+
+    private static void put(DiskLruCache cache, int index) throws IOException {
+        TransactionOutputStream out = cache.getOutputStream(keyOf(index));
+        assertNotNull(out);
+        out.write(valueOf(index));
+        out.close();
+    }
+
+    private static byte[] get(DiskLruCache cache, int index) throws IOException {
+        InputStream in = cache.get(keyOf(index));
+        if (in == null) return null;
+
+        byte[] buffer = new byte[VALUE_SIZE + 1];
+        int length = 0;
+        int count;
+        try {
+            while ((count = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += count;
+            }
+        } finally {
+            in.close();
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    public void testEntriesSurviveReopening() throws Exception {
+        DiskLruCache cache = openCache();
+        for (int i = 0; i < 50; ++i) {
+            put(cache, i);
+        }
+        assertTrue(cache.remove(keyOf(7)));
+        put(cache, 3);
+        cache.close();
+
+        cache = openCache();
+        for (int i = 0; i < 50; ++i) {
+            if (i == 7) {
+                assertNull(get(cache, i));
+            } else {
+                assertTrue(Arrays.equals(valueOf(i), get(cache, i)));
+            }
+        }
+        cache.close();
+    }
+
+    public void testPartialRecordIsIgnored() throws Exception {
+        DiskLruCache cache = openCache();
+        for (int i = 0; i < 3; ++i) {
+            put(cache, i);
+        }
+        cache.close();
+
+        File segment = null;
+        for (File file : mDirectory.listFiles()) {
+            if (segment == null || file.getName().compareTo(segment.getName()) > 0) {
+                segment = file;
+            }
+        }
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.setLength(raf.length() - 100);
+        raf.close();
+
+        cache = openCache();
+        assertTrue(Arrays.equals(valueOf(0), get(cache, 0)));
+        assertTrue(Arrays.equals(valueOf(1), get(cache, 1)));
+        assertNull(get(cache, 2));
+        cache.close();
+    }
+
+    public void testEvictionKeepsEntriesInUse() throws Exception {
+        DiskLruCache cache = openCache();
+        int count = (int) (CACHE_SIZE / VALUE_SIZE) * 4;
+        for (int i = 0; i < count; ++i) {
+            put(cache, i);
+            // Keep reading the first entries like avatars shown over and over.
+            for (int j = 0; j < 4 && j < i; ++j) {
+                assertNotNull(get(cache, j));
+            }
+        }
+        cache.flush();
+
+        long size = 0;
+        for (File file : mDirectory.listFiles()) {
+            size += file.length();
+        }
+        assertTrue(size <= CACHE_SIZE);
+        for (int j = 0; j < 4; ++j) {
+            assertTrue(Arrays.equals(valueOf(j), get(cache, j)));
+        }
+        assertNull(get(cache, 10));
+        cache.close();
+    }
+
+    public void testLargeValueIsStored() throws Exception {
+        DiskLruCache cache = openCache();
+        put(cache, 0);
+        // Larger than a segment, so it is written to a file of its own while it's edited.
+        byte[] value = new byte[(int) (CACHE_SIZE / 4)];
+        for (int i = 0; i < value.length; ++i) {
+            value[i] = (byte) (i * 31);
+        }
+        TransactionOutputStream out = cache.getOutputStream(keyOf(1));
+        assertNotNull(out);
+        out.write(value);
+        out.close();
+        put(cache, 2);
+
+        for (File file : mDirectory.listFiles()) {
+            assertTrue(file.getName(), file.getName().startsWith("segment."));
+        }
+        cache.close();
+
+        cache = openCache();
+        InputStream in = cache.get(keyOf(1));
+        assertNotNull(in);
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        try {
+            while ((count = in.read(buffer)) > 0) {
+                stored.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        assertTrue(Arrays.equals(value, stored.toByteArray()));
+        assertTrue(Arrays.equals(valueOf(0), get(cache, 0)));
+        assertTrue(Arrays.equals(valueOf(2), get(cache, 2)));
+        cache.close();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}